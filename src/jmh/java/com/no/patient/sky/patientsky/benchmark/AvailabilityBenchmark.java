@@ -0,0 +1,92 @@
+package com.no.patient.sky.patientsky.benchmark;
+
+import com.no.patient.sky.patientsky.index.CalendarData;
+import com.no.patient.sky.patientsky.request.AppointmentRequest;
+import com.no.patient.sky.patientsky.request.SlotFormat;
+import com.no.patient.sky.patientsky.response.AppointmentResponse;
+import com.no.patient.sky.patientsky.service.AppointmentServiceImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Throughput of {@link AppointmentServiceImpl#getAvailableTimes(AppointmentRequest)} including slot generation,
+ * for calendar sizes, period lengths and durations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class AvailabilityBenchmark {
+
+    private static final int CALENDARS = 10;
+
+    @Param({"1000", "100000", "10000000"})
+    private int appointments;
+
+    @Param({"0.5"})
+    private double density;
+
+    @Param({"0.1"})
+    private double overlap;
+
+    @Param({"NONE", "WORKING_HOURS"})
+    private SyntheticCalendarGenerator.TimeSlotPattern timeSlots;
+
+    @Param({"1", "7", "30"})
+    private int periodDays;
+
+    @Param({"15", "60"})
+    private int duration;
+
+    private AppointmentServiceImpl service;
+    private AppointmentRequest expandedRequest;
+    private AppointmentRequest compactRequest;
+
+    @Setup
+    public void setUp() {
+        List<CalendarData> calendars = new SyntheticCalendarGenerator(42, density, overlap, timeSlots).generate(CALENDARS, appointments);
+        service = BenchmarkServices.createAppointmentService(calendars);
+
+        List<UUID> calendarIds = calendars.stream().map(calendarData -> UUID.fromString(calendarData.getCalendarId())).collect(Collectors.toList());
+        Instant start = BenchmarkServices.middleDay(calendars.get(0));
+        expandedRequest = request(calendarIds, start, SlotFormat.EXPANDED);
+        compactRequest = request(calendarIds, start, SlotFormat.COMPACT);
+    }
+
+    @Benchmark
+    public AppointmentResponse expandedSlots() {
+        return service.getAvailableTimes(expandedRequest);
+    }
+
+    @Benchmark
+    public AppointmentResponse compactSlots() {
+        return service.getAvailableTimes(compactRequest);
+    }
+
+    private AppointmentRequest request(List<UUID> calendarIds, Instant start, SlotFormat slotFormat) {
+        AppointmentRequest request = new AppointmentRequest();
+        request.setCalendarIds(calendarIds);
+        request.setDuration(duration);
+        request.setPeriodToSearch(start + "/" + start.plus(periodDays, ChronoUnit.DAYS));
+        request.setSlotFormat(slotFormat);
+        return request;
+    }
+}
@@ -0,0 +1,83 @@
+package com.no.patient.sky.patientsky.benchmark;
+
+import com.no.patient.sky.patientsky.index.CalendarData;
+import com.no.patient.sky.patientsky.index.CalendarIndex;
+import com.no.patient.sky.patientsky.initializer.JsonData;
+import com.no.patient.sky.patientsky.metrics.AvailabilityMetrics;
+import com.no.patient.sky.patientsky.service.AdmissionControl;
+import com.no.patient.sky.patientsky.service.AppointmentServiceImpl;
+import com.no.patient.sky.patientsky.service.AvailabilityCache;
+import com.no.patient.sky.patientsky.service.CalendarExecutor;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.lang.reflect.Field;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Services wired without Spring for benchmarks, metrics are recorded in a simple registry as in production.
+ * Fields are set by plain reflection, ReflectionTestUtils would log every access without a logging configuration.
+ */
+final class BenchmarkServices {
+
+    private BenchmarkServices() {
+    }
+
+    /**
+     * Service reading given calendars, without cache and evaluating calendars on the calling thread,
+     * so a benchmark measures the computation only.
+     */
+    static AppointmentServiceImpl createAppointmentService(List<CalendarData> calendars) {
+        Map<String, CalendarData> calendarsById = new HashMap<>();
+        calendars.forEach(calendarData -> calendarsById.put(calendarData.getCalendarId(), calendarData));
+
+        JsonData jsonData = new JsonData();
+        @SuppressWarnings("unchecked")
+        Map<String, CalendarData> loadedCalendars = (Map<String, CalendarData>) getField(jsonData, "calendars");
+        loadedCalendars.putAll(calendarsById);
+
+        AppointmentServiceImpl service = new AppointmentServiceImpl();
+        setField(service, "fileData", jsonData);
+        setField(service, "availabilityCache", new AvailabilityCache(0));
+        setField(service, "calendarExecutor", new CalendarExecutor(1, 1));
+        AvailabilityMetrics availabilityMetrics = new AvailabilityMetrics(new SimpleMeterRegistry(), Duration.ofHours(1));
+        setField(service, "availabilityMetrics", availabilityMetrics);
+        setField(service, "admissionControl", new AdmissionControl(Long.MAX_VALUE, Long.MAX_VALUE, 1, Duration.ZERO, false, availabilityMetrics));
+        return service;
+    }
+
+    private static Object getField(Object target, String name) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(target);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void setField(Object target, String name, Object value) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Start of the day of the middle appointment of calendar, so periods searched are surrounded by appointments.
+     */
+    static Instant middleDay(CalendarData calendarData) {
+        CalendarIndex appointments = calendarData.getAppointments();
+        long middle = appointments.size() == 0 ? SyntheticCalendarGenerator.START.getEpochSecond()
+                : appointments.getStart(appointments.size() / 2);
+        return Instant.ofEpochSecond(middle).truncatedTo(ChronoUnit.DAYS);
+    }
+}
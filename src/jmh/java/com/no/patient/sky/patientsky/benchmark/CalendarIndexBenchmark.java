@@ -0,0 +1,91 @@
+package com.no.patient.sky.patientsky.benchmark;
+
+import com.no.patient.sky.patientsky.index.BusyIntervalMerger;
+import com.no.patient.sky.patientsky.index.CalendarData;
+import com.no.patient.sky.patientsky.index.CalendarIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Range lookups on the index of one calendar and union of the indexes of several calendars.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CalendarIndexBenchmark {
+
+    private static final int CALENDARS = 10;
+    private static final int QUERIES = 1024;
+
+    @Param({"1000", "100000", "10000000"})
+    private int appointments;
+
+    @Param({"1", "30"})
+    private int periodDays;
+
+    private CalendarIndex index;
+    private List<CalendarIndex> indexes;
+    private long[] queryStarts;
+    private long periodSeconds;
+    private int query;
+
+    @Setup
+    public void setUp() {
+        List<CalendarData> calendars = new SyntheticCalendarGenerator(42, 0.5, 0.1, SyntheticCalendarGenerator.TimeSlotPattern.NONE)
+                .generate(CALENDARS, appointments);
+        indexes = calendars.stream().map(CalendarData::getAppointments).collect(Collectors.toList());
+        index = indexes.get(0);
+        periodSeconds = periodDays * 86400L;
+
+        Random random = new Random(7);
+        long first = index.getStart(0);
+        long span = index.getEnd(index.size() - 1) - first - periodSeconds;
+        queryStarts = new long[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queryStarts[i] = first + (long) (random.nextDouble() * Math.max(span, 1));
+        }
+    }
+
+    /**
+     * Number of intervals overlapping a period, the lookup done before slots are generated.
+     */
+    @Benchmark
+    public int rangeLookup() {
+        long start = nextQueryStart();
+        return index.firstStartingAtOrAfter(start + periodSeconds) - index.firstEndingAfter(start);
+    }
+
+    @Benchmark
+    public boolean overlaps() {
+        long start = nextQueryStart();
+        return index.overlaps(start, start + 900);
+    }
+
+    @Benchmark
+    public CalendarIndex union() {
+        long start = nextQueryStart();
+        return BusyIntervalMerger.union(indexes, start, start + periodSeconds);
+    }
+
+    private long nextQueryStart() {
+        query = (query + 1) & (QUERIES - 1);
+        return queryStarts[query];
+    }
+}
@@ -0,0 +1,74 @@
+package com.no.patient.sky.patientsky.benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.no.patient.sky.patientsky.index.CalendarData;
+import com.no.patient.sky.patientsky.request.AppointmentRequest;
+import com.no.patient.sky.patientsky.request.SlotFormat;
+import com.no.patient.sky.patientsky.response.AppointmentResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Json serialization of {@link AppointmentResponse}, with an object mapper configured like the one of Spring Boot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseSerializationBenchmark {
+
+    private static final int CALENDARS = 10;
+
+    @Param({"1", "7", "30"})
+    private int periodDays;
+
+    @Param({"15"})
+    private int duration;
+
+    @Param({"EXPANDED", "COMPACT"})
+    private SlotFormat slotFormat;
+
+    private ObjectMapper objectMapper;
+    private AppointmentResponse response;
+
+    @Setup
+    public void setUp() {
+        List<CalendarData> calendars = new SyntheticCalendarGenerator(42, 0.5, 0.1, SyntheticCalendarGenerator.TimeSlotPattern.NONE)
+                .generate(CALENDARS, 100000);
+        Instant start = BenchmarkServices.middleDay(calendars.get(0));
+
+        AppointmentRequest request = new AppointmentRequest();
+        request.setCalendarIds(calendars.stream().map(calendarData -> UUID.fromString(calendarData.getCalendarId())).collect(Collectors.toList()));
+        request.setDuration(duration);
+        request.setPeriodToSearch(start + "/" + start.plus(periodDays, ChronoUnit.DAYS));
+        request.setSlotFormat(slotFormat);
+
+        response = BenchmarkServices.createAppointmentService(calendars).getAvailableTimes(request);
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+    }
+
+    @Benchmark
+    public byte[] serialize() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(response);
+    }
+}
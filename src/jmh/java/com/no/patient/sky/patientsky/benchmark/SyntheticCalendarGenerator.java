@@ -0,0 +1,146 @@
+package com.no.patient.sky.patientsky.benchmark;
+
+import com.no.patient.sky.patientsky.dto.TimeSlot;
+import com.no.patient.sky.patientsky.index.CalendarData;
+import com.no.patient.sky.patientsky.index.CalendarIndex;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Deterministic generator of calendars for benchmarks, the same seed always gives the same calendars.
+ * <p>
+ * Appointments are generated in start order from {@link #START}: lengths are 15 to 60 minutes and the gap before
+ * each appointment is chosen so the calendar is busy for {@code density} of the time on average.
+ * A share of {@code overlap} appointments starts before the previous one ends.
+ */
+public final class SyntheticCalendarGenerator {
+
+    public static final Instant START = Instant.parse("2019-01-01T00:00:00Z");
+
+    /**
+     * Timeslots of generated calendars.
+     */
+    public enum TimeSlotPattern {
+        /**
+         * No timeslots, calendar is bookable all the time.
+         */
+        NONE,
+        /**
+         * Public bookable timeslot 08:00 - 16:00 every day.
+         */
+        WORKING_HOURS,
+        /**
+         * Working hours split in a morning and an afternoon timeslot of different types, every fifth day out of office.
+         */
+        MIXED
+    }
+
+    private static final long MIN_LENGTH_SECONDS = 15 * 60;
+    private static final long MAX_LENGTH_SECONDS = 60 * 60;
+
+    private final Random random;
+    private final double density;
+    private final double overlap;
+    private final TimeSlotPattern timeSlotPattern;
+
+    /**
+     * @param seed            seed of random numbers
+     * @param density         share of time busy with appointments, between 0 exclusive and 1
+     * @param overlap         share of appointments overlapping the previous one, between 0 and 1
+     * @param timeSlotPattern timeslots of calendars
+     */
+    public SyntheticCalendarGenerator(long seed, double density, double overlap, TimeSlotPattern timeSlotPattern) {
+        this.random = new Random(seed);
+        this.density = density;
+        this.overlap = overlap;
+        this.timeSlotPattern = timeSlotPattern;
+    }
+
+    /**
+     * Generate calendars with appointments split evenly between them.
+     *
+     * @param calendars    number of calendars
+     * @param appointments total number of appointments
+     * @return Calendars with random Ids from the seed
+     */
+    public List<CalendarData> generate(int calendars, int appointments) {
+        List<CalendarData> generated = new ArrayList<>(calendars);
+        for (int i = 0; i < calendars; i++) {
+            generated.add(generateCalendar(appointments / calendars));
+        }
+        return generated;
+    }
+
+    /**
+     * Generate one calendar.
+     *
+     * @param appointments number of appointments
+     * @return Calendar with appointments from {@link #START}
+     */
+    public CalendarData generateCalendar(int appointments) {
+        String calendarId = new UUID(random.nextLong(), random.nextLong()).toString();
+        long[] starts = new long[appointments];
+        long[] ends = new long[appointments];
+        long meanLength = (MIN_LENGTH_SECONDS + MAX_LENGTH_SECONDS) / 2;
+        long meanGap = (long) (meanLength * (1 - density) / density);
+
+        long time = START.getEpochSecond();
+        long previousEnd = time;
+        for (int i = 0; i < appointments; i++) {
+            long length = roundToMinute(MIN_LENGTH_SECONDS + (long) (random.nextDouble() * (MAX_LENGTH_SECONDS - MIN_LENGTH_SECONDS)));
+            if (i > 0 && random.nextDouble() < overlap) {
+                time = Math.max(time, previousEnd - length / 2);
+            } else {
+                time = Math.max(time, previousEnd) + roundToMinute((long) (random.nextDouble() * 2 * meanGap));
+            }
+            starts[i] = time;
+            ends[i] = time + length;
+            previousEnd = Math.max(previousEnd, ends[i]);
+        }
+
+        CalendarIndex index = CalendarIndex.fromIntervals(starts, ends, appointments);
+        return CalendarData.of(calendarId, index, generateTimeSlots(calendarId, START.getEpochSecond(), previousEnd));
+    }
+
+    private List<TimeSlot> generateTimeSlots(String calendarId, long startSecond, long endSecond) {
+        if (timeSlotPattern == TimeSlotPattern.NONE) {
+            return Collections.emptyList();
+        }
+
+        List<TimeSlot> timeSlots = new ArrayList<>();
+        Instant day = Instant.ofEpochSecond(startSecond).truncatedTo(ChronoUnit.DAYS);
+        for (int dayNumber = 0; day.getEpochSecond() < endSecond; dayNumber++, day = day.plus(1, ChronoUnit.DAYS)) {
+            if (timeSlotPattern == TimeSlotPattern.WORKING_HOURS) {
+                timeSlots.add(timeSlot(calendarId, "consultation", day.plus(8, ChronoUnit.HOURS), day.plus(16, ChronoUnit.HOURS), false));
+            } else {
+                boolean outOfOffice = dayNumber % 5 == 4;
+                timeSlots.add(timeSlot(calendarId, "consultation", day.plus(8, ChronoUnit.HOURS), day.plus(12, ChronoUnit.HOURS), outOfOffice));
+                timeSlots.add(timeSlot(calendarId, "surgery", day.plus(12, ChronoUnit.HOURS), day.plus(16, ChronoUnit.HOURS), outOfOffice));
+            }
+        }
+        return timeSlots;
+    }
+
+    private TimeSlot timeSlot(String calendarId, String typeId, Instant start, Instant end, boolean outOfOffice) {
+        TimeSlot timeSlot = new TimeSlot();
+        timeSlot.setId(new UUID(random.nextLong(), random.nextLong()).toString());
+        timeSlot.setCalendarId(calendarId);
+        timeSlot.setTypeId(typeId);
+        timeSlot.setStart(Date.from(start));
+        timeSlot.setEnd(Date.from(end));
+        timeSlot.setPublicBookable(true);
+        timeSlot.setOutOfOffice(outOfOffice);
+        return timeSlot;
+    }
+
+    private static long roundToMinute(long seconds) {
+        return seconds - seconds % 60;
+    }
+}
@@ -0,0 +1,232 @@
+package com.no.patient.sky.patientsky.loadtest;
+
+import com.no.patient.sky.patientsky.PatientSkyApplication;
+import com.no.patient.sky.patientsky.benchmark.SyntheticCalendarGenerator;
+import com.no.patient.sky.patientsky.index.CalendarData;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Load test of {@code /getAvailableSlot} with an open model: requests are sent at a constant rate whether or not
+ * earlier requests completed, as clients in production do.
+ * <p>
+ * A synthetic data set is written to a temporary data directory and the application is started on it in this JVM.
+ * Latency is measured from the time a request was scheduled to be sent, so time spent waiting for a free connection
+ * is included and a slow server is not hidden by a slower request rate (coordinated omission).
+ * Service time, from the time the request was actually sent, is reported too.
+ */
+public final class LoadTest {
+
+    private static final int REQUEST_BODIES = 1024;
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = LoadTestOptions.parse(args);
+        System.out.println("Load test " + options);
+
+        List<CalendarData> calendars = new SyntheticCalendarGenerator(options.getSeed(), 0.5, 0.1, options.getTimeSlots())
+                .generate(options.getCalendars(), options.getAppointments());
+        Path dataDirectory = Files.createTempDirectory("patient-sky-loadtest");
+        SyntheticDataSet.write(dataDirectory, calendars);
+
+        ConfigurableApplicationContext context = startApplication(options, dataDirectory);
+        try (CloseableHttpClient client = HttpClients.custom()
+                .setMaxConnTotal(options.getConnections())
+                .setMaxConnPerRoute(options.getConnections())
+                .build()) {
+            URI uri = URI.create("http://localhost:" + context.getEnvironment().getProperty("local.server.port") + "/getAvailableSlot");
+            List<String> requestBodies = generateRequestBodies(options, calendars);
+
+            System.out.println("Warming up for " + options.getWarmupSeconds() + " s");
+            run(client, uri, requestBodies, options, options.getWarmupSeconds());
+            System.out.println("Measuring for " + options.getDurationSeconds() + " s");
+            run(client, uri, requestBodies, options, options.getDurationSeconds()).print(options.getRate());
+        } finally {
+            context.close();
+            deleteDirectory(dataDirectory);
+        }
+    }
+
+    private static ConfigurableApplicationContext startApplication(LoadTestOptions options, Path dataDirectory) {
+        return new SpringApplicationBuilder(PatientSkyApplication.class)
+                .properties(
+                        "server.port=0",
+                        "appointment.data.directory=" + dataDirectory,
+                        "appointment.snapshot.file=",
+                        "appointment.booking.wal-file=")
+                .run(options.getApplicationArgs().toArray(new String[0]));
+    }
+
+    /**
+     * Request bodies of the configured mix of calendar counts, durations and period lengths.
+     * Periods start on a random day within the time covered by all calendars.
+     */
+    private static List<String> generateRequestBodies(LoadTestOptions options, List<CalendarData> calendars) {
+        Random random = new Random(options.getSeed());
+        long lastDay = calendars.stream()
+                .filter(calendarData -> calendarData.getAppointments().size() > 0)
+                .mapToLong(calendarData -> calendarData.getAppointments().getEnd(calendarData.getAppointments().size() - 1))
+                .min().orElse(SyntheticCalendarGenerator.START.getEpochSecond());
+        int maxPeriodDays = Collections.max(options.getPeriodDays());
+        long days = Math.max(1, (lastDay - SyntheticCalendarGenerator.START.getEpochSecond()) / 86400 - maxPeriodDays);
+
+        List<String> requestBodies = new ArrayList<>(REQUEST_BODIES);
+        for (int i = 0; i < REQUEST_BODIES; i++) {
+            int calendarCount = Math.min(calendars.size(), pick(random, options.getRequestCalendars()));
+            List<CalendarData> shuffled = new ArrayList<>(calendars);
+            Collections.shuffle(shuffled, random);
+            String calendarIds = shuffled.subList(0, calendarCount).stream()
+                    .map(calendarData -> "\"" + calendarData.getCalendarId() + "\"")
+                    .collect(Collectors.joining(","));
+
+            Instant start = SyntheticCalendarGenerator.START.plus((long) (random.nextDouble() * days), ChronoUnit.DAYS);
+            Instant end = start.plus(pick(random, options.getPeriodDays()), ChronoUnit.DAYS);
+            requestBodies.add("{\"calendarIds\":[" + calendarIds + "],\"duration\":" + pick(random, options.getDurations())
+                    + ",\"periodToSearch\":\"" + start + "/" + end + "\"}");
+        }
+        return requestBodies;
+    }
+
+    /**
+     * Send requests at constant rate for given time and wait until all completed.
+     */
+    private static Result run(CloseableHttpClient client, URI uri, List<String> requestBodies, LoadTestOptions options,
+                              int seconds) throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(options.getConnections());
+        Recorder responseTimes = new Recorder(3);
+        Recorder serviceTimes = new Recorder(3);
+        AtomicLong errors = new AtomicLong();
+
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / options.getRate());
+        long requests = (long) (options.getRate() * seconds);
+        long startNanos = System.nanoTime();
+        for (long i = 0; i < requests; i++) {
+            long intendedNanos = startNanos + i * intervalNanos;
+            long waitNanos;
+            while ((waitNanos = intendedNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+
+            String requestBody = requestBodies.get((int) (i % requestBodies.size()));
+            workers.execute(() -> {
+                long sentNanos = System.nanoTime();
+                if (!send(client, uri, requestBody)) {
+                    errors.incrementAndGet();
+                }
+                long endNanos = System.nanoTime();
+                responseTimes.recordValue(TimeUnit.NANOSECONDS.toMicros(endNanos - intendedNanos));
+                serviceTimes.recordValue(TimeUnit.NANOSECONDS.toMicros(endNanos - sentNanos));
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.HOURS);
+
+        return new Result(requests, errors.get(), System.nanoTime() - startNanos,
+                responseTimes.getIntervalHistogram(), serviceTimes.getIntervalHistogram());
+    }
+
+    private static boolean send(CloseableHttpClient client, URI uri, String requestBody) {
+        HttpGetWithBody request = new HttpGetWithBody(uri);
+        request.setEntity(new StringEntity(requestBody, ContentType.APPLICATION_JSON));
+        try {
+            HttpResponse response = client.execute(request);
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode() == 200;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int pick(Random random, List<Integer> values) {
+        return values.get(random.nextInt(values.size()));
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * The endpoint reads the request from the body of a GET request.
+     */
+    private static final class HttpGetWithBody extends HttpEntityEnclosingRequestBase {
+
+        private HttpGetWithBody(URI uri) {
+            setURI(uri);
+        }
+
+        @Override
+        public String getMethod() {
+            return "GET";
+        }
+    }
+
+    private static final class Result {
+
+        private final long requests;
+        private final long errors;
+        private final long elapsedNanos;
+        private final Histogram responseTimes;
+        private final Histogram serviceTimes;
+
+        private Result(long requests, long errors, long elapsedNanos, Histogram responseTimes, Histogram serviceTimes) {
+            this.requests = requests;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.responseTimes = responseTimes;
+            this.serviceTimes = serviceTimes;
+        }
+
+        private void print(double targetRate) {
+            double seconds = elapsedNanos / 1e9;
+            System.out.printf("Requests %d, errors %d, throughput %.1f/s (target %.1f/s)%n",
+                    requests, errors, requests / seconds, targetRate);
+            System.out.printf("%-14s %9s %9s %9s %9s %9s %9s%n", "latency ms", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+            printPercentiles("response time", responseTimes);
+            printPercentiles("service time", serviceTimes);
+        }
+
+        private void printPercentiles(String name, Histogram histogram) {
+            System.out.printf("%-14s %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", name,
+                    histogram.getValueAtPercentile(50) / 1000.0,
+                    histogram.getValueAtPercentile(90) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0,
+                    histogram.getValueAtPercentile(99.9) / 1000.0,
+                    histogram.getValueAtPercentile(99.99) / 1000.0,
+                    histogram.getMaxValue() / 1000.0);
+        }
+    }
+}
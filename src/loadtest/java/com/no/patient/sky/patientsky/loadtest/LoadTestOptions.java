@@ -0,0 +1,100 @@
+package com.no.patient.sky.patientsky.loadtest;
+
+import com.no.patient.sky.patientsky.benchmark.SyntheticCalendarGenerator;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Options of the load test, given as {@code -name value} pairs.
+ * Arguments starting with {@code --} are passed to the application, e.g. {@code --appointment.cache.max-weight=0}.
+ */
+@Getter
+class LoadTestOptions {
+
+    private long seed = 42;
+    private int calendars = 200;
+    private int appointments = 200000;
+    private SyntheticCalendarGenerator.TimeSlotPattern timeSlots = SyntheticCalendarGenerator.TimeSlotPattern.WORKING_HOURS;
+
+    private double rate = 100;
+    private int warmupSeconds = 10;
+    private int durationSeconds = 30;
+    private int connections = 64;
+
+    private List<Integer> requestCalendars = Arrays.asList(1, 10, 50);
+    private List<Integer> durations = Arrays.asList(15, 30, 60);
+    private List<Integer> periodDays = Arrays.asList(1, 7, 30);
+
+    private final List<String> applicationArgs = new ArrayList<>();
+
+    static LoadTestOptions parse(String[] args) {
+        LoadTestOptions options = new LoadTestOptions();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--")) {
+                options.applicationArgs.add(args[i]);
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value of " + args[i]);
+            }
+            options.set(args[i], args[++i]);
+        }
+        return options;
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "-seed":
+                seed = Long.parseLong(value);
+                break;
+            case "-calendars":
+                calendars = Integer.parseInt(value);
+                break;
+            case "-appointments":
+                appointments = Integer.parseInt(value);
+                break;
+            case "-timeSlots":
+                timeSlots = SyntheticCalendarGenerator.TimeSlotPattern.valueOf(value);
+                break;
+            case "-rate":
+                rate = Double.parseDouble(value);
+                break;
+            case "-warmup":
+                warmupSeconds = Integer.parseInt(value);
+                break;
+            case "-duration":
+                durationSeconds = Integer.parseInt(value);
+                break;
+            case "-connections":
+                connections = Integer.parseInt(value);
+                break;
+            case "-requestCalendars":
+                requestCalendars = parseList(value);
+                break;
+            case "-durations":
+                durations = parseList(value);
+                break;
+            case "-periodDays":
+                periodDays = parseList(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + name);
+        }
+    }
+
+    private static List<Integer> parseList(String value) {
+        return Arrays.stream(value.split(",")).map(String::trim).map(Integer::valueOf).collect(Collectors.toList());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("calendars=%d appointments=%d timeSlots=%s rate=%.1f/s warmup=%ds duration=%ds connections=%d"
+                        + " requestCalendars=%s durations=%s periodDays=%s applicationArgs=%s",
+                calendars, appointments, timeSlots, rate, warmupSeconds, durationSeconds, connections,
+                requestCalendars, durations, periodDays, applicationArgs);
+    }
+}
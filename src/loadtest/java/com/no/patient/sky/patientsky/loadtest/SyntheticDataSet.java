@@ -0,0 +1,67 @@
+package com.no.patient.sky.patientsky.loadtest;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.no.patient.sky.patientsky.dto.TimeSlot;
+import com.no.patient.sky.patientsky.index.CalendarData;
+import com.no.patient.sky.patientsky.index.CalendarIndex;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Writes generated calendars as json files in the format of the data directory, one file per calendar.
+ * Busy intervals of the index are written as appointments.
+ */
+final class SyntheticDataSet {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private SyntheticDataSet() {
+    }
+
+    static void write(Path directory, List<CalendarData> calendars) throws IOException {
+        Files.createDirectories(directory);
+        for (CalendarData calendarData : calendars) {
+            try (OutputStream outputStream = Files.newOutputStream(directory.resolve(calendarData.getCalendarId() + ".json"));
+                 JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream)) {
+                writeCalendar(generator, calendarData);
+            }
+        }
+    }
+
+    private static void writeCalendar(JsonGenerator generator, CalendarData calendarData) throws IOException {
+        generator.writeStartObject();
+
+        generator.writeArrayFieldStart("appointments");
+        CalendarIndex appointments = calendarData.getAppointments();
+        for (int i = 0; i < appointments.size(); i++) {
+            generator.writeStartObject();
+            generator.writeStringField("calendar_id", calendarData.getCalendarId());
+            generator.writeStringField("start", Instant.ofEpochSecond(appointments.getStart(i)).toString());
+            generator.writeStringField("end", Instant.ofEpochSecond(appointments.getEnd(i)).toString());
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+
+        generator.writeArrayFieldStart("timeslots");
+        for (TimeSlot timeSlot : calendarData.getTimeSlots()) {
+            generator.writeStartObject();
+            generator.writeStringField("id", timeSlot.getId());
+            generator.writeStringField("calendar_id", timeSlot.getCalendarId());
+            generator.writeStringField("type_id", timeSlot.getTypeId());
+            generator.writeStringField("start", timeSlot.getStart().toInstant().toString());
+            generator.writeStringField("end", timeSlot.getEnd().toInstant().toString());
+            generator.writeBooleanField("public_bookable", timeSlot.getPublicBookable());
+            generator.writeBooleanField("out_of_office", timeSlot.getOutOfOffice());
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+
+        generator.writeEndObject();
+    }
+}
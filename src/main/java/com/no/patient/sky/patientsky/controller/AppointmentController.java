@@ -1,28 +1,170 @@
 package com.no.patient.sky.patientsky.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.no.patient.sky.patientsky.metrics.TimedCborHttpMessageConverter;
+import com.no.patient.sky.patientsky.metrics.TimedSmileHttpMessageConverter;
 import com.no.patient.sky.patientsky.request.AppointmentRequest;
+import com.no.patient.sky.patientsky.request.BatchAppointmentRequest;
 import com.no.patient.sky.patientsky.response.AppointmentResponse;
+import com.no.patient.sky.patientsky.response.AvailabilityChange;
+import com.no.patient.sky.patientsky.response.BatchAppointmentResponse;
+import com.no.patient.sky.patientsky.response.CacheStatistics;
 import com.no.patient.sky.patientsky.service.AppointmentService;
+import com.no.patient.sky.patientsky.service.AvailabilityCache;
+import com.no.patient.sky.patientsky.service.AvailabilityFeed;
+import com.no.patient.sky.patientsky.service.AvailabilityListener;
+import com.no.patient.sky.patientsky.service.AvailabilityWriter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 @RestController
 public class AppointmentController {
 
+    private static final MediaType SMILE = MediaType.valueOf(TimedSmileHttpMessageConverter.APPLICATION_SMILE_VALUE);
+    private static final List<MediaType> STREAM_MEDIA_TYPES = Arrays.asList(MediaType.APPLICATION_JSON, SMILE, MediaType.APPLICATION_CBOR);
+
     @Autowired
     private AppointmentService appointmentService;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private TimedSmileHttpMessageConverter smileHttpMessageConverter;
+
+    @Autowired
+    private TimedCborHttpMessageConverter cborHttpMessageConverter;
+
+    @Autowired
+    private AvailabilityCache availabilityCache;
+
+    @Autowired
+    private AvailabilityFeed availabilityFeed;
+
     @RequestMapping(
             value = "/getAvailableSlot",
             method = RequestMethod.GET,
-            consumes = "application/json",
-            produces = "application/json")
+            consumes = {MediaType.APPLICATION_JSON_VALUE, TimedSmileHttpMessageConverter.APPLICATION_SMILE_VALUE, MediaType.APPLICATION_CBOR_VALUE},
+            produces = {MediaType.APPLICATION_JSON_VALUE, TimedSmileHttpMessageConverter.APPLICATION_SMILE_VALUE, MediaType.APPLICATION_CBOR_VALUE})
     public AppointmentResponse findAvailableSlot(@RequestBody @Validated AppointmentRequest request) {
         return appointmentService.getAvailableTimes(request);
     }
 
+    /**
+     * Same response as {@link #findAvailableSlot(AppointmentRequest)} written incrementally.
+     * Slots are generated while the response is streamed, so large periods do not have to fit in memory.
+     * The format is the first of json, Smile or CBOR accepted by the caller, json if the caller accepts any type.
+     */
+    @RequestMapping(
+            value = "/getAvailableSlot/stream",
+            method = RequestMethod.GET,
+            consumes = {MediaType.APPLICATION_JSON_VALUE, TimedSmileHttpMessageConverter.APPLICATION_SMILE_VALUE, MediaType.APPLICATION_CBOR_VALUE},
+            produces = {MediaType.APPLICATION_JSON_VALUE, TimedSmileHttpMessageConverter.APPLICATION_SMILE_VALUE, MediaType.APPLICATION_CBOR_VALUE})
+    public ResponseEntity<StreamingResponseBody> streamAvailableSlot(@RequestBody @Validated AppointmentRequest request,
+                                                                     @RequestHeader HttpHeaders headers) {
+        AvailabilityWriter availabilityWriter = appointmentService.streamAvailableTimes(request);
+        MediaType mediaType = getStreamMediaType(headers.getAccept());
+        ObjectMapper streamObjectMapper = getObjectMapper(mediaType);
+        StreamingResponseBody body = outputStream -> {
+            JsonGenerator generator = streamObjectMapper.getFactory().createGenerator(outputStream);
+            availabilityWriter.writeTo(generator);
+            generator.flush();
+        };
+        return ResponseEntity.ok().contentType(mediaType).body(body);
+    }
+
+    /**
+     * Many queries in one request, queries on the same calendar share one walk of its busy intervals.
+     */
+    @RequestMapping(
+            value = "/getAvailableSlot/batch",
+            method = RequestMethod.POST,
+            consumes = {MediaType.APPLICATION_JSON_VALUE, TimedSmileHttpMessageConverter.APPLICATION_SMILE_VALUE, MediaType.APPLICATION_CBOR_VALUE},
+            produces = {MediaType.APPLICATION_JSON_VALUE, TimedSmileHttpMessageConverter.APPLICATION_SMILE_VALUE, MediaType.APPLICATION_CBOR_VALUE})
+    public BatchAppointmentResponse findAvailableSlotBatch(@RequestBody @Validated BatchAppointmentRequest request) {
+        return appointmentService.getBatchAvailableTimes(request);
+    }
+
+    /**
+     * Subscription to the slots of a request as server sent events, instead of polling {@link #findAvailableSlot(AppointmentRequest)}.
+     * A {@code snapshot} event per calendar holds all its slots, a {@code change} event the slots added and removed
+     * when a reload or booking changes the calendar. The subscription ends when the client disconnects, after the feed timeout
+ * or when the client does not keep up with the changes.
+     */
+    @RequestMapping(
+            value = "/getAvailableSlot/subscribe",
+            method = RequestMethod.POST,
+            consumes = {MediaType.APPLICATION_JSON_VALUE, TimedSmileHttpMessageConverter.APPLICATION_SMILE_VALUE, MediaType.APPLICATION_CBOR_VALUE},
+            produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeAvailableSlot(@RequestBody @Validated AppointmentRequest request) {
+        SseEmitter emitter = new SseEmitter(availabilityFeed.getTimeout().toMillis());
+        AvailabilityFeed.Subscription subscription = appointmentService.subscribeAvailableTimes(request, new AvailabilityListener() {
+            @Override
+            public void onChange(AvailabilityChange change) throws IOException {
+                emitter.send(SseEmitter.event()
+                        .name(change.isSnapshot() ? "snapshot" : "change")
+                        .data(change, MediaType.APPLICATION_JSON));
+            }
+
+            @Override
+            public void onDropped() {
+                emitter.complete();
+            }
+        });
+        emitter.onCompletion(subscription::close);
+        return emitter;
+    }
+
+    @RequestMapping(
+            value = "/getAvailableSlot/cacheStatistics",
+            method = RequestMethod.GET,
+            produces = MediaType.APPLICATION_JSON_VALUE)
+    public CacheStatistics getCacheStatistics() {
+        return availabilityCache.getStatistics();
+    }
+
+    /**
+     * First format of the stream accepted by the caller, in order of quality and specificity.
+     *
+     * @param accept media types of accept header, empty if not given
+     * @return Json, Smile or CBOR
+     */
+    private MediaType getStreamMediaType(List<MediaType> accept) {
+        List<MediaType> acceptedMediaTypes = new ArrayList<>(accept);
+        MediaType.sortBySpecificityAndQuality(acceptedMediaTypes);
+        for (MediaType acceptedMediaType : acceptedMediaTypes) {
+            for (MediaType mediaType : STREAM_MEDIA_TYPES) {
+                if (acceptedMediaType.isCompatibleWith(mediaType)) {
+                    return mediaType;
+                }
+            }
+        }
+        return MediaType.APPLICATION_JSON;
+    }
+
+    private ObjectMapper getObjectMapper(MediaType mediaType) {
+        if (SMILE.equals(mediaType)) {
+            return smileHttpMessageConverter.getObjectMapper();
+        }
+        if (MediaType.APPLICATION_CBOR.equals(mediaType)) {
+            return cborHttpMessageConverter.getObjectMapper();
+        }
+        return objectMapper;
+    }
+
 }
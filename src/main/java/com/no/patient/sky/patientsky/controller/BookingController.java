@@ -0,0 +1,33 @@
+package com.no.patient.sky.patientsky.controller;
+
+import com.no.patient.sky.patientsky.metrics.TimedSmileHttpMessageConverter;
+import com.no.patient.sky.patientsky.request.BookingRequest;
+import com.no.patient.sky.patientsky.response.BookingResponse;
+import com.no.patient.sky.patientsky.service.BookingService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+public class BookingController {
+
+    @Autowired
+    private BookingService bookingService;
+
+    @RequestMapping(
+            value = "/bookAppointment",
+            method = RequestMethod.POST,
+            consumes = {MediaType.APPLICATION_JSON_VALUE, TimedSmileHttpMessageConverter.APPLICATION_SMILE_VALUE, MediaType.APPLICATION_CBOR_VALUE},
+            produces = {MediaType.APPLICATION_JSON_VALUE, TimedSmileHttpMessageConverter.APPLICATION_SMILE_VALUE, MediaType.APPLICATION_CBOR_VALUE})
+    @ResponseStatus(HttpStatus.CREATED)
+    public BookingResponse bookAppointment(@RequestBody @Validated BookingRequest request) {
+        return bookingService.bookAppointment(request);
+    }
+
+}
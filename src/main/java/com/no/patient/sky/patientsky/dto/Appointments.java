@@ -18,5 +18,8 @@ public class Appointments {
     @JsonProperty("timeslots")
     private List<TimeSlot> timeSlotList;
 
+    @JsonProperty("recurring_timeslots")
+    private List<RecurringTimeSlot> recurringTimeSlotList;
+
 }
 
@@ -0,0 +1,20 @@
+package com.no.patient.sky.patientsky.dto;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.UUID;
+
+/**
+ * Booked appointment as stored in the write ahead log, times are epoch seconds.
+ */
+@Builder
+@Getter
+public class Booking {
+
+    private final UUID bookingId;
+    private final String calendarId;
+    private final long startTime;
+    private final long endTime;
+
+}
@@ -0,0 +1,54 @@
+package com.no.patient.sky.patientsky.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.List;
+
+/**
+ * Weekly opening hours, bookable on the given days of week between start and end time in time zone of rule.
+ * An end time not after the start time ends on the next day. Dates of exceptions are skipped.
+ */
+@Getter
+@Setter
+public class RecurringTimeSlot {
+
+    private String id;
+
+    @JsonProperty("calendar_id")
+    private String calendarId;
+
+    @JsonProperty("type_id")
+    private String typeId;
+
+    @JsonProperty("days_of_week")
+    private List<DayOfWeek> daysOfWeek;
+
+    @JsonProperty("start_time")
+    private LocalTime startTime;
+
+    @JsonProperty("end_time")
+    private LocalTime endTime;
+
+    /**
+     * Zone Id like Europe/Oslo, UTC if not given.
+     */
+    @JsonProperty("time_zone")
+    private String timeZone;
+
+    @JsonProperty("valid_from")
+    private LocalDate validFrom;
+
+    @JsonProperty("valid_until")
+    private LocalDate validUntil;
+
+    private List<LocalDate> exceptions;
+
+    @JsonProperty("public_bookable")
+    private Boolean publicBookable;
+
+}
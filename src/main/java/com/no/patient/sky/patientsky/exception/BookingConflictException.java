@@ -0,0 +1,13 @@
+package com.no.patient.sky.patientsky.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.CONFLICT)
+public class BookingConflictException extends AppointmentException {
+
+    public BookingConflictException(String ExceptionMessage) {
+        super(ExceptionMessage);
+    }
+
+}
@@ -0,0 +1,13 @@
+package com.no.patient.sky.patientsky.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.UNPROCESSABLE_ENTITY)
+public class QueryBudgetExceededException extends AppointmentException {
+
+    public QueryBudgetExceededException(String ExceptionMessage) {
+        super(ExceptionMessage);
+    }
+
+}
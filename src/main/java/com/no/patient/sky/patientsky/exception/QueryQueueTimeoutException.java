@@ -0,0 +1,13 @@
+package com.no.patient.sky.patientsky.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class QueryQueueTimeoutException extends AppointmentException {
+
+    public QueryQueueTimeoutException(String ExceptionMessage) {
+        super(ExceptionMessage);
+    }
+
+}
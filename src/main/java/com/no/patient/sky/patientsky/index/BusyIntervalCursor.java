@@ -0,0 +1,24 @@
+package com.no.patient.sky.patientsky.index;
+
+/**
+ * Busy intervals read one by one in start order, so a walk that stops early does not visit the remaining intervals.
+ */
+public interface BusyIntervalCursor {
+
+    /**
+     * Move to the next interval.
+     *
+     * @return false if there are no more intervals
+     */
+    boolean next();
+
+    /**
+     * @return start of current interval in epoch seconds
+     */
+    long getStart();
+
+    /**
+     * @return end of current interval in epoch seconds
+     */
+    long getEnd();
+}
@@ -0,0 +1,141 @@
+package com.no.patient.sky.patientsky.index;
+
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Combines busy intervals of several calendars.
+ * The result is again a {@link CalendarIndex}, so free time of several calendars is walked the same way as for one.
+ */
+public final class BusyIntervalMerger {
+
+    private BusyIntervalMerger() {
+    }
+
+    /**
+     * Union of busy intervals of all calendars within time period.
+     * <p>
+     * The indexes are already sorted, so a k-way merge is done with one cursor per calendar in a priority queue.
+     * Only intervals overlapping the period are visited, cost is O(m log k) for m intervals in period and k calendars.
+     *
+     * @param indexes     busy intervals of calendars
+     * @param startSecond start of period in epoch seconds
+     * @param endSecond   end of period in epoch seconds
+     * @return Index with time where at least one calendar is busy
+     */
+    public static CalendarIndex union(List<CalendarIndex> indexes, long startSecond, long endSecond) {
+        MergingCursor mergingCursor = new MergingCursor(indexes, startSecond, endSecond);
+
+        long[] starts = new long[mergingCursor.capacity];
+        long[] ends = new long[mergingCursor.capacity];
+        int count = 0;
+        while (mergingCursor.next()) {
+            starts[count] = mergingCursor.start;
+            ends[count] = mergingCursor.end;
+            count++;
+        }
+        return CalendarIndex.ofMerged(starts, ends, count);
+    }
+
+    /**
+     * Same union as {@link #union(List, long, long)} merged while it is read,
+     * a walk that stops early only pays for the intervals it visits.
+     *
+     * @param indexes     busy intervals of calendars
+     * @param startSecond start of period in epoch seconds
+     * @param endSecond   end of period in epoch seconds
+     * @return Cursor over time where at least one calendar is busy
+     */
+    public static BusyIntervalCursor cursor(List<CalendarIndex> indexes, long startSecond, long endSecond) {
+        return new MergingCursor(indexes, startSecond, endSecond);
+    }
+
+    private static final class MergingCursor implements BusyIntervalCursor {
+
+        private final PriorityQueue<Cursor> queue;
+        private final int capacity;
+        private long start;
+        private long end;
+
+        private MergingCursor(List<CalendarIndex> indexes, long startSecond, long endSecond) {
+            queue = new PriorityQueue<>(Math.max(1, indexes.size()));
+            int intervals = 0;
+            for (CalendarIndex index : indexes) {
+                Cursor cursor = new Cursor(index, index.firstEndingAfter(startSecond), index.firstStartingAtOrAfter(endSecond));
+                if (cursor.hasNext()) {
+                    intervals += cursor.last - cursor.position;
+                    queue.add(cursor);
+                }
+            }
+            capacity = intervals;
+        }
+
+        /**
+         * Take the earliest interval of all calendars and extend it with every interval starting before it ends.
+         */
+        @Override
+        public boolean next() {
+            if (queue.isEmpty()) {
+                return false;
+            }
+
+            Cursor cursor = queue.poll();
+            start = cursor.start();
+            end = cursor.end();
+            advance(cursor);
+            while (!queue.isEmpty() && queue.peek().start() <= end) {
+                cursor = queue.poll();
+                end = Math.max(end, cursor.end());
+                advance(cursor);
+            }
+            return true;
+        }
+
+        @Override
+        public long getStart() {
+            return start;
+        }
+
+        @Override
+        public long getEnd() {
+            return end;
+        }
+
+        private void advance(Cursor cursor) {
+            cursor.position++;
+            if (cursor.hasNext()) {
+                queue.add(cursor);
+            }
+        }
+    }
+
+    private static final class Cursor implements Comparable<Cursor> {
+
+        private final CalendarIndex index;
+        private final int last;
+        private int position;
+
+        private Cursor(CalendarIndex index, int position, int last) {
+            this.index = index;
+            this.position = position;
+            this.last = last;
+        }
+
+        private boolean hasNext() {
+            return position < last;
+        }
+
+        private long start() {
+            return index.getStart(position);
+        }
+
+        private long end() {
+            return index.getEnd(position);
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return Long.compare(start(), other.start());
+        }
+    }
+}
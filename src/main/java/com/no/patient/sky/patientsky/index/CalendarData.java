@@ -0,0 +1,494 @@
+package com.no.patient.sky.patientsky.index;
+
+import com.no.patient.sky.patientsky.dto.RecurringTimeSlot;
+import com.no.patient.sky.patientsky.dto.TimeSlot;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Everything kept in memory for one calendar after its json file is loaded.
+ * <p>
+ * Bookable time is the union of timeslots that are public bookable and not out of office. It is complemented
+ * and merged with the busy intervals when the calendar is loaded, so availability is walked on a single index
+ * of unavailable time and working hours add no cost per request. A calendar without timeslots is bookable all the time.
+ * <p>
+ * Recurring timeslots are weekly rules and have no end, so they can not be complemented at load time.
+ * They are expanded for the weeks of each lookup by {@link RecurringAvailability}, only lookups with a period include them.
+ * <p>
+ * Bookings are kept separately from the appointments of the file so they survive a reload of the file.
+ * Instances are immutable, a booking creates a new instance.
+ * <p>
+ * If the appointments are off heap, the intervals derived from them are moved off heap as well.
+ * Only bookings, which are few compared to appointments, stay on the heap.
+ * <p>
+ * With {@link #withSegments(CalendarSegments)} the appointments are only kept in monthly segments on disk. They are
+ * then not part of the precomputed indexes, lookups with a period read the segments of its months.
+ * <p>
+ * Calendars on the heap and not in segments also keep their busy and unavailable time as {@link FreeIntervalTree}s,
+ * built on the first booking or free time lookup. A booking then adds its interval to the trees in logarithmic time
+ * instead of merging all indexes again. The indexes of a booked calendar are only built from the trees if they are read
+ * without a period, lookups with a period take the intervals of the period from the trees.
+ */
+@Getter
+public class CalendarData {
+
+    private static final long DAY_SECONDS = 86400;
+
+    private final String calendarId;
+    private final CalendarIndex appointments;
+    private final List<TimeSlot> timeSlots;
+    private final List<RecurringTimeSlot> recurringTimeSlots;
+    private final CalendarIndex bookings;
+
+    /**
+     * Increased each time data of the calendar is published, used to invalidate results computed from older data.
+     */
+    private final long generation;
+
+    @Getter(AccessLevel.NONE)
+    private final CalendarIndex closedIntervals;
+
+    @Getter(AccessLevel.NONE)
+    private final Map<String, CalendarIndex> closedIntervalsByType;
+
+    /**
+     * Precomputed busy and unavailable indexes, null until read if calendar was booked with trees.
+     */
+    @Getter(AccessLevel.NONE)
+    private volatile UnavailableIndexes indexes;
+
+    /**
+     * Busy and unavailable time as trees, null until first booking or free time lookup and for calendars
+     * off heap or in segments.
+     */
+    @Getter(AccessLevel.NONE)
+    private volatile UnavailableTrees trees;
+
+    @Getter(AccessLevel.NONE)
+    private final FreeTimeBitmaps freeTimeBitmaps;
+
+    /**
+     * Bookable rules with expanded weeks, null if calendar has no bookable recurring timeslot.
+     */
+    @Getter(AccessLevel.NONE)
+    private final RecurringAvailability recurringAvailability;
+
+    /**
+     * Appointments on disk, null if they are in {@link #appointments}.
+     */
+    @Getter(AccessLevel.NONE)
+    private final CalendarSegments segments;
+
+    private CalendarData(String calendarId, CalendarIndex appointments, CalendarSegments segments, List<TimeSlot> timeSlots,
+                         List<RecurringTimeSlot> recurringTimeSlots, CalendarIndex bookings,
+                         CalendarIndex closedIntervals, Map<String, CalendarIndex> closedIntervalsByType,
+                         RecurringAvailability recurringAvailability, FreeTimeBitmaps freeTimeBitmaps) {
+        this.calendarId = calendarId;
+        this.appointments = appointments;
+        this.segments = segments;
+        this.timeSlots = timeSlots;
+        this.recurringTimeSlots = recurringTimeSlots;
+        this.bookings = bookings;
+        this.generation = 0;
+        this.closedIntervals = closedIntervals;
+        this.closedIntervalsByType = closedIntervalsByType;
+        this.recurringAvailability = recurringAvailability;
+        this.freeTimeBitmaps = freeTimeBitmaps;
+
+        boolean offHeap = appointments.isOffHeap() || closedIntervals != null && closedIntervals.isOffHeap();
+        CalendarIndex busyIntervals = bookings.size() == 0 ? appointments : union(appointments, bookings, offHeap);
+        CalendarIndex unavailableIntervals = closedIntervals == null ? busyIntervals : union(busyIntervals, closedIntervals, offHeap);
+
+        Map<String, CalendarIndex> unavailableByType = new HashMap<>();
+        closedIntervalsByType.forEach((typeId, closed) -> unavailableByType.put(typeId, union(busyIntervals, closed, offHeap)));
+        this.indexes = new UnavailableIndexes(busyIntervals, unavailableIntervals, Collections.unmodifiableMap(unavailableByType));
+    }
+
+    private CalendarData(CalendarData source, long generation) {
+        this(source, source.bookings, generation, source.indexes, source.trees, source.freeTimeBitmaps);
+    }
+
+    private CalendarData(CalendarData source, CalendarIndex bookings, long generation, UnavailableIndexes indexes,
+                         UnavailableTrees trees, FreeTimeBitmaps freeTimeBitmaps) {
+        this.calendarId = source.calendarId;
+        this.appointments = source.appointments;
+        this.segments = source.segments;
+        this.timeSlots = source.timeSlots;
+        this.recurringTimeSlots = source.recurringTimeSlots;
+        this.bookings = bookings;
+        this.generation = generation;
+        this.closedIntervals = source.closedIntervals;
+        this.closedIntervalsByType = source.closedIntervalsByType;
+        this.recurringAvailability = source.recurringAvailability;
+        this.freeTimeBitmaps = freeTimeBitmaps;
+        this.indexes = indexes;
+        this.trees = trees;
+    }
+
+    /**
+     * Create calendar data and precompute bookable time of timeslots, in total and for each type.
+     *
+     * @param calendarId
+     * @param appointments busy intervals of appointments in file
+     * @param timeSlots    timeslots of calendar
+     * @return Calendar data without bookings
+     */
+    public static CalendarData of(String calendarId, CalendarIndex appointments, List<TimeSlot> timeSlots) {
+        return of(calendarId, appointments, timeSlots, Collections.emptyList());
+    }
+
+    /**
+     * Create calendar data with timeslots and recurring timeslots.
+     * Bookable time of timeslots is precomputed, rules are only checked and kept for expansion on lookup.
+     *
+     * @param calendarId
+     * @param appointments       busy intervals of appointments in file
+     * @param timeSlots          timeslots of calendar
+     * @param recurringTimeSlots weekly rules of calendar
+     * @return Calendar data without bookings
+     */
+    public static CalendarData of(String calendarId, CalendarIndex appointments, List<TimeSlot> timeSlots,
+                                  List<RecurringTimeSlot> recurringTimeSlots) {
+        if (timeSlots.isEmpty() && recurringTimeSlots.isEmpty()) {
+            return new CalendarData(calendarId, appointments, null, timeSlots, recurringTimeSlots, CalendarIndex.empty(), null,
+                    Collections.emptyMap(), null, new FreeTimeBitmaps());
+        }
+
+        Map<String, IntervalColumns> bookableByType = new HashMap<>();
+        IntervalColumns bookable = new IntervalColumns(timeSlots.size());
+        for (TimeSlot timeSlot : timeSlots) {
+            if (isBookable(timeSlot)) {
+                long start = timeSlot.getStart().getTime() / 1000;
+                long end = timeSlot.getEnd().getTime() / 1000;
+                bookable.add(start, end);
+                if (timeSlot.getTypeId() != null) {
+                    bookableByType.computeIfAbsent(timeSlot.getTypeId(), typeId -> new IntervalColumns(timeSlots.size())).add(start, end);
+                }
+            }
+        }
+
+        Map<String, CalendarIndex> bookableIndexByType = new HashMap<>();
+        Map<String, CalendarIndex> closedByType = new HashMap<>();
+        bookableByType.forEach((typeId, columns) -> bookableIndexByType.put(typeId, columns.toIndex()));
+        bookableIndexByType.forEach((typeId, index) -> closedByType.put(typeId, index.complement()));
+        CalendarIndex bookableIndex = bookable.toIndex();
+
+        List<RecurringTimeSlot> bookableRules = recurringTimeSlots.stream().filter(CalendarData::isBookable).collect(Collectors.toList());
+        RecurringAvailability recurringAvailability = bookableRules.isEmpty()
+                ? null : new RecurringAvailability(bookableRules, bookableIndex, bookableIndexByType);
+        return new CalendarData(calendarId, appointments, null, timeSlots, recurringTimeSlots, CalendarIndex.empty(),
+                bookableIndex.complement(), Collections.unmodifiableMap(closedByType), recurringAvailability, new FreeTimeBitmaps());
+    }
+
+    /**
+     * Same calendar with appointments and all intervals derived from them in direct memory outside of the heap.
+     */
+    public CalendarData toOffHeap() {
+        if (appointments.isOffHeap()) {
+            return this;
+        }
+        Map<String, CalendarIndex> closedByType = new HashMap<>();
+        closedIntervalsByType.forEach((typeId, closed) -> closedByType.put(typeId, closed.toOffHeap()));
+        return new CalendarData(calendarId, appointments.toOffHeap(), segments, timeSlots, recurringTimeSlots, bookings,
+                closedIntervals == null ? null : closedIntervals.toOffHeap(), Collections.unmodifiableMap(closedByType),
+                recurringAvailability, freeTimeBitmaps).withGeneration(generation);
+    }
+
+    /**
+     * Same calendar with booked interval added. Free time bitmaps of days the booking does not touch are kept.
+     * With trees the interval is added to each tree and the indexes are built again only when they are read.
+     */
+    public CalendarData withBooking(long start, long end) {
+        FreeTimeBitmaps bookedFreeTimeBitmaps = end > start ? freeTimeBitmaps.withoutDays(start, end) : freeTimeBitmaps;
+        UnavailableTrees currentTrees = getTrees();
+        if (currentTrees == null) {
+            return new CalendarData(calendarId, appointments, segments, timeSlots, recurringTimeSlots, bookings.withInterval(start, end),
+                    closedIntervals, closedIntervalsByType, recurringAvailability, bookedFreeTimeBitmaps);
+        }
+        return new CalendarData(this, bookings.withInterval(start, end), generation, null,
+                currentTrees.withInterval(start, end), bookedFreeTimeBitmaps);
+    }
+
+    /**
+     * Same calendar with given bookings, used to keep bookings when the file is reloaded.
+     */
+    public CalendarData withBookings(CalendarIndex bookings) {
+        return new CalendarData(calendarId, appointments, segments, timeSlots, recurringTimeSlots, bookings, closedIntervals,
+                closedIntervalsByType, recurringAvailability, new FreeTimeBitmaps());
+    }
+
+    /**
+     * Same calendar with appointments only in segments on disk, the appointments written to them are released.
+     *
+     * @param segments segments written from {@link #getAppointments()}
+     * @return Calendar data reading appointments from segments
+     */
+    public CalendarData withSegments(CalendarSegments segments) {
+        return new CalendarData(calendarId, CalendarIndex.empty(), segments, timeSlots, recurringTimeSlots, bookings, closedIntervals,
+                closedIntervalsByType, recurringAvailability, freeTimeBitmaps).withGeneration(generation);
+    }
+
+    /**
+     * Number of appointment intervals, in memory or in segments.
+     */
+    public int getAppointmentCount() {
+        return segments == null ? appointments.size() : segments.size();
+    }
+
+    /**
+     * Same calendar published as given generation.
+     */
+    public CalendarData withGeneration(long generation) {
+        return new CalendarData(this, generation);
+    }
+
+    /**
+     * Appointments and bookings.
+     */
+    public CalendarIndex getBusyIntervals() {
+        return getIndexes().busyIntervals;
+    }
+
+    /**
+     * Busy intervals and time outside bookable timeslots of any type.
+     */
+    public CalendarIndex getUnavailableIntervals() {
+        return getIndexes().unavailableIntervals;
+    }
+
+    /**
+     * Unavailable time for appointments of a timeslot type.
+     * If calendar has no timeslots the type is ignored, if calendar has no bookable timeslot of type it is never available.
+     * Recurring timeslots and appointments in segments are not included, see {@link #getUnavailableIntervals(String, long, long)}.
+     *
+     * @param typeId type of timeslot or null for any type
+     * @return Index of unavailable time
+     */
+    public CalendarIndex getUnavailableIntervals(String typeId) {
+        UnavailableIndexes currentIndexes = getIndexes();
+        if (typeId == null || closedIntervals == null) {
+            return currentIndexes.unavailableIntervals;
+        }
+        return currentIndexes.unavailableIntervalsByType.getOrDefault(typeId, CalendarIndex.always());
+    }
+
+    /**
+     * Unavailable time for appointments of a timeslot type within period, including recurring timeslots.
+     * Without recurring timeslots and segments this is the precomputed index of {@link #getUnavailableIntervals(String)}.
+     * Otherwise the rules are expanded for the weeks of period and the segments of its months are read, they are merged
+     * with the busy intervals in period. The index then only holds intervals overlapping period and must not be used outside of it.
+     *
+     * @param typeId      type of timeslot or null for any type
+     * @param startSecond start of period in epoch seconds
+     * @param endSecond   end of period in epoch seconds
+     * @return Index of unavailable time
+     */
+    public CalendarIndex getUnavailableIntervals(String typeId, long startSecond, long endSecond) {
+        UnavailableIndexes currentIndexes = indexes;
+        if (recurringAvailability == null && segments == null) {
+            if (currentIndexes == null) {
+                FreeIntervalTree tree = trees.getUnavailable(typeId, closedIntervals != null);
+                return tree == null ? CalendarIndex.always() : tree.toIndex(startSecond, endSecond);
+            }
+            return getUnavailableIntervals(typeId);
+        }
+
+        List<CalendarIndex> periodIndexes = new ArrayList<>();
+        if (recurringAvailability == null) {
+            periodIndexes.add(getUnavailableIntervals(typeId));
+        } else {
+            periodIndexes.add(currentIndexes == null ? trees.busy.toIndex(startSecond, endSecond) : currentIndexes.busyIntervals);
+            periodIndexes.add(recurringAvailability.getClosedIntervals(typeId, startSecond, endSecond));
+        }
+        if (segments != null) {
+            periodIndexes.addAll(segments.getIntervals(startSecond, endSecond));
+        }
+        return BusyIntervalMerger.union(periodIndexes, startSecond, endSecond);
+    }
+
+    /**
+     * Unavailable time of period for a walk of free time of at least given length, see {@link FreeIntervalTree#cursor(long, long, long)}.
+     * Calendars with trees skip free time shorter than the length in logarithmic time, otherwise it is the cursor of
+     * the unavailable intervals of period. Trees are built on the first lookup of a calendar on the heap.
+     *
+     * @param typeId         type of timeslot or null for any type
+     * @param startSecond    start of period in epoch seconds
+     * @param endSecond      end of period in epoch seconds
+     * @param minFreeSeconds length of free time that may not be folded into unavailable time, at most the slot duration
+     * @return Cursor of unavailable time
+     */
+    public BusyIntervalCursor getUnavailableCursor(String typeId, long startSecond, long endSecond, long minFreeSeconds) {
+        UnavailableTrees currentTrees = recurringAvailability == null ? getTrees() : null;
+        if (currentTrees == null) {
+            return getUnavailableIntervals(typeId, startSecond, endSecond).cursor(startSecond, endSecond);
+        }
+        FreeIntervalTree tree = currentTrees.getUnavailable(typeId, closedIntervals != null);
+        return tree == null
+                ? CalendarIndex.always().cursor(startSecond, endSecond)
+                : tree.cursor(startSecond, endSecond, minFreeSeconds);
+    }
+
+    /**
+     * Free time of a UTC day on the grid of {@link FreeTimeBitmaps}, built on first use.
+     *
+     * @param typeId type of timeslot or null for any type
+     * @param day    days since epoch
+     * @return Bitmap of free cells, not to be modified, or null if unavailable time of day is not on the grid
+     */
+    public long[] getFreeDay(String typeId, long day) {
+        return freeTimeBitmaps.getDay(typeId, day, getUnavailableIntervals(typeId, day * DAY_SECONDS, (day + 1) * DAY_SECONDS));
+    }
+
+    /**
+     * Indexes of calendar, built from the trees on first read after a booking.
+     * Concurrent readers may both build them, they build the same indexes.
+     */
+    private UnavailableIndexes getIndexes() {
+        UnavailableIndexes currentIndexes = indexes;
+        if (currentIndexes == null) {
+            currentIndexes = trees.toIndexes();
+            indexes = currentIndexes;
+        }
+        return currentIndexes;
+    }
+
+    /**
+     * Trees of calendar, built from the indexes on first use.
+     *
+     * @return Trees or null if calendar is off heap or in segments
+     */
+    private UnavailableTrees getTrees() {
+        UnavailableTrees currentTrees = trees;
+        if (currentTrees == null && segments == null && !appointments.isOffHeap()) {
+            currentTrees = UnavailableTrees.of(indexes);
+            trees = currentTrees;
+        }
+        return currentTrees;
+    }
+
+    private static boolean isBookable(RecurringTimeSlot recurringTimeSlot) {
+        return recurringTimeSlot.getDaysOfWeek() != null && recurringTimeSlot.getStartTime() != null
+                && recurringTimeSlot.getEndTime() != null && !Boolean.FALSE.equals(recurringTimeSlot.getPublicBookable());
+    }
+
+    private static boolean isBookable(TimeSlot timeSlot) {
+        return timeSlot.getStart() != null && timeSlot.getEnd() != null
+                && !Boolean.FALSE.equals(timeSlot.getPublicBookable())
+                && !Boolean.TRUE.equals(timeSlot.getOutOfOffice());
+    }
+
+    private static CalendarIndex union(CalendarIndex first, CalendarIndex second, boolean offHeap) {
+        CalendarIndex union = BusyIntervalMerger.union(Arrays.asList(first, second), Long.MIN_VALUE, Long.MAX_VALUE);
+        return offHeap ? union.toOffHeap() : union;
+    }
+
+    /**
+     * Busy and unavailable indexes derived from appointments, bookings and timeslots.
+     */
+    private static final class UnavailableIndexes {
+
+        private final CalendarIndex busyIntervals;
+        private final CalendarIndex unavailableIntervals;
+        private final Map<String, CalendarIndex> unavailableIntervalsByType;
+
+        private UnavailableIndexes(CalendarIndex busyIntervals, CalendarIndex unavailableIntervals,
+                                   Map<String, CalendarIndex> unavailableIntervalsByType) {
+            this.busyIntervals = busyIntervals;
+            this.unavailableIntervals = unavailableIntervals;
+            this.unavailableIntervalsByType = unavailableIntervalsByType;
+        }
+    }
+
+    /**
+     * Same time as {@link UnavailableIndexes} in trees. Without timeslots unavailable time is the busy tree.
+     */
+    private static final class UnavailableTrees {
+
+        private final FreeIntervalTree busy;
+        private final FreeIntervalTree unavailable;
+        private final Map<String, FreeIntervalTree> unavailableByType;
+
+        private UnavailableTrees(FreeIntervalTree busy, FreeIntervalTree unavailable, Map<String, FreeIntervalTree> unavailableByType) {
+            this.busy = busy;
+            this.unavailable = unavailable;
+            this.unavailableByType = unavailableByType;
+        }
+
+        private static UnavailableTrees of(UnavailableIndexes indexes) {
+            FreeIntervalTree busy = FreeIntervalTree.of(indexes.busyIntervals);
+            FreeIntervalTree unavailable = indexes.unavailableIntervals == indexes.busyIntervals
+                    ? busy : FreeIntervalTree.of(indexes.unavailableIntervals);
+            Map<String, FreeIntervalTree> unavailableByType = new HashMap<>();
+            indexes.unavailableIntervalsByType.forEach((typeId, index) -> unavailableByType.put(typeId, FreeIntervalTree.of(index)));
+            return new UnavailableTrees(busy, unavailable, unavailableByType);
+        }
+
+        /**
+         * Trees with interval added to each of them, in logarithmic time per tree.
+         */
+        private UnavailableTrees withInterval(long start, long end) {
+            FreeIntervalTree bookedBusy = busy.withInterval(start, end);
+            FreeIntervalTree bookedUnavailable = unavailable == busy ? bookedBusy : unavailable.withInterval(start, end);
+            Map<String, FreeIntervalTree> bookedByType = new HashMap<>();
+            unavailableByType.forEach((typeId, tree) -> bookedByType.put(typeId, tree.withInterval(start, end)));
+            return new UnavailableTrees(bookedBusy, bookedUnavailable, bookedByType);
+        }
+
+        /**
+         * @param typeId       type of timeslot or null for any type
+         * @param hasTimeSlots false if calendar has no timeslots, the type is then ignored
+         * @return Tree of unavailable time or null if calendar has no bookable timeslot of type
+         */
+        private FreeIntervalTree getUnavailable(String typeId, boolean hasTimeSlots) {
+            if (typeId == null || !hasTimeSlots) {
+                return unavailable;
+            }
+            return unavailableByType.get(typeId);
+        }
+
+        private UnavailableIndexes toIndexes() {
+            CalendarIndex busyIntervals = busy.toIndex();
+            CalendarIndex unavailableIntervals = unavailable == busy ? busyIntervals : unavailable.toIndex();
+            Map<String, CalendarIndex> unavailableIntervalsByType = new HashMap<>();
+            unavailableByType.forEach((typeId, tree) -> unavailableIntervalsByType.put(typeId, tree.toIndex()));
+            return new UnavailableIndexes(busyIntervals, unavailableIntervals, Collections.unmodifiableMap(unavailableIntervalsByType));
+        }
+    }
+
+    /**
+     * Growable pair of start and end columns.
+     */
+    static final class IntervalColumns {
+
+        private long[] starts;
+        private long[] ends;
+        private int count;
+
+        IntervalColumns(int capacity) {
+            starts = new long[Math.max(1, capacity)];
+            ends = new long[Math.max(1, capacity)];
+        }
+
+        void add(long start, long end) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+
+        CalendarIndex toIndex() {
+            return CalendarIndex.fromIntervals(starts, ends, count);
+        }
+    }
+}
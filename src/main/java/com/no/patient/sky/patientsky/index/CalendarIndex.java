@@ -0,0 +1,381 @@
+package com.no.patient.sky.patientsky.index;
+
+import com.no.patient.sky.patientsky.dto.Appointment;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable index of the busy intervals of one calendar.
+ * <p>
+ * Intervals are sorted by start time and overlapping or touching intervals are merged on creation,
+ * so both the start and the end column are strictly increasing. This allows range queries to be
+ * answered by binary search without any per request sorting or filtering.
+ * All times are stored as epoch seconds.
+ * <p>
+ * The columns are either long arrays on the heap or {@link LongBuffer}s outside of the heap, in direct memory or
+ * in a memory mapped snapshot. Off heap columns take no heap per interval, so the heap needed does not grow
+ * with the number of appointments. Indexes derived from an off heap index are on the heap until moved with {@link #toOffHeap()}.
+ */
+public final class CalendarIndex {
+
+    /**
+     * Bounds used for open ended intervals, the range of {@link java.time.Instant}.
+     */
+    public static final long MIN_EPOCH_SECOND = java.time.Instant.MIN.getEpochSecond();
+    public static final long MAX_EPOCH_SECOND = java.time.Instant.MAX.getEpochSecond();
+
+    private static final CalendarIndex EMPTY = new CalendarIndex(new long[0], new long[0]);
+    private static final CalendarIndex ALWAYS = new CalendarIndex(new long[]{MIN_EPOCH_SECOND}, new long[]{MAX_EPOCH_SECOND});
+
+    private final long[] starts;
+    private final long[] ends;
+    private final LongBuffer startColumn;
+    private final LongBuffer endColumn;
+    private final int size;
+
+    private CalendarIndex(long[] starts, long[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+        this.startColumn = null;
+        this.endColumn = null;
+        this.size = starts.length;
+    }
+
+    private CalendarIndex(LongBuffer startColumn, LongBuffer endColumn) {
+        this.starts = null;
+        this.ends = null;
+        this.startColumn = startColumn;
+        this.endColumn = endColumn;
+        this.size = startColumn.remaining();
+    }
+
+    public static CalendarIndex empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Index with one interval covering all time.
+     */
+    public static CalendarIndex always() {
+        return ALWAYS;
+    }
+
+    /**
+     * Build index from appointments of calendar.
+     * Appointments belonging to other calendar or without a valid start and end time are skipped.
+     *
+     * @param calendarId
+     * @param appointments
+     * @return Index of busy intervals
+     */
+    public static CalendarIndex of(String calendarId, List<Appointment> appointments) {
+        if (appointments == null || appointments.isEmpty()) {
+            return EMPTY;
+        }
+
+        long[] starts = new long[appointments.size()];
+        long[] ends = new long[appointments.size()];
+        int count = 0;
+        for (Appointment appointment : appointments) {
+            if (calendarId.equals(appointment.getCalendarId())
+                    && appointment.getStartTime() != null && appointment.getEndTime() != null) {
+                starts[count] = appointment.getStartTime().getTime() / 1000;
+                ends[count] = appointment.getEndTime().getTime() / 1000;
+                count++;
+            }
+        }
+        return fromIntervals(starts, ends, count);
+    }
+
+    /**
+     * Build index from unsorted intervals.
+     * Empty or inverted intervals are dropped, remaining are sorted by start and merged.
+     * The arrays passed are not modified.
+     *
+     * @param starts epoch seconds
+     * @param ends   epoch seconds
+     * @param count  number of intervals used from arrays
+     * @return Index of busy intervals
+     */
+    public static CalendarIndex fromIntervals(long[] starts, long[] ends, int count) {
+        long[][] sorted = sortByStart(starts, ends, count);
+        long[] sortedStarts = sorted[0];
+        long[] sortedEnds = sorted[1];
+
+        int merged = 0;
+        for (int i = 0; i < sortedStarts.length; i++) {
+            if (merged > 0 && sortedStarts[i] <= sortedEnds[merged - 1]) {
+                sortedEnds[merged - 1] = Math.max(sortedEnds[merged - 1], sortedEnds[i]);
+            } else {
+                sortedStarts[merged] = sortedStarts[i];
+                sortedEnds[merged] = sortedEnds[i];
+                merged++;
+            }
+        }
+        if (merged == 0) {
+            return EMPTY;
+        }
+        return new CalendarIndex(Arrays.copyOf(sortedStarts, merged), Arrays.copyOf(sortedEnds, merged));
+    }
+
+    /**
+     * Wrap intervals which are already sorted and merged, arrays are copied to given count.
+     */
+    static CalendarIndex ofMerged(long[] starts, long[] ends, int count) {
+        if (count == 0) {
+            return EMPTY;
+        }
+        return new CalendarIndex(Arrays.copyOf(starts, count), Arrays.copyOf(ends, count));
+    }
+
+    /**
+     * Wrap off heap columns which are already sorted and merged, e.g. of a memory mapped snapshot.
+     * The columns are used from their position to their limit and are not copied.
+     *
+     * @param startColumn epoch seconds
+     * @param endColumn   epoch seconds, same number as starts
+     * @return Index reading the columns
+     */
+    public static CalendarIndex ofMergedColumns(LongBuffer startColumn, LongBuffer endColumn) {
+        if (startColumn.remaining() != endColumn.remaining()) {
+            throw new IllegalArgumentException("Start and end columns differ in length");
+        }
+        if (!startColumn.hasRemaining()) {
+            return EMPTY;
+        }
+        return new CalendarIndex(startColumn.slice(), endColumn.slice());
+    }
+
+    /**
+     * Same intervals in direct memory outside of the heap.
+     *
+     * @return This index if it is empty or already off heap, otherwise a copy
+     */
+    public CalendarIndex toOffHeap() {
+        if (size == 0 || isOffHeap()) {
+            return this;
+        }
+        LongBuffer offHeapStarts = ByteBuffer.allocateDirect(size * Long.BYTES).asLongBuffer().put(starts);
+        LongBuffer offHeapEnds = ByteBuffer.allocateDirect(size * Long.BYTES).asLongBuffer().put(ends);
+        offHeapStarts.flip();
+        offHeapEnds.flip();
+        return new CalendarIndex(offHeapStarts, offHeapEnds);
+    }
+
+    public boolean isOffHeap() {
+        return startColumn != null;
+    }
+
+    /**
+     * New index with given interval added, the interval is merged with intervals it overlaps or touches.
+     * This index is not modified, so readers of it are not affected.
+     *
+     * @param start epoch seconds
+     * @param end   epoch seconds
+     * @return Index including interval
+     */
+    public CalendarIndex withInterval(long start, long end) {
+        if (end <= start) {
+            return this;
+        }
+
+        int first = firstEndingAfter(start - 1);
+        int last = firstStartingAtOrAfter(end + 1);
+        long mergedStart = first < last ? Math.min(start, getStart(first)) : start;
+        long mergedEnd = first < last ? Math.max(end, getEnd(last - 1)) : end;
+
+        int newSize = size - (last - first) + 1;
+        long[] newStarts = new long[newSize];
+        long[] newEnds = new long[newSize];
+        copyColumns(0, first, newStarts, newEnds, 0);
+        newStarts[first] = mergedStart;
+        newEnds[first] = mergedEnd;
+        copyColumns(last, size, newStarts, newEnds, first + 1);
+        return new CalendarIndex(newStarts, newEnds);
+    }
+
+    /**
+     * Index of the time not covered by this index, between {@link #MIN_EPOCH_SECOND} and {@link #MAX_EPOCH_SECOND}.
+     *
+     * @return Index of gaps between intervals
+     */
+    public CalendarIndex complement() {
+        long[] gapStarts = new long[size + 1];
+        long[] gapEnds = new long[size + 1];
+        int count = 0;
+        long previousEnd = MIN_EPOCH_SECOND;
+        for (int i = 0; i <= size; i++) {
+            long nextStart = i < size ? getStart(i) : MAX_EPOCH_SECOND;
+            if (nextStart > previousEnd) {
+                gapStarts[count] = previousEnd;
+                gapEnds[count] = nextStart;
+                count++;
+            }
+            if (i < size) {
+                previousEnd = Math.max(previousEnd, getEnd(i));
+            }
+        }
+        return ofMerged(gapStarts, gapEnds, count);
+    }
+
+    /**
+     * Check if any interval overlaps given period.
+     *
+     * @param start epoch seconds
+     * @param end   epoch seconds
+     * @return true if calendar is busy at some time within period
+     */
+    public boolean overlaps(long start, long end) {
+        return firstEndingAfter(start) < firstStartingAtOrAfter(end);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getStart(int position) {
+        return starts != null ? starts[position] : startColumn.get(position);
+    }
+
+    public long getEnd(int position) {
+        return ends != null ? ends[position] : endColumn.get(position);
+    }
+
+    /**
+     * Binary search for the first interval which ends after given time.
+     * This is the first interval which can overlap a period starting at given time.
+     *
+     * @param epochSecond
+     * @return position of interval or {@link #size()} if there is none
+     */
+    public int firstEndingAfter(long epochSecond) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getEnd(middle) <= epochSecond) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Binary search for the first interval which starts at or after given time.
+     * All intervals before this position can overlap a period ending at given time.
+     *
+     * @param epochSecond
+     * @return position of interval or {@link #size()} if there is none
+     */
+    public int firstStartingAtOrAfter(long epochSecond) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getStart(middle) < epochSecond) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Cursor over the intervals overlapping given period.
+     *
+     * @param startSecond start of period in epoch seconds
+     * @param endSecond   end of period in epoch seconds
+     * @return Cursor before the first interval of period
+     */
+    public BusyIntervalCursor cursor(long startSecond, long endSecond) {
+        int first = firstEndingAfter(startSecond);
+        int last = firstStartingAtOrAfter(endSecond);
+        return new BusyIntervalCursor() {
+
+            private int position = first - 1;
+
+            @Override
+            public boolean next() {
+                if (position + 1 >= last) {
+                    position = last;
+                    return false;
+                }
+                position++;
+                return true;
+            }
+
+            @Override
+            public long getStart() {
+                return CalendarIndex.this.getStart(position);
+            }
+
+            @Override
+            public long getEnd() {
+                return CalendarIndex.this.getEnd(position);
+            }
+        };
+    }
+
+    /**
+     * Copy intervals from position to position (exclusive) into arrays at destination position.
+     */
+    private void copyColumns(int from, int to, long[] destinationStarts, long[] destinationEnds, int destinationPosition) {
+        if (starts != null) {
+            System.arraycopy(starts, from, destinationStarts, destinationPosition, to - from);
+            System.arraycopy(ends, from, destinationEnds, destinationPosition, to - from);
+        } else {
+            LongBuffer startsToCopy = startColumn.duplicate();
+            LongBuffer endsToCopy = endColumn.duplicate();
+            startsToCopy.position(from);
+            endsToCopy.position(from);
+            startsToCopy.get(destinationStarts, destinationPosition, to - from);
+            endsToCopy.get(destinationEnds, destinationPosition, to - from);
+        }
+    }
+
+    /**
+     * Sort intervals by start time, dropping empty and inverted intervals.
+     * Positions are sorted, not values, so both columns move together. Already sorted input is only copied.
+     */
+    private static long[][] sortByStart(long[] starts, long[] ends, int count) {
+        int valid = 0;
+        long[] validStarts = new long[count];
+        long[] validEnds = new long[count];
+        boolean sorted = true;
+        for (int i = 0; i < count; i++) {
+            if (ends[i] > starts[i]) {
+                if (valid > 0 && starts[i] < validStarts[valid - 1]) {
+                    sorted = false;
+                }
+                validStarts[valid] = starts[i];
+                validEnds[valid] = ends[i];
+                valid++;
+            }
+        }
+
+        if (!sorted) {
+            Integer[] order = new Integer[valid];
+            for (int i = 0; i < valid; i++) {
+                order[i] = i;
+            }
+            long[] unsortedStarts = validStarts;
+            Arrays.sort(order, (first, second) -> Long.compare(unsortedStarts[first], unsortedStarts[second]));
+
+            long[] orderedStarts = new long[valid];
+            long[] orderedEnds = new long[valid];
+            for (int i = 0; i < valid; i++) {
+                orderedStarts[i] = validStarts[order[i]];
+                orderedEnds[i] = validEnds[order[i]];
+            }
+            validStarts = orderedStarts;
+            validEnds = orderedEnds;
+        }
+        return new long[][]{Arrays.copyOf(validStarts, valid), Arrays.copyOf(validEnds, valid)};
+    }
+}
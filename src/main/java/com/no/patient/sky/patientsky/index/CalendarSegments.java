@@ -0,0 +1,113 @@
+package com.no.patient.sky.patientsky.index;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Table of the monthly segments of one calendar in a {@link SegmentStore}, the only part kept in memory.
+ * <p>
+ * Per month with intervals starting in it: the month, the position of its first interval and its last interval.
+ * Intervals are merged, so of all intervals starting before a month only the last one can reach into it.
+ * That interval is kept in the table, a lookup only reads the segments of the months of its period.
+ */
+public final class CalendarSegments {
+
+    private final SegmentStore store;
+    private final Path file;
+    private final int size;
+    private final long[] months;
+    private final int[] positions;
+    private final long[] lastStarts;
+    private final long[] lastEnds;
+
+    private CalendarSegments(SegmentStore store, Path file, int size, long[] months, int[] positions,
+                             long[] lastStarts, long[] lastEnds) {
+        this.store = store;
+        this.file = file;
+        this.size = size;
+        this.months = months;
+        this.positions = positions;
+        this.lastStarts = lastStarts;
+        this.lastEnds = lastEnds;
+    }
+
+    /**
+     * Build table of intervals written to file.
+     *
+     * @param store     store reading the segments
+     * @param file      file of calendar
+     * @param intervals sorted and merged intervals written to file
+     * @return Segments of calendar
+     */
+    static CalendarSegments of(SegmentStore store, Path file, CalendarIndex intervals) {
+        int count = 0;
+        long[] months = new long[Math.max(1, intervals.size())];
+        int[] positions = new int[months.length];
+        long[] lastStarts = new long[months.length];
+        long[] lastEnds = new long[months.length];
+        for (int i = 0; i < intervals.size(); i++) {
+            long month = SegmentStore.monthOf(intervals.getStart(i));
+            if (count == 0 || months[count - 1] != month) {
+                months[count] = month;
+                positions[count] = i;
+                count++;
+            }
+            lastStarts[count - 1] = intervals.getStart(i);
+            lastEnds[count - 1] = intervals.getEnd(i);
+        }
+        return new CalendarSegments(store, file, intervals.size(), Arrays.copyOf(months, count), Arrays.copyOf(positions, count),
+                Arrays.copyOf(lastStarts, count), Arrays.copyOf(lastEnds, count));
+    }
+
+    /**
+     * Number of intervals in all segments.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Segments of the months of period, read from file if they are not cached.
+     * Each index is sorted and merged, together they hold all intervals overlapping period but may overlap each other.
+     *
+     * @param startSecond start of period in epoch seconds
+     * @param endSecond   end of period in epoch seconds
+     * @return Indexes to be merged, e.g. with {@link BusyIntervalMerger#union(List, long, long)}
+     */
+    public List<CalendarIndex> getIntervals(long startSecond, long endSecond) {
+        List<CalendarIndex> indexes = new ArrayList<>();
+        if (endSecond <= startSecond || months.length == 0) {
+            return indexes;
+        }
+
+        long lastMonth = SegmentStore.monthOf(endSecond - 1);
+        int segment = firstSegmentFrom(SegmentStore.monthOf(startSecond));
+        if (segment > 0 && lastEnds[segment - 1] > startSecond) {
+            indexes.add(CalendarIndex.ofMerged(new long[]{lastStarts[segment - 1]}, new long[]{lastEnds[segment - 1]}, 1));
+        }
+        for (; segment < months.length && months[segment] <= lastMonth; segment++) {
+            int end = segment + 1 < months.length ? positions[segment + 1] : size;
+            indexes.add(store.getSegment(file, size, positions[segment], end - positions[segment]));
+        }
+        return indexes;
+    }
+
+    /**
+     * Binary search for the first segment of given month or later.
+     */
+    private int firstSegmentFrom(long month) {
+        int low = 0;
+        int high = months.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (months[middle] < month) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,431 @@
+package com.no.patient.sky.patientsky.index;
+
+import java.util.Arrays;
+
+/**
+ * Busy intervals of a calendar in a persistent treap keyed by start, augmented with the largest free gap of each subtree.
+ * <p>
+ * Intervals are sorted and merged like in {@link CalendarIndex}. Each node keeps the first start, the last end and the
+ * largest gap between consecutive intervals of its subtree, so a search for free time of a minimum length skips whole
+ * subtrees without such a gap and takes logarithmic time. Adding an interval copies only the nodes on the path to it and
+ * drops the intervals it is merged with as whole subtrees, so it also takes logarithmic time. Removing time splits off the
+ * intervals it overlaps the same way and adds back what is left of them before and after it. Trees are never modified,
+ * readers of an older tree are not affected by an interval added to it.
+ * <p>
+ * Priorities are a hash of the start, so the shape only depends on the intervals and not on the order they were added in.
+ */
+public final class FreeIntervalTree {
+
+    private static final FreeIntervalTree EMPTY = new FreeIntervalTree(null);
+
+    private final Node root;
+
+    private FreeIntervalTree(Node root) {
+        this.root = root;
+    }
+
+    public static FreeIntervalTree empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Build tree of index in linear time, the intervals of a merged index are already in key order.
+     *
+     * @param index sorted and merged intervals
+     * @return Tree of intervals
+     */
+    public static FreeIntervalTree of(CalendarIndex index) {
+        int size = index.size();
+        if (size == 0) {
+            return EMPTY;
+        }
+
+        int[] left = new int[size];
+        int[] right = new int[size];
+        int[] spine = new int[size];
+        int spineSize = 0;
+        Arrays.fill(left, -1);
+        Arrays.fill(right, -1);
+        for (int i = 0; i < size; i++) {
+            long priority = priorityOf(index.getStart(i));
+            int last = -1;
+            while (spineSize > 0 && priorityOf(index.getStart(spine[spineSize - 1])) < priority) {
+                last = spine[--spineSize];
+            }
+            left[i] = last;
+            if (spineSize > 0) {
+                right[spine[spineSize - 1]] = i;
+            }
+            spine[spineSize++] = i;
+        }
+        return new FreeIntervalTree(build(index, spine[0], left, right));
+    }
+
+    public int size() {
+        return root == null ? 0 : root.size;
+    }
+
+    /**
+     * New tree with given interval added, the interval is merged with intervals it overlaps or touches.
+     *
+     * @param start epoch seconds
+     * @param end   epoch seconds
+     * @return Tree including interval
+     */
+    public FreeIntervalTree withInterval(long start, long end) {
+        if (end <= start) {
+            return this;
+        }
+
+        Node previous = lastStartingBefore(root, start);
+        long splitKey = previous != null && previous.end >= start ? previous.start : start;
+        Node[] lower = split(root, splitKey);
+        Node[] upper = split(lower[1], end + 1);
+        long mergedStart = upper[0] == null ? start : Math.min(start, upper[0].first);
+        long mergedEnd = upper[0] == null ? end : Math.max(end, upper[0].last);
+        Node interval = new Node(mergedStart, mergedEnd, priorityOf(mergedStart), null, null);
+        return new FreeIntervalTree(join(join(lower[0], interval), upper[1]));
+    }
+
+    /**
+     * New tree without given time, intervals overlapping it are cut and only their parts before and after it are kept.
+     *
+     * @param start epoch seconds
+     * @param end   epoch seconds
+     * @return Tree where calendar is free within interval
+     */
+    public FreeIntervalTree withoutInterval(long start, long end) {
+        if (end <= start) {
+            return this;
+        }
+
+        Node previous = lastStartingBefore(root, start);
+        long splitKey = previous != null && previous.end > start ? previous.start : start;
+        Node[] lower = split(root, splitKey);
+        Node[] upper = split(lower[1], end);
+        if (upper[0] == null) {
+            return this;
+        }
+        Node before = upper[0].first < start ? new Node(upper[0].first, start, priorityOf(upper[0].first), null, null) : null;
+        Node after = upper[0].last > end ? new Node(end, upper[0].last, priorityOf(end), null, null) : null;
+        return new FreeIntervalTree(join(join(join(lower[0], before), after), upper[1]));
+    }
+
+    /**
+     * Check if any interval overlaps given period, same as {@link CalendarIndex#overlaps(long, long)}.
+     *
+     * @param start epoch seconds
+     * @param end   epoch seconds
+     * @return true if calendar is busy at some time within period
+     */
+    public boolean overlaps(long start, long end) {
+        Node previous = lastStartingBefore(root, end);
+        return previous != null && previous.end > start;
+    }
+
+    /**
+     * Intervals overlapping period as index, found in logarithmic time plus the number of intervals.
+     *
+     * @param startSecond start of period in epoch seconds
+     * @param endSecond   end of period in epoch seconds
+     * @return Index only holding intervals overlapping period
+     */
+    public CalendarIndex toIndex(long startSecond, long endSecond) {
+        IntervalCollector collector = new IntervalCollector();
+        collect(root, startSecond, endSecond, collector);
+        return CalendarIndex.ofMerged(collector.starts, collector.ends, collector.count);
+    }
+
+    /**
+     * All intervals as index.
+     */
+    public CalendarIndex toIndex() {
+        return toIndex(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Busy time of period for a walk of free time of at least given length.
+     * <p>
+     * Free time shorter than the length within period is reported as busy, consecutive intervals separated by it
+     * are read as one. Each interval of the cursor is found by one search of the tree, so a walk that needs a few free
+     * times of a long period does not read the intervals in between. Free time at the start of period is measured
+     * from the start, free time at its end up to the end. The last interval of the cursor may end at the end of period.
+     *
+     * @param startSecond    start of period in epoch seconds
+     * @param endSecond      end of period in epoch seconds
+     * @param minFreeSeconds length of free time that is not folded into busy time
+     * @return Cursor of busy time
+     */
+    public BusyIntervalCursor cursor(long startSecond, long endSecond, long minFreeSeconds) {
+        long minLength = Math.max(1, minFreeSeconds);
+        return new BusyIntervalCursor() {
+
+            private final GapSearch search = new GapSearch();
+            private long position = startSecond;
+            private long busyStart;
+            private long busyEnd;
+
+            @Override
+            public boolean next() {
+                while (position < endSecond) {
+                    long from = position;
+                    if (!findGap(from, endSecond, minLength, search)) {
+                        busyStart = from;
+                        busyEnd = endSecond;
+                        position = endSecond;
+                        return true;
+                    }
+                    position = search.gapEnd;
+                    if (search.gapStart > from) {
+                        busyStart = from;
+                        busyEnd = search.gapStart;
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public long getStart() {
+                return busyStart;
+            }
+
+            @Override
+            public long getEnd() {
+                return busyEnd;
+            }
+        };
+    }
+
+    /**
+     * First free time at or after from, at least min length long within from and to.
+     * The free time containing from is measured from it, the one after the last interval has no end.
+     *
+     * @return false if there is no such free time, otherwise start and end are set in search
+     */
+    private boolean findGap(long from, long to, long minLength, GapSearch search) {
+        Node next = firstEndingAfter(root, from);
+        if (next == null) {
+            search.gapStart = from;
+            search.gapEnd = Long.MAX_VALUE;
+            return to - from >= minLength;
+        }
+        if (next.start > from && Math.min(next.start, to) - from >= minLength) {
+            search.gapStart = from;
+            search.gapEnd = next.start;
+            return true;
+        }
+
+        search.hasPreviousEnd = false;
+        if (!findGapFrom(root, next.start, minLength, search)) {
+            search.gapStart = root.last;
+            search.gapEnd = Long.MAX_VALUE;
+        }
+        return search.gapStart <= to - minLength;
+    }
+
+    /**
+     * Find first gap between consecutive intervals starting at or after key, in start order.
+     */
+    private static boolean findGapFrom(Node node, long key, long minLength, GapSearch search) {
+        if (node == null) {
+            return false;
+        }
+        if (node.start < key) {
+            return findGapFrom(node.right, key, minLength, search);
+        }
+        return findGapFrom(node.left, key, minLength, search)
+                || visit(node, minLength, search)
+                || findGap(node.right, minLength, search);
+    }
+
+    /**
+     * Find first gap of subtree or between subtree and the interval visited before, skipping subtree if it has none.
+     */
+    private static boolean findGap(Node node, long minLength, GapSearch search) {
+        if (node == null) {
+            return false;
+        }
+        boolean gapBefore = search.hasPreviousEnd && node.first - search.previousEnd >= minLength;
+        if (!gapBefore && node.maxGap < minLength) {
+            search.previousEnd = node.last;
+            search.hasPreviousEnd = true;
+            return false;
+        }
+        return findGap(node.left, minLength, search)
+                || visit(node, minLength, search)
+                || findGap(node.right, minLength, search);
+    }
+
+    private static boolean visit(Node node, long minLength, GapSearch search) {
+        if (search.hasPreviousEnd && node.start - search.previousEnd >= minLength) {
+            search.gapStart = search.previousEnd;
+            search.gapEnd = node.start;
+            return true;
+        }
+        search.previousEnd = node.end;
+        search.hasPreviousEnd = true;
+        return false;
+    }
+
+    private static Node firstEndingAfter(Node node, long epochSecond) {
+        Node found = null;
+        while (node != null) {
+            if (node.end > epochSecond) {
+                found = node;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return found;
+    }
+
+    private static Node lastStartingBefore(Node node, long epochSecond) {
+        Node found = null;
+        while (node != null) {
+            if (node.start < epochSecond) {
+                found = node;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Split into intervals starting before key and intervals starting at or after key, copying the path of key.
+     */
+    private static Node[] split(Node node, long key) {
+        if (node == null) {
+            return new Node[2];
+        }
+        if (node.start < key) {
+            Node[] parts = split(node.right, key);
+            parts[0] = node.withChildren(node.left, parts[0]);
+            return parts;
+        }
+        Node[] parts = split(node.left, key);
+        parts[1] = node.withChildren(parts[1], node.right);
+        return parts;
+    }
+
+    /**
+     * Join trees of which all intervals of first start before all intervals of second.
+     */
+    private static Node join(Node first, Node second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        if (first.priority > second.priority) {
+            return first.withChildren(first.left, join(first.right, second));
+        }
+        return second.withChildren(join(first, second.left), second.right);
+    }
+
+    private static void collect(Node node, long startSecond, long endSecond, IntervalCollector collector) {
+        if (node == null || node.last <= startSecond || node.first >= endSecond) {
+            return;
+        }
+        collect(node.left, startSecond, endSecond, collector);
+        if (node.end > startSecond && node.start < endSecond) {
+            collector.add(node.start, node.end);
+        }
+        collect(node.right, startSecond, endSecond, collector);
+    }
+
+    private static Node build(CalendarIndex index, int position, int[] left, int[] right) {
+        if (position < 0) {
+            return null;
+        }
+        long start = index.getStart(position);
+        return new Node(start, index.getEnd(position), priorityOf(start),
+                build(index, left[position], left, right), build(index, right[position], left, right));
+    }
+
+    /**
+     * Mix bits of start, see SplitMix64.
+     */
+    private static long priorityOf(long start) {
+        long hash = start * 0x9E3779B97F4A7C15L;
+        hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+        return hash ^ (hash >>> 31);
+    }
+
+    private static final class Node {
+
+        private final long start;
+        private final long end;
+        private final long priority;
+        private final Node left;
+        private final Node right;
+        private final int size;
+
+        /**
+         * First start, last end and largest gap between consecutive intervals of subtree, 0 if it has one interval.
+         */
+        private final long first;
+        private final long last;
+        private final long maxGap;
+
+        private Node(long start, long end, long priority, Node left, Node right) {
+            this.start = start;
+            this.end = end;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = 1 + (left == null ? 0 : left.size) + (right == null ? 0 : right.size);
+            this.first = left == null ? start : left.first;
+            this.last = right == null ? end : right.last;
+            long gap = 0;
+            if (left != null) {
+                gap = Math.max(left.maxGap, start - left.last);
+            }
+            if (right != null) {
+                gap = Math.max(gap, Math.max(right.maxGap, right.first - end));
+            }
+            this.maxGap = gap;
+        }
+
+        private Node withChildren(Node newLeft, Node newRight) {
+            if (newLeft == left && newRight == right) {
+                return this;
+            }
+            return new Node(start, end, priority, newLeft, newRight);
+        }
+    }
+
+    /**
+     * State of a search in start order: end of the interval visited last and the gap found.
+     */
+    private static final class GapSearch {
+
+        private boolean hasPreviousEnd;
+        private long previousEnd;
+        private long gapStart;
+        private long gapEnd;
+
+    }
+
+    private static final class IntervalCollector {
+
+        private long[] starts = new long[16];
+        private long[] ends = new long[16];
+        private int count;
+
+        private void add(long start, long end) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.no.patient.sky.patientsky.index;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Free time of a calendar as one bitmap per UTC day, one bit for each five minute cell of the day.
+ * <p>
+ * Common free time of several calendars is then a word wise AND of their bitmaps and the free time is
+ * read back as runs of set bits, without walking intervals. This only gives the same result as walking the
+ * intervals if all unavailable time of a day starts and ends on the grid, other days have no bitmap.
+ * <p>
+ * Bitmaps are built on first use and kept in one least recently used cache of all calendars, bounded by bytes.
+ * Each day of a calendar has a version that is part of its cache key. A booking gives the days it touches a new
+ * version and keeps the bitmaps of all other days, entries of old versions are no longer read and age out.
+ */
+public final class FreeTimeBitmaps {
+
+    public static final int GRID_SECONDS = 300;
+
+    private static final long DAY_SECONDS = 86400;
+    private static final int CELLS_PER_DAY = (int) (DAY_SECONDS / GRID_SECONDS);
+    private static final int WORDS_PER_DAY = (CELLS_PER_DAY + 63) / 64;
+
+    /**
+     * Bytes of a cached day besides its words: key, array header and cache entry.
+     */
+    private static final int DAY_OVERHEAD = 128;
+
+    /**
+     * Days a booking may touch before all days of the calendar get a new version instead.
+     */
+    private static final int MAX_CHANGED_DAYS = 366;
+
+    /**
+     * Cached for days whose unavailable time is not on the grid.
+     */
+    private static final long[] NOT_ON_GRID = new long[0];
+
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private static final Cache<DayKey, long[]> DAYS = Caffeine.newBuilder()
+            .maximumWeight(16L * 1024 * 1024)
+            .weigher((DayKey key, long[] bitmap) -> DAY_OVERHEAD + bitmap.length * Long.BYTES)
+            .executor(Runnable::run)
+            .build();
+
+    /**
+     * Version of the days not in {@link #dayVersions}.
+     */
+    private final long version;
+
+    /**
+     * Versions of the days changed by bookings, by day.
+     */
+    private final Map<Long, Long> dayVersions;
+
+    FreeTimeBitmaps() {
+        this(VERSIONS.incrementAndGet(), Collections.emptyMap());
+    }
+
+    private FreeTimeBitmaps(long version, Map<Long, Long> dayVersions) {
+        this.version = version;
+        this.dayVersions = dayVersions;
+    }
+
+    /**
+     * Set the maximum bytes of bitmaps cached for all calendars, 0 disables the cache.
+     *
+     * @param maxBytes
+     */
+    public static void setMaxCachedBytes(long maxBytes) {
+        DAYS.policy().eviction().ifPresent(eviction -> eviction.setMaximum(Math.max(0, maxBytes)));
+    }
+
+    /**
+     * Bytes of bitmaps currently cached.
+     */
+    public static long getCachedBytes() {
+        return DAYS.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+    }
+
+    /**
+     * Bitmaps without the days overlapping given interval, for calendar data where only this interval changed.
+     *
+     * @param start epoch seconds
+     * @param end   epoch seconds
+     * @return Bitmaps of all other days
+     */
+    FreeTimeBitmaps withoutDays(long start, long end) {
+        long firstDay = Math.floorDiv(start, DAY_SECONDS);
+        long lastDay = Math.floorDiv(end - 1, DAY_SECONDS);
+        if (lastDay - firstDay >= MAX_CHANGED_DAYS) {
+            return new FreeTimeBitmaps();
+        }
+        Map<Long, Long> changedDayVersions = new HashMap<>(dayVersions);
+        for (long day = firstDay; day <= lastDay; day++) {
+            changedDayVersions.put(day, VERSIONS.incrementAndGet());
+        }
+        return new FreeTimeBitmaps(version, changedDayVersions);
+    }
+
+    /**
+     * Bitmap of free cells of day, from cache or built from index.
+     *
+     * @param typeId      type of timeslot the index belongs to
+     * @param day         days since epoch
+     * @param unavailable unavailable intervals of calendar for type
+     * @return Bitmap, not to be modified, or null if unavailable time of day is not on the grid
+     */
+    long[] getDay(String typeId, long day, CalendarIndex unavailable) {
+        long[] bitmap = DAYS.get(new DayKey(dayVersions.getOrDefault(day, version), typeId, day), key -> buildDay(unavailable, day));
+        return bitmap == NOT_ON_GRID ? null : bitmap;
+    }
+
+    /**
+     * Cells where all calendars are free within period. Period must start and end on the grid.
+     *
+     * @param calendars   calendars, at least one
+     * @param typeId      type of timeslot or null for any type
+     * @param startSecond start of period in epoch seconds
+     * @param endSecond   end of period in epoch seconds
+     * @return Bitmaps of the days of period one after the other, or null if a calendar is not on the grid
+     */
+    public static long[] commonFreeCells(List<CalendarData> calendars, String typeId, long startSecond, long endSecond) {
+        long firstDay = Math.floorDiv(startSecond, DAY_SECONDS);
+        int dayCount = (int) (Math.floorDiv(endSecond - 1, DAY_SECONDS) - firstDay + 1);
+        long[] cells = new long[dayCount * WORDS_PER_DAY];
+
+        for (int day = 0; day < dayCount; day++) {
+            long dayStart = (firstDay + day) * DAY_SECONDS;
+            int offset = day * WORDS_PER_DAY;
+            setCells(cells, offset, cell(Math.max(startSecond, dayStart), dayStart), cell(Math.min(endSecond, dayStart + DAY_SECONDS), dayStart));
+
+            for (CalendarData calendarData : calendars) {
+                long[] free = calendarData.getFreeDay(typeId, firstDay + day);
+                if (free == null) {
+                    return null;
+                }
+                long any = 0;
+                for (int word = 0; word < WORDS_PER_DAY; word++) {
+                    cells[offset + word] &= free[word];
+                    any |= cells[offset + word];
+                }
+                if (any == 0) {
+                    break;
+                }
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Pass each run of free cells to consumer. Runs continue over midnight.
+     *
+     * @param cells         bitmaps of days as returned by {@link #commonFreeCells(List, String, long, long)}
+     * @param startSecond   start of period the cells were built for
+     * @param freeTimeConsumer receives start and end of each free time in epoch seconds
+     */
+    public static void forEachFreeRun(long[] cells, long startSecond, FreeTimeConsumer freeTimeConsumer) {
+        long firstDay = Math.floorDiv(startSecond, DAY_SECONDS);
+        int dayCount = cells.length / WORDS_PER_DAY;
+        long runStart = -1;
+        boolean free = false;
+
+        for (int day = 0; day < dayCount; day++) {
+            long dayStart = (firstDay + day) * DAY_SECONDS;
+            int cell = 0;
+            while (cell < CELLS_PER_DAY) {
+                int wordStart = cell & ~63;
+                int bit = cell - wordStart;
+                int wordCells = Math.min(64, CELLS_PER_DAY - wordStart);
+                long word = cells[day * WORDS_PER_DAY + (wordStart >>> 6)] >>> bit;
+                long changes = free ? ~word : word;
+                cell += Math.min(changes == 0 ? 64 : Long.numberOfTrailingZeros(changes), wordCells - bit);
+
+                if (cell < wordStart + wordCells) {
+                    long second = dayStart + (long) cell * GRID_SECONDS;
+                    if (free) {
+                        freeTimeConsumer.accept(runStart, second);
+                    } else {
+                        runStart = second;
+                    }
+                    free = !free;
+                }
+            }
+        }
+        if (free) {
+            freeTimeConsumer.accept(runStart, (firstDay + dayCount) * DAY_SECONDS);
+        }
+    }
+
+    /**
+     * Bitmap of day with cells cleared where calendar is unavailable.
+     */
+    private static long[] buildDay(CalendarIndex unavailable, long day) {
+        long dayStart = day * DAY_SECONDS;
+        long dayEnd = dayStart + DAY_SECONDS;
+        long[] free = new long[WORDS_PER_DAY];
+        setCells(free, 0, 0, CELLS_PER_DAY);
+
+        for (int i = unavailable.firstEndingAfter(dayStart); i < unavailable.size() && unavailable.getStart(i) < dayEnd; i++) {
+            long start = Math.max(unavailable.getStart(i), dayStart);
+            long end = Math.min(unavailable.getEnd(i), dayEnd);
+            if ((start - dayStart) % GRID_SECONDS != 0 || (end - dayStart) % GRID_SECONDS != 0) {
+                return NOT_ON_GRID;
+            }
+            clearCells(free, cell(start, dayStart), cell(end, dayStart));
+        }
+        return free;
+    }
+
+    private static int cell(long second, long dayStart) {
+        return (int) ((second - dayStart) / GRID_SECONDS);
+    }
+
+    private static void setCells(long[] words, int offset, int fromCell, int toCell) {
+        for (int cell = fromCell; cell < toCell; cell = (cell & ~63) + 64) {
+            words[offset + (cell >>> 6)] |= mask(cell, toCell);
+        }
+    }
+
+    private static void clearCells(long[] words, int fromCell, int toCell) {
+        for (int cell = fromCell; cell < toCell; cell = (cell & ~63) + 64) {
+            words[cell >>> 6] &= ~mask(cell, toCell);
+        }
+    }
+
+    /**
+     * Bits of the word of fromCell from fromCell up to toCell or the end of the word.
+     */
+    private static long mask(int fromCell, int toCell) {
+        int wordStart = fromCell & ~63;
+        long mask = -1L << (fromCell - wordStart);
+        if (toCell - wordStart < 64) {
+            mask &= (1L << (toCell - wordStart)) - 1;
+        }
+        return mask;
+    }
+
+    @FunctionalInterface
+    public interface FreeTimeConsumer {
+
+        void accept(long startSecond, long endSecond);
+    }
+
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static final class DayKey {
+
+        private final long version;
+        private final String typeId;
+        private final long day;
+    }
+}
@@ -0,0 +1,193 @@
+package com.no.patient.sky.patientsky.index;
+
+import com.no.patient.sky.patientsky.dto.RecurringTimeSlot;
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bookable time of a calendar with recurring timeslots, expanded only for the weeks a lookup touches.
+ * <p>
+ * Rules are kept as given, so memory depends on the number of rules and not on how far ahead is searched.
+ * Occurrences are expanded per UTC week, from Monday 00:00, and the last expanded weeks are kept in a small
+ * cache per calendar. Bookable time of plain timeslots is kept as index and added to the expanded weeks.
+ */
+final class RecurringAvailability {
+
+    private static final long DAY_SECONDS = 86400;
+    private static final long WEEK_SECONDS = 7 * DAY_SECONDS;
+
+    /**
+     * 1970-01-01 was a Thursday, the first week starts on the Monday after.
+     */
+    private static final long FIRST_MONDAY_SECOND = 4 * DAY_SECONDS;
+    private static final int MAX_CACHED_WEEKS = 64;
+
+    private final List<Rule> rules;
+    private final CalendarIndex bookableIntervals;
+    private final Map<String, CalendarIndex> bookableIntervalsByType;
+    private final Map<WeekKey, long[]> weeks;
+
+    /**
+     * @param recurringTimeSlots      bookable rules of calendar, at least one
+     * @param bookableIntervals       bookable time of timeslots of any type
+     * @param bookableIntervalsByType bookable time of timeslots for each type
+     */
+    RecurringAvailability(List<RecurringTimeSlot> recurringTimeSlots, CalendarIndex bookableIntervals,
+                          Map<String, CalendarIndex> bookableIntervalsByType) {
+        Rule[] compiled = new Rule[recurringTimeSlots.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = new Rule(recurringTimeSlots.get(i));
+        }
+        this.rules = Arrays.asList(compiled);
+        this.bookableIntervals = bookableIntervals;
+        this.bookableIntervalsByType = bookableIntervalsByType;
+        this.weeks = Collections.synchronizedMap(new LinkedHashMap<WeekKey, long[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<WeekKey, long[]> eldest) {
+                return size() > MAX_CACHED_WEEKS;
+            }
+        });
+    }
+
+    /**
+     * Time outside timeslots and rules, correct within the whole weeks around period.
+     *
+     * @param typeId      type of timeslot or null for any type
+     * @param startSecond start of period in epoch seconds
+     * @param endSecond   end of period in epoch seconds
+     * @return Index of closed time
+     */
+    CalendarIndex getClosedIntervals(String typeId, long startSecond, long endSecond) {
+        long firstWeek = week(startSecond);
+        long lastWeek = week(Math.max(startSecond, endSecond - 1));
+        long windowStart = weekStart(firstWeek);
+        long windowEnd = weekStart(lastWeek + 1);
+
+        CalendarIndex bookable = typeId == null ? bookableIntervals : bookableIntervalsByType.getOrDefault(typeId, CalendarIndex.empty());
+        int first = bookable.firstEndingAfter(windowStart);
+        int last = bookable.firstStartingAtOrAfter(windowEnd);
+        CalendarData.IntervalColumns columns = new CalendarData.IntervalColumns(Math.max(16, last - first));
+        for (int i = first; i < last; i++) {
+            columns.add(bookable.getStart(i), bookable.getEnd(i));
+        }
+        for (long week = firstWeek; week <= lastWeek; week++) {
+            long[] occurrences = getWeek(typeId, week);
+            for (int i = 0; i < occurrences.length; i += 2) {
+                columns.add(occurrences[i], occurrences[i + 1]);
+            }
+        }
+        return columns.toIndex().complement();
+    }
+
+    /**
+     * Occurrences of rules of type in week as start and end pairs, from cache or expanded.
+     */
+    private long[] getWeek(String typeId, long week) {
+        WeekKey key = new WeekKey(typeId, week);
+        long[] occurrences = weeks.get(key);
+        if (occurrences == null) {
+            occurrences = expandWeek(typeId, week);
+            weeks.put(key, occurrences);
+        }
+        return occurrences;
+    }
+
+    /**
+     * Expand rules for the local dates that can overlap the week in any time zone, clipped to the week.
+     * A rule ending on the next day can start on the day before the week.
+     */
+    private long[] expandWeek(String typeId, long week) {
+        long weekStart = weekStart(week);
+        long weekEnd = weekStart + WEEK_SECONDS;
+        LocalDate firstDate = LocalDate.ofEpochDay(weekStart / DAY_SECONDS - 2);
+        LocalDate lastDate = LocalDate.ofEpochDay(weekEnd / DAY_SECONDS + 1);
+
+        long[] occurrences = new long[16];
+        int count = 0;
+        for (Rule rule : rules) {
+            if (typeId != null && !typeId.equals(rule.typeId)) {
+                continue;
+            }
+            for (LocalDate date = firstDate; !date.isAfter(lastDate); date = date.plusDays(1)) {
+                if (!rule.appliesOn(date)) {
+                    continue;
+                }
+                long start = Math.max(weekStart, date.atTime(rule.startTime).atZone(rule.zone).toEpochSecond());
+                long end = Math.min(weekEnd, (rule.overnight ? date.plusDays(1) : date).atTime(rule.endTime).atZone(rule.zone).toEpochSecond());
+                if (start < end) {
+                    if (count == occurrences.length) {
+                        occurrences = Arrays.copyOf(occurrences, count * 2);
+                    }
+                    occurrences[count++] = start;
+                    occurrences[count++] = end;
+                }
+            }
+        }
+        return Arrays.copyOf(occurrences, count);
+    }
+
+    private static long week(long epochSecond) {
+        return Math.floorDiv(epochSecond - FIRST_MONDAY_SECOND, WEEK_SECONDS);
+    }
+
+    private static long weekStart(long week) {
+        return week * WEEK_SECONDS + FIRST_MONDAY_SECOND;
+    }
+
+    /**
+     * Rule with days, validity and exceptions prepared for the check of each date.
+     */
+    private static final class Rule {
+
+        private final String typeId;
+        private final Set<DayOfWeek> daysOfWeek;
+        private final LocalTime startTime;
+        private final LocalTime endTime;
+        private final boolean overnight;
+        private final ZoneId zone;
+        private final LocalDate validFrom;
+        private final LocalDate validUntil;
+        private final Set<LocalDate> exceptions;
+
+        private Rule(RecurringTimeSlot recurringTimeSlot) {
+            this.typeId = recurringTimeSlot.getTypeId();
+            this.daysOfWeek = new HashSet<>(recurringTimeSlot.getDaysOfWeek());
+            this.startTime = recurringTimeSlot.getStartTime();
+            this.endTime = recurringTimeSlot.getEndTime();
+            this.overnight = !endTime.isAfter(startTime);
+            this.zone = recurringTimeSlot.getTimeZone() == null ? ZoneOffset.UTC : ZoneId.of(recurringTimeSlot.getTimeZone());
+            this.validFrom = recurringTimeSlot.getValidFrom();
+            this.validUntil = recurringTimeSlot.getValidUntil();
+            this.exceptions = recurringTimeSlot.getExceptions() == null
+                    ? Collections.emptySet() : new HashSet<>(recurringTimeSlot.getExceptions());
+        }
+
+        private boolean appliesOn(LocalDate date) {
+            return daysOfWeek.contains(date.getDayOfWeek())
+                    && (validFrom == null || !date.isBefore(validFrom))
+                    && (validUntil == null || !date.isAfter(validUntil))
+                    && !exceptions.contains(date);
+        }
+    }
+
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static final class WeekKey {
+
+        private final String typeId;
+        private final long week;
+    }
+}
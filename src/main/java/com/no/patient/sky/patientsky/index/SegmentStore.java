@@ -0,0 +1,290 @@
+package com.no.patient.sky.patientsky.index;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appointments of calendars partitioned into monthly segments on local disk, with a bounded cache of loaded segments.
+ * <p>
+ * Each calendar is written to its own file holding the start column followed by the end column of its intervals.
+ * A segment is the intervals starting in one UTC month, the table of segments is kept in memory by {@link CalendarSegments}.
+ * Segments are read when a lookup's period overlaps them and kept in a least recently used cache bounded by bytes,
+ * so memory depends on the months that are queried and not on the length of the history.
+ * <p>
+ * Files are written once and never changed, a reloaded calendar gets a new file. Each store writes to a new subdirectory
+ * of the configured directory and only ever deletes inside it, so other files of a shared or misconfigured directory are
+ * never touched. The file of a replaced calendar is deleted on a later write once its segments table is garbage
+ * collected, so no lookup of the previous data can still read it.
+ * <p>
+ * A store holds a lock on a file in its subdirectory while it is open. Subdirectories of stores that were not closed,
+ * e.g. after a crash, are not locked and are deleted when the next store is created.
+ */
+@Slf4j
+public final class SegmentStore {
+
+    private static final String FILE_SUFFIX = ".segments";
+    private static final String DIRECTORY_PREFIX = "segments-";
+    private static final String LOCK_FILE = "store.lock";
+
+    /**
+     * Bytes of a cached segment besides its columns: key, index and cache entry.
+     */
+    private static final int SEGMENT_OVERHEAD = 128;
+
+    private final Path directory;
+    private final Cache<SegmentKey, CalendarIndex> segments;
+    private final AtomicLong fileNumber = new AtomicLong();
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+
+    /**
+     * Files by the segments table reading them, enqueued once the table is no longer reachable.
+     */
+    private final ReferenceQueue<CalendarSegments> unreachableSegments = new ReferenceQueue<>();
+    private final Set<SegmentFile> segmentFiles = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param parentDirectory directory the subdirectory of segment files is created in, created if missing
+     * @param maxBytes        maximum bytes of loaded segments kept in memory
+     * @throws IOException if directory can not be created
+     */
+    public SegmentStore(Path parentDirectory, long maxBytes) throws IOException {
+        Files.createDirectories(parentDirectory);
+        this.directory = Files.createTempDirectory(parentDirectory, DIRECTORY_PREFIX);
+        this.lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.lock = lockChannel.lock();
+        deleteStaleDirectories(parentDirectory);
+        this.segments = Caffeine.newBuilder()
+                .maximumWeight(Math.max(0, maxBytes))
+                .weigher((SegmentKey key, CalendarIndex index) -> SEGMENT_OVERHEAD + index.size() * 2 * Long.BYTES)
+                .executor(Runnable::run)
+                .build();
+    }
+
+    /**
+     * Write intervals of calendar to a new file.
+     *
+     * @param calendarId
+     * @param intervals sorted and merged intervals of calendar
+     * @return Segments of calendar, reading from the new file
+     * @throws UncheckedIOException if file can not be written
+     */
+    public CalendarSegments write(String calendarId, CalendarIndex intervals) {
+        deleteUnreachableFiles();
+        Path file = directory.resolve(calendarId + "-" + fileNumber.incrementAndGet() + FILE_SUFFIX);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            for (int i = 0; i < intervals.size(); i++) {
+                output.writeLong(intervals.getStart(i));
+            }
+            for (int i = 0; i < intervals.size(); i++) {
+                output.writeLong(intervals.getEnd(i));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error in writing segments of calendar " + calendarId, e);
+        }
+        CalendarSegments calendarSegments = CalendarSegments.of(this, file, intervals);
+        segmentFiles.add(new SegmentFile(calendarSegments, file, unreachableSegments));
+        return calendarSegments;
+    }
+
+    /**
+     * Delete segment files and subdirectory of this store, lookups of its calendars fail afterwards.
+     *
+     * @throws IOException if a file can not be deleted
+     */
+    public void close() throws IOException {
+        segments.invalidateAll();
+        segmentFiles.clear();
+        lock.release();
+        lockChannel.close();
+        deleteStoreFiles(directory);
+        Files.deleteIfExists(directory.resolve(LOCK_FILE));
+        Files.deleteIfExists(directory);
+    }
+
+    /**
+     * Directory of segment files of this store.
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Bytes of loaded segments currently kept in memory.
+     */
+    public long getCachedBytes() {
+        return segments.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+    }
+
+    /**
+     * Number of segment files not deleted yet, of current and replaced calendars.
+     */
+    public int getFileCount() {
+        deleteUnreachableFiles();
+        return segmentFiles.size();
+    }
+
+    /**
+     * UTC month of time, counted from year 0.
+     *
+     * @param epochSecond
+     * @return Month number
+     */
+    static long monthOf(long epochSecond) {
+        long clamped = Math.max(CalendarIndex.MIN_EPOCH_SECOND, Math.min(CalendarIndex.MAX_EPOCH_SECOND, epochSecond));
+        LocalDate date = LocalDate.ofEpochDay(Math.floorDiv(clamped, 86400));
+        return date.getYear() * 12L + date.getMonthValue() - 1;
+    }
+
+    /**
+     * Segment from cache or read from file of calendar.
+     *
+     * @param file     file of calendar
+     * @param size     number of intervals in file
+     * @param position position of first interval of segment
+     * @param count    number of intervals of segment
+     * @return Index of segment
+     */
+    CalendarIndex getSegment(Path file, int size, int position, int count) {
+        return segments.get(new SegmentKey(file, position), key -> readSegment(file, size, position, count));
+    }
+
+    private CalendarIndex readSegment(Path file, int size, int position, int count) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long[] starts = readColumn(channel, (long) position * Long.BYTES, count);
+            long[] ends = readColumn(channel, ((long) size + position) * Long.BYTES, count);
+            return CalendarIndex.ofMerged(starts, ends, count);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error in reading segment of " + file, e);
+        }
+    }
+
+    private long[] readColumn(FileChannel channel, long offset, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count * Long.BYTES);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Segment file is truncated");
+            }
+        }
+        buffer.flip();
+        long[] column = new long[count];
+        LongBuffer longs = buffer.asLongBuffer();
+        longs.get(column);
+        return column;
+    }
+
+    /**
+     * Delete files whose segments table was garbage collected, with their cached segments.
+     */
+    private void deleteUnreachableFiles() {
+        for (Reference<? extends CalendarSegments> reference; (reference = unreachableSegments.poll()) != null; ) {
+            SegmentFile segmentFile = (SegmentFile) reference;
+            if (!segmentFiles.remove(segmentFile)) {
+                continue;
+            }
+            segments.asMap().keySet().removeIf(key -> key.file.equals(segmentFile.file));
+            try {
+                Files.deleteIfExists(segmentFile.file);
+            } catch (IOException e) {
+                log.warn("Error in deleting replaced segment file {}", segmentFile.file, e);
+            }
+        }
+    }
+
+    /**
+     * Delete subdirectories of stores that are not locked, their store was not closed.
+     * Only segment and lock files are deleted, a subdirectory with other files is kept.
+     */
+    private void deleteStaleDirectories(Path parentDirectory) {
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(parentDirectory, DIRECTORY_PREFIX + "*")) {
+            for (Path staleDirectory : directories) {
+                if (staleDirectory.equals(directory) || !Files.isDirectory(staleDirectory)) {
+                    continue;
+                }
+                try {
+                    if (!isLocked(staleDirectory)) {
+                        deleteStoreFiles(staleDirectory);
+                        Files.deleteIfExists(staleDirectory.resolve(LOCK_FILE));
+                        Files.deleteIfExists(staleDirectory);
+                        log.info("Deleted segment directory {} of a store that was not closed", staleDirectory);
+                    }
+                } catch (DirectoryNotEmptyException e) {
+                    log.warn("Segment directory {} has other files and is kept", staleDirectory);
+                } catch (IOException e) {
+                    log.warn("Error in deleting segment directory {} of a store that was not closed", staleDirectory, e);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Error in reading segment directories of stores that were not closed in {}", parentDirectory, e);
+        }
+    }
+
+    private static boolean isLocked(Path storeDirectory) throws IOException {
+        Path lockFile = storeDirectory.resolve(LOCK_FILE);
+        if (!Files.exists(lockFile)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+            FileLock staleLock = channel.tryLock();
+            if (staleLock == null) {
+                return true;
+            }
+            staleLock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            return true;
+        }
+    }
+
+    private static void deleteStoreFiles(Path storeDirectory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(storeDirectory, "*" + FILE_SUFFIX)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static final class SegmentFile extends PhantomReference<CalendarSegments> {
+
+        private final Path file;
+
+        private SegmentFile(CalendarSegments calendarSegments, Path file, ReferenceQueue<CalendarSegments> queue) {
+            super(calendarSegments, queue);
+            this.file = file;
+        }
+    }
+
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static final class SegmentKey {
+
+        private final Path file;
+        private final int position;
+
+    }
+}
@@ -0,0 +1,325 @@
+package com.no.patient.sky.patientsky.initializer;
+
+import com.no.patient.sky.patientsky.dto.Booking;
+import com.no.patient.sky.patientsky.exception.AppointmentException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of bookings, replayed on startup after the json files are loaded.
+ * <p>
+ * Bookings are written by a single writer thread. It takes all records that arrived while the previous
+ * batch was written and forces them to disk with one fsync, so the cost of fsync is shared by concurrent bookings.
+ * A booking is acknowledged only after its batch is on disk.
+ * <p>
+ * Record layout: int payload length, payload, long CRC32 of payload.
+ * Payload: long bookingId most and least significant bits, long start, long end, short length and UTF-8 bytes of calendarId.
+ * A torn or corrupted record at the end of the log is dropped on replay. If a batch can not be written, the log is truncated
+ * to the end of the previous batch, so later batches are not appended behind a partial record that would stop the replay.
+ * If that fails too, the log is stopped and later bookings fail.
+ */
+@Component
+@Slf4j
+public class BookingWriteAheadLog {
+
+    private static final int MAX_PAYLOAD_LENGTH = 4096;
+
+    @Autowired
+    private JsonData jsonData;
+
+    @Value("${appointment.booking.wal-file:}")
+    private String walFile;
+
+    @Value("${appointment.booking.wal-max-batch:256}")
+    private int maxBatch;
+
+    @Value("${appointment.booking.wal-timeout:10s}")
+    private Duration appendTimeout;
+
+    private final BlockingQueue<PendingBooking> pendingBookings = new LinkedBlockingQueue<>();
+
+    private FileChannel channel;
+    private Thread writerThread;
+    private volatile boolean closed;
+
+    /**
+     * Replay existing log in JsonData and open it for appending.
+     */
+    @PostConstruct
+    public void open() throws IOException {
+        if (!StringUtils.hasText(walFile)) {
+            log.warn("No booking write ahead log configured, bookings are kept in memory only");
+            return;
+        }
+
+        Path path = Paths.get(walFile);
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        channel = openChannel(path);
+
+        long validLength = replay(channel);
+        if (validLength < channel.size()) {
+            log.warn("Dropping {} bytes of incomplete booking at end of {}", channel.size() - validLength, path);
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+
+        writerThread = new Thread(this::writeBookings, "booking-wal-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Open log file for reading and writing, creating it if missing.
+     */
+    protected FileChannel openChannel(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Stop writer, bookings still waiting and appended later fail.
+     */
+    @PreDestroy
+    public void close() throws IOException, InterruptedException {
+        closed = true;
+        if (writerThread != null) {
+            writerThread.interrupt();
+            writerThread.join();
+        }
+        failPendingBookings(new IOException("Write ahead log is closed"));
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Append booking and wait until it is durable.
+     * A booking that the writer has not taken within the append timeout is withdrawn and fails, it is never written later.
+     * Once the writer has taken it, the result of its batch decides, so a failed booking is never in the log.
+     *
+     * @param booking
+     * @throws AppointmentException if booking could not be written or log is closed
+     */
+    public void append(Booking booking) {
+        if (channel == null) {
+            return;
+        }
+        if (closed) {
+            throw new AppointmentException("Booking could not be stored");
+        }
+
+        PendingBooking pendingBooking = new PendingBooking(booking);
+        pendingBookings.add(pendingBooking);
+        if (closed && pendingBookings.remove(pendingBooking)) {
+            //Log was closed after the check above and will not take the booking anymore.
+            throw new AppointmentException("Booking could not be stored");
+        }
+
+        long deadline = System.nanoTime() + appendTimeout.toNanos();
+        boolean waitForBatch = false;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    pendingBooking.written.get(waitForBatch ? Long.MAX_VALUE : deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    return;
+                } catch (ExecutionException e) {
+                    log.error("Error in writing booking {} to write ahead log", booking.getBookingId(), e.getCause());
+                    throw new AppointmentException("Booking could not be stored");
+                } catch (InterruptedException | TimeoutException e) {
+                    interrupted |= e instanceof InterruptedException;
+                    if (pendingBooking.taken.compareAndSet(false, true)) {
+                        pendingBookings.remove(pendingBooking);
+                        log.error("Booking {} was not written to write ahead log within {} and is withdrawn", booking.getBookingId(), appendTimeout);
+                        throw new AppointmentException("Booking could not be stored");
+                    }
+                    //Writer has taken the booking, it may already be on disk.
+                    waitForBatch = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Writer loop, each iteration writes and forces one batch.
+     * A failed batch is cut off the log again, the loop stops if that fails.
+     */
+    private void writeBookings() {
+        List<PendingBooking> batch = new ArrayList<>();
+        try {
+            while (!closed) {
+                batch.add(pendingBookings.take());
+                pendingBookings.drainTo(batch, maxBatch - 1);
+                batch.removeIf(pendingBooking -> !pendingBooking.taken.compareAndSet(false, true));
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                long batchPosition = -1;
+                try {
+                    batchPosition = channel.position();
+                    for (PendingBooking pendingBooking : batch) {
+                        ByteBuffer record = encode(pendingBooking.booking);
+                        while (record.hasRemaining()) {
+                            channel.write(record);
+                        }
+                    }
+                    channel.force(false);
+                    batch.forEach(pendingBooking -> pendingBooking.written.complete(null));
+                } catch (IOException e) {
+                    batch.forEach(pendingBooking -> pendingBooking.written.completeExceptionally(e));
+                    rollBack(batchPosition);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            batch.forEach(pendingBooking -> pendingBooking.written.completeExceptionally(e));
+        }
+        failPendingBookings(new IOException("Write ahead log is closed"));
+    }
+
+    /**
+     * Truncate log to position before a failed batch and continue writing there, or stop the log if that fails.
+     *
+     * @param batchPosition position before the batch, -1 if it is not known
+     */
+    private void rollBack(long batchPosition) {
+        try {
+            if (batchPosition < 0) {
+                throw new IOException("Position before batch is not known");
+            }
+            channel.truncate(batchPosition);
+            channel.position(batchPosition);
+            channel.force(false);
+        } catch (IOException e) {
+            log.error("Error in truncating write ahead log after failed batch, no more bookings are accepted", e);
+            closed = true;
+        }
+    }
+
+    private void failPendingBookings(IOException exception) {
+        List<PendingBooking> remaining = new ArrayList<>();
+        pendingBookings.drainTo(remaining);
+        remaining.forEach(pendingBooking -> pendingBooking.written.completeExceptionally(exception));
+    }
+
+    /**
+     * Read all complete records and add them to JsonData.
+     *
+     * @return length of log up to the last complete record
+     */
+    private long replay(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // read whole log
+        }
+        buffer.flip();
+
+        int replayed = 0;
+        int kept = 0;
+        long validLength = 0;
+        while (buffer.remaining() >= Integer.BYTES) {
+            int length = buffer.getInt();
+            if (length <= 0 || length > MAX_PAYLOAD_LENGTH || buffer.remaining() < length + Long.BYTES) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            if (buffer.getLong() != checksum(payload)) {
+                break;
+            }
+
+            if (jsonData.restoreBooking(decode(ByteBuffer.wrap(payload)))) {
+                replayed++;
+            } else {
+                kept++;
+            }
+            validLength = buffer.position();
+        }
+
+        log.info("Replayed {} bookings from write ahead log, kept {} of calendars that does not exist until they are added", replayed, kept);
+        return validLength;
+    }
+
+    private ByteBuffer encode(Booking booking) {
+        byte[] calendarId = booking.getCalendarId().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(4 * Long.BYTES + Short.BYTES + calendarId.length);
+        payload.putLong(booking.getBookingId().getMostSignificantBits());
+        payload.putLong(booking.getBookingId().getLeastSignificantBits());
+        payload.putLong(booking.getStartTime());
+        payload.putLong(booking.getEndTime());
+        payload.putShort((short) calendarId.length);
+        payload.put(calendarId);
+
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + payload.capacity() + Long.BYTES);
+        record.putInt(payload.capacity());
+        record.put(payload.array());
+        record.putLong(checksum(payload.array()));
+        record.flip();
+        return record;
+    }
+
+    private Booking decode(ByteBuffer payload) {
+        UUID bookingId = new UUID(payload.getLong(), payload.getLong());
+        long startTime = payload.getLong();
+        long endTime = payload.getLong();
+        byte[] calendarId = new byte[payload.getShort()];
+        payload.get(calendarId);
+
+        return Booking.builder()
+                .bookingId(bookingId)
+                .calendarId(new String(calendarId, StandardCharsets.UTF_8))
+                .startTime(startTime)
+                .endTime(endTime)
+                .build();
+    }
+
+    private long checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    private static final class PendingBooking {
+
+        private final Booking booking;
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        /**
+         * Set by the writer when it takes the booking into a batch, or by the appender when it withdraws the booking.
+         */
+        private final AtomicBoolean taken = new AtomicBoolean();
+
+        private PendingBooking(Booking booking) {
+            this.booking = booking;
+        }
+    }
+}
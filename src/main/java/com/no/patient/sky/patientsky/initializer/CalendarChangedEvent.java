@@ -0,0 +1,24 @@
+package com.no.patient.sky.patientsky.initializer;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Published by {@link JsonData} after data of a calendar is replaced, on reload, removal or booking, once the new data is
+ * visible and without holding a lock of the data. Reloads and bookings publish from their own threads, so events of the
+ * same calendar can arrive out of order: listeners must read the current data instead of trusting the order of events.
+ * Listeners are called by the thread that changed the calendar, a booking still holds the booking lock of its calendar,
+ * so they must return quickly.
+ */
+@Getter
+@RequiredArgsConstructor
+public class CalendarChangedEvent {
+
+    private final String calendarId;
+
+    /**
+     * Generation of the published data, -1 if calendar was removed.
+     */
+    private final long generation;
+
+}
@@ -0,0 +1,98 @@
+package com.no.patient.sky.patientsky.initializer;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Watches the data directory and reloads only the calendar files that changed.
+ * The whole directory is reloaded once watching has started, for changes made after the calendars were loaded,
+ * and whenever events were lost. Nothing is watched if no data directory is configured.
+ */
+@Component
+@Slf4j
+public class CalendarDirectoryWatcher {
+
+    @Autowired
+    private JsonData jsonData;
+
+    private WatchService watchService;
+
+    @PostConstruct
+    public void startWatching() throws IOException {
+        Path directory = jsonData.getDataDirectory();
+        if (directory == null) {
+            return;
+        }
+
+        watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+
+        Thread watcherThread = new Thread(() -> watch(directory), "calendar-directory-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+        log.info("Watching {} for calendar changes", directory);
+    }
+
+    @PreDestroy
+    public void stopWatching() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    /**
+     * Wait for changes and reload each changed json file once per batch of events, or all files if events were lost.
+     */
+    private void watch(Path directory) {
+        try {
+            jsonData.reloadDataDirectory();
+            while (true) {
+                WatchKey key = watchService.take();
+                Set<Path> changedFiles = new LinkedHashSet<>();
+                boolean overflow = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        log.warn("Calendar change events were lost in {}, all files are reloaded", directory);
+                        overflow = true;
+                        continue;
+                    }
+                    Path file = directory.resolve((Path) event.context());
+                    if (file.getFileName().toString().endsWith(".json")) {
+                        changedFiles.add(file);
+                    }
+                }
+
+                if (overflow) {
+                    jsonData.reloadDataDirectory();
+                } else {
+                    changedFiles.forEach(jsonData::reloadCalendarFile);
+                }
+
+                if (!key.reset()) {
+                    log.error("Data directory {} is no longer accessible, calendar changes are not watched", directory);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            log.info("Stopped watching {}", directory);
+        }
+    }
+}
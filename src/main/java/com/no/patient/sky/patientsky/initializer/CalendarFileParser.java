@@ -0,0 +1,290 @@
+package com.no.patient.sky.patientsky.initializer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.StdDateFormat;
+import com.no.patient.sky.patientsky.dto.RecurringTimeSlot;
+import com.no.patient.sky.patientsky.dto.TimeSlot;
+import com.no.patient.sky.patientsky.index.CalendarData;
+import com.no.patient.sky.patientsky.index.CalendarIndex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.time.DateTimeException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads calendar json files with a streaming parser.
+ * <p>
+ * Only calendar_id, start and end of appointments and the fields of {@link TimeSlot} and {@link RecurringTimeSlot} are read,
+ * all other fields and sections are skipped without binding them to objects.
+ * The parser factory is shared and thread safe, so several files can be parsed in parallel.
+ */
+final class CalendarFileParser {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private CalendarFileParser() {
+    }
+
+    /**
+     * Parse calendar file.
+     * Appointments and timeslots that belong to other calendar are skipped.
+     *
+     * @param calendarId  calendar Id of file
+     * @param inputStream json content, closed after parsing
+     * @return Calendar data with indexed busy intervals
+     * @throws IOException if json is invalid
+     */
+    static CalendarData parse(String calendarId, InputStream inputStream) throws IOException {
+
+        IntervalBuffer appointments = new IntervalBuffer();
+        List<TimeSlot> timeSlots = new ArrayList<>();
+        List<RecurringTimeSlot> recurringTimeSlots = new ArrayList<>();
+
+        try (JsonParser parser = JSON_FACTORY.createParser(inputStream)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Calendar file does not contain a json object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("appointments".equals(fieldName) && token == JsonToken.START_ARRAY) {
+                    readAppointments(parser, calendarId, appointments);
+                } else if ("timeslots".equals(fieldName) && token == JsonToken.START_ARRAY) {
+                    readTimeSlots(parser, calendarId, timeSlots);
+                } else if ("recurring_timeslots".equals(fieldName) && token == JsonToken.START_ARRAY) {
+                    readRecurringTimeSlots(parser, calendarId, recurringTimeSlots);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        return CalendarData.of(calendarId,
+                CalendarIndex.fromIntervals(appointments.starts, appointments.ends, appointments.count), timeSlots, recurringTimeSlots);
+    }
+
+    private static void readAppointments(JsonParser parser, String calendarId, IntervalBuffer appointments) throws IOException {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String appointmentCalendarId = null;
+            Long start = null;
+            Long end = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                switch (fieldName) {
+                    case "calendar_id":
+                        appointmentCalendarId = parser.getValueAsString();
+                        break;
+                    case "start":
+                        start = readEpochSecond(parser);
+                        break;
+                    case "end":
+                        end = readEpochSecond(parser);
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            if (calendarId.equals(appointmentCalendarId) && start != null && end != null) {
+                appointments.add(start, end);
+            }
+        }
+    }
+
+    private static void readTimeSlots(JsonParser parser, String calendarId, List<TimeSlot> timeSlots) throws IOException {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            TimeSlot timeSlot = new TimeSlot();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                switch (fieldName) {
+                    case "id":
+                        timeSlot.setId(parser.getValueAsString());
+                        break;
+                    case "calendar_id":
+                        timeSlot.setCalendarId(parser.getValueAsString());
+                        break;
+                    case "type_id":
+                        timeSlot.setTypeId(parser.getValueAsString());
+                        break;
+                    case "start":
+                        timeSlot.setStart(toDate(readEpochSecond(parser)));
+                        break;
+                    case "end":
+                        timeSlot.setEnd(toDate(readEpochSecond(parser)));
+                        break;
+                    case "public_bookable":
+                        timeSlot.setPublicBookable(readBoolean(parser));
+                        break;
+                    case "out_of_office":
+                        timeSlot.setOutOfOffice(readBoolean(parser));
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            if (calendarId.equals(timeSlot.getCalendarId())) {
+                timeSlots.add(timeSlot);
+            }
+        }
+    }
+
+    private static void readRecurringTimeSlots(JsonParser parser, String calendarId, List<RecurringTimeSlot> recurringTimeSlots)
+            throws IOException {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            RecurringTimeSlot recurringTimeSlot = new RecurringTimeSlot();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                try {
+                    switch (fieldName) {
+                        case "id":
+                            recurringTimeSlot.setId(parser.getValueAsString());
+                            break;
+                        case "calendar_id":
+                            recurringTimeSlot.setCalendarId(parser.getValueAsString());
+                            break;
+                        case "type_id":
+                            recurringTimeSlot.setTypeId(parser.getValueAsString());
+                            break;
+                        case "days_of_week":
+                            List<DayOfWeek> daysOfWeek = new ArrayList<>();
+                            for (String day : readStrings(parser)) {
+                                daysOfWeek.add(DayOfWeek.valueOf(day.toUpperCase(Locale.ROOT)));
+                            }
+                            recurringTimeSlot.setDaysOfWeek(daysOfWeek);
+                            break;
+                        case "start_time":
+                            recurringTimeSlot.setStartTime(parser.getValueAsString() == null ? null : LocalTime.parse(parser.getText()));
+                            break;
+                        case "end_time":
+                            recurringTimeSlot.setEndTime(parser.getValueAsString() == null ? null : LocalTime.parse(parser.getText()));
+                            break;
+                        case "time_zone":
+                            recurringTimeSlot.setTimeZone(parser.getValueAsString() == null ? null : ZoneId.of(parser.getText()).getId());
+                            break;
+                        case "valid_from":
+                            recurringTimeSlot.setValidFrom(parser.getValueAsString() == null ? null : LocalDate.parse(parser.getText()));
+                            break;
+                        case "valid_until":
+                            recurringTimeSlot.setValidUntil(parser.getValueAsString() == null ? null : LocalDate.parse(parser.getText()));
+                            break;
+                        case "exceptions":
+                            List<LocalDate> exceptions = new ArrayList<>();
+                            for (String date : readStrings(parser)) {
+                                exceptions.add(LocalDate.parse(date));
+                            }
+                            recurringTimeSlot.setExceptions(exceptions);
+                            break;
+                        case "public_bookable":
+                            recurringTimeSlot.setPublicBookable(readBoolean(parser));
+                            break;
+                        default:
+                            parser.skipChildren();
+                    }
+                } catch (DateTimeException | IllegalArgumentException exception) {
+                    throw new IOException("Invalid " + fieldName + " of recurring timeslot", exception);
+                }
+            }
+            if (calendarId.equals(recurringTimeSlot.getCalendarId())) {
+                recurringTimeSlots.add(recurringTimeSlot);
+            }
+        }
+    }
+
+    /**
+     * Read array of strings, a single string is read as array of one.
+     */
+    private static List<String> readStrings(JsonParser parser) throws IOException {
+        List<String> values = new ArrayList<>();
+        if (parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+            values.add(parser.getText());
+        } else if (parser.getCurrentToken() == JsonToken.START_ARRAY) {
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (parser.getCurrentToken() != JsonToken.VALUE_STRING) {
+                    throw new IOException("Expected string in array but found " + parser.getCurrentToken());
+                }
+                values.add(parser.getText());
+            }
+        } else {
+            parser.skipChildren();
+        }
+        return values;
+    }
+
+    private static Boolean readBoolean(JsonParser parser) throws IOException {
+        return parser.getCurrentToken() == JsonToken.VALUE_NULL ? null : parser.getValueAsBoolean();
+    }
+
+    private static Date toDate(Long epochSecond) {
+        return epochSecond == null ? null : new Date(epochSecond * 1000);
+    }
+
+    /**
+     * Read time as epoch seconds, accepting the same values as {@link java.util.Date} binding of Jackson.
+     * Local date times without offset are in UTC, numbers are epoch milliseconds.
+     */
+    private static Long readEpochSecond(JsonParser parser) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.VALUE_NUMBER_INT) {
+            return Math.floorDiv(parser.getLongValue(), 1000L);
+        }
+        if (token != JsonToken.VALUE_STRING) {
+            parser.skipChildren();
+            return null;
+        }
+
+        String text = parser.getText();
+        try {
+            TemporalAccessor time = DateTimeFormatter.ISO_DATE_TIME.parseBest(text, OffsetDateTime::from, LocalDateTime::from);
+            if (time instanceof OffsetDateTime) {
+                return ((OffsetDateTime) time).toEpochSecond();
+            }
+            return ((LocalDateTime) time).toEpochSecond(ZoneOffset.UTC);
+        } catch (DateTimeParseException exception) {
+            try {
+                return Math.floorDiv(new StdDateFormat().parse(text).getTime(), 1000L);
+            } catch (ParseException parseException) {
+                throw new IOException("Invalid date " + text, parseException);
+            }
+        }
+    }
+
+    /**
+     * Growable pair of start and end columns.
+     */
+    private static final class IntervalBuffer {
+
+        private long[] starts = new long[64];
+        private long[] ends = new long[64];
+        private int count;
+
+        private void add(long start, long end) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.no.patient.sky.patientsky.initializer;
+
+import com.no.patient.sky.patientsky.dto.RecurringTimeSlot;
+import com.no.patient.sky.patientsky.dto.TimeSlot;
+import com.no.patient.sky.patientsky.index.CalendarData;
+import com.no.patient.sky.patientsky.index.CalendarIndex;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of loaded calendars, so a restart does not parse unchanged json files again.
+ * <p>
+ * Layout, all numbers big endian:
+ * <pre>
+ * int magic, int version, long fingerprint of source files, int calendar count
+ * per calendar: string calendarId,
+ *               int appointment interval count, long[] starts, long[] ends,
+ *               int timeslot count, per timeslot: long start, long end, byte flags, string id, string calendarId, string typeId,
+ *               int recurring timeslot count, per rule: byte days of week, int start and end second of day (-1 for null),
+ *               long valid from and until epoch day, byte flags, string id, string calendarId, string typeId, string time zone,
+ *               int exception count, long[] exception epoch days
+ * string: int byte length (-1 for null) followed by UTF-8 bytes
+ * </pre>
+ * Interval columns are stored contiguously so they are copied in bulk from the memory mapped file.
+ * With the off heap store the columns are not copied at all, the index reads them from the mapped file.
+ */
+@Slf4j
+final class CalendarSnapshot {
+
+    private static final int MAGIC = 0x50534b59;
+    private static final int VERSION = 3;
+
+    private static final int PUBLIC_BOOKABLE = 1;
+    private static final int PUBLIC_BOOKABLE_NULL = 2;
+    private static final int OUT_OF_OFFICE = 4;
+    private static final int OUT_OF_OFFICE_NULL = 8;
+
+    /**
+     * Days of week of a rule without days, one bit above the seven days.
+     */
+    private static final int DAYS_NULL = 1 << 7;
+
+    private CalendarSnapshot() {
+    }
+
+    /**
+     * Read snapshot if it exists and was written from the same source files.
+     *
+     * @param file        snapshot file
+     * @param fingerprint fingerprint of current source files
+     * @param offHeap     keep interval columns in the mapped file instead of copying them to the heap
+     * @return Calendars by calendar Id or null if snapshot can not be used
+     */
+    static Map<String, CalendarData> read(Path file, long fingerprint, boolean offHeap) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != fingerprint) {
+                log.info("Snapshot {} is outdated, json files are parsed", file);
+                return null;
+            }
+
+            int calendarCount = buffer.getInt();
+            Map<String, CalendarData> calendars = new HashMap<>(calendarCount * 2);
+            for (int i = 0; i < calendarCount; i++) {
+                CalendarData calendarData = readCalendar(buffer, offHeap);
+                calendars.put(calendarData.getCalendarId(), calendarData);
+            }
+            return calendars;
+        } catch (IOException | RuntimeException exception) {
+            log.warn("Snapshot {} could not be read, json files are parsed", file, exception);
+            return null;
+        }
+    }
+
+    /**
+     * Write snapshot to a temporary file and move it in place, so a crash never leaves a partial snapshot.
+     * Failures are only logged as the snapshot is an optimisation.
+     *
+     * @param file        snapshot file
+     * @param fingerprint fingerprint of source files
+     * @param calendars   calendars by calendar Id
+     */
+    static void write(Path file, long fingerprint, Map<String, CalendarData> calendars) {
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            Path temporaryFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeLong(fingerprint);
+                output.writeInt(calendars.size());
+                for (CalendarData calendarData : calendars.values()) {
+                    writeCalendar(output, calendarData);
+                }
+            }
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            log.warn("Snapshot {} could not be written", file, exception);
+        }
+    }
+
+    private static void writeCalendar(DataOutputStream output, CalendarData calendarData) throws IOException {
+        writeString(output, calendarData.getCalendarId());
+
+        CalendarIndex busyIntervals = calendarData.getAppointments();
+        output.writeInt(busyIntervals.size());
+        for (int i = 0; i < busyIntervals.size(); i++) {
+            output.writeLong(busyIntervals.getStart(i));
+        }
+        for (int i = 0; i < busyIntervals.size(); i++) {
+            output.writeLong(busyIntervals.getEnd(i));
+        }
+
+        List<TimeSlot> timeSlots = calendarData.getTimeSlots();
+        output.writeInt(timeSlots.size());
+        for (TimeSlot timeSlot : timeSlots) {
+            output.writeLong(timeSlot.getStart() == null ? Long.MIN_VALUE : timeSlot.getStart().getTime());
+            output.writeLong(timeSlot.getEnd() == null ? Long.MIN_VALUE : timeSlot.getEnd().getTime());
+            output.writeByte(flags(timeSlot.getPublicBookable(), timeSlot.getOutOfOffice()));
+            writeString(output, timeSlot.getId());
+            writeString(output, timeSlot.getCalendarId());
+            writeString(output, timeSlot.getTypeId());
+        }
+
+        List<RecurringTimeSlot> recurringTimeSlots = calendarData.getRecurringTimeSlots();
+        output.writeInt(recurringTimeSlots.size());
+        for (RecurringTimeSlot recurringTimeSlot : recurringTimeSlots) {
+            int days = DAYS_NULL;
+            if (recurringTimeSlot.getDaysOfWeek() != null) {
+                days = 0;
+                for (DayOfWeek dayOfWeek : recurringTimeSlot.getDaysOfWeek()) {
+                    days |= 1 << dayOfWeek.ordinal();
+                }
+            }
+            output.writeByte(days);
+            output.writeInt(recurringTimeSlot.getStartTime() == null ? -1 : recurringTimeSlot.getStartTime().toSecondOfDay());
+            output.writeInt(recurringTimeSlot.getEndTime() == null ? -1 : recurringTimeSlot.getEndTime().toSecondOfDay());
+            output.writeLong(recurringTimeSlot.getValidFrom() == null ? Long.MIN_VALUE : recurringTimeSlot.getValidFrom().toEpochDay());
+            output.writeLong(recurringTimeSlot.getValidUntil() == null ? Long.MIN_VALUE : recurringTimeSlot.getValidUntil().toEpochDay());
+            output.writeByte(flags(recurringTimeSlot.getPublicBookable(), null));
+            writeString(output, recurringTimeSlot.getId());
+            writeString(output, recurringTimeSlot.getCalendarId());
+            writeString(output, recurringTimeSlot.getTypeId());
+            writeString(output, recurringTimeSlot.getTimeZone());
+            List<LocalDate> exceptions = recurringTimeSlot.getExceptions() == null ? Collections.emptyList() : recurringTimeSlot.getExceptions();
+            output.writeInt(exceptions.size());
+            for (LocalDate exception : exceptions) {
+                output.writeLong(exception.toEpochDay());
+            }
+        }
+    }
+
+    private static CalendarData readCalendar(ByteBuffer buffer, boolean offHeap) {
+        String calendarId = readString(buffer);
+
+        int intervalCount = buffer.getInt();
+        CalendarIndex appointments;
+        if (offHeap) {
+            LongBuffer starts = readColumn(buffer, intervalCount);
+            LongBuffer ends = readColumn(buffer, intervalCount);
+            appointments = CalendarIndex.ofMergedColumns(starts, ends);
+        } else {
+            long[] starts = new long[intervalCount];
+            long[] ends = new long[intervalCount];
+            readColumn(buffer, intervalCount).get(starts);
+            readColumn(buffer, intervalCount).get(ends);
+            appointments = CalendarIndex.fromIntervals(starts, ends, intervalCount);
+        }
+
+        int timeSlotCount = buffer.getInt();
+        List<TimeSlot> timeSlots = new ArrayList<>(timeSlotCount);
+        for (int i = 0; i < timeSlotCount; i++) {
+            TimeSlot timeSlot = new TimeSlot();
+            timeSlot.setStart(toDate(buffer.getLong()));
+            timeSlot.setEnd(toDate(buffer.getLong()));
+            int flags = buffer.get();
+            timeSlot.setPublicBookable((flags & PUBLIC_BOOKABLE_NULL) != 0 ? null : (flags & PUBLIC_BOOKABLE) != 0);
+            timeSlot.setOutOfOffice((flags & OUT_OF_OFFICE_NULL) != 0 ? null : (flags & OUT_OF_OFFICE) != 0);
+            timeSlot.setId(readString(buffer));
+            timeSlot.setCalendarId(readString(buffer));
+            timeSlot.setTypeId(readString(buffer));
+            timeSlots.add(timeSlot);
+        }
+
+        int recurringTimeSlotCount = buffer.getInt();
+        List<RecurringTimeSlot> recurringTimeSlots = new ArrayList<>(recurringTimeSlotCount);
+        for (int i = 0; i < recurringTimeSlotCount; i++) {
+            RecurringTimeSlot recurringTimeSlot = new RecurringTimeSlot();
+            int days = buffer.get() & 0xff;
+            if (days != DAYS_NULL) {
+                List<DayOfWeek> daysOfWeek = new ArrayList<>();
+                for (DayOfWeek dayOfWeek : DayOfWeek.values()) {
+                    if ((days & 1 << dayOfWeek.ordinal()) != 0) {
+                        daysOfWeek.add(dayOfWeek);
+                    }
+                }
+                recurringTimeSlot.setDaysOfWeek(daysOfWeek);
+            }
+            recurringTimeSlot.setStartTime(toLocalTime(buffer.getInt()));
+            recurringTimeSlot.setEndTime(toLocalTime(buffer.getInt()));
+            recurringTimeSlot.setValidFrom(toLocalDate(buffer.getLong()));
+            recurringTimeSlot.setValidUntil(toLocalDate(buffer.getLong()));
+            int flags = buffer.get();
+            recurringTimeSlot.setPublicBookable((flags & PUBLIC_BOOKABLE_NULL) != 0 ? null : (flags & PUBLIC_BOOKABLE) != 0);
+            recurringTimeSlot.setId(readString(buffer));
+            recurringTimeSlot.setCalendarId(readString(buffer));
+            recurringTimeSlot.setTypeId(readString(buffer));
+            recurringTimeSlot.setTimeZone(readString(buffer));
+            int exceptionCount = buffer.getInt();
+            List<LocalDate> exceptions = new ArrayList<>(exceptionCount);
+            for (int exception = 0; exception < exceptionCount; exception++) {
+                exceptions.add(LocalDate.ofEpochDay(buffer.getLong()));
+            }
+            recurringTimeSlot.setExceptions(exceptions);
+            recurringTimeSlots.add(recurringTimeSlot);
+        }
+
+        return CalendarData.of(calendarId, appointments, timeSlots, recurringTimeSlots);
+    }
+
+    /**
+     * View of the next column in buffer without copying it, buffer is moved behind the column.
+     */
+    private static LongBuffer readColumn(ByteBuffer buffer, int count) {
+        ByteBuffer column = buffer.slice();
+        column.limit(count * Long.BYTES);
+        buffer.position(buffer.position() + count * Long.BYTES);
+        return column.asLongBuffer();
+    }
+
+    private static int flags(Boolean publicBookable, Boolean outOfOffice) {
+        int flags = 0;
+        if (publicBookable == null) {
+            flags |= PUBLIC_BOOKABLE_NULL;
+        } else if (publicBookable) {
+            flags |= PUBLIC_BOOKABLE;
+        }
+        if (outOfOffice == null) {
+            flags |= OUT_OF_OFFICE_NULL;
+        } else if (outOfOffice) {
+            flags |= OUT_OF_OFFICE;
+        }
+        return flags;
+    }
+
+    private static Date toDate(long epochMilli) {
+        return epochMilli == Long.MIN_VALUE ? null : new Date(epochMilli);
+    }
+
+    private static LocalTime toLocalTime(int secondOfDay) {
+        return secondOfDay < 0 ? null : LocalTime.ofSecondOfDay(secondOfDay);
+    }
+
+    private static LocalDate toLocalDate(long epochDay) {
+        return epochDay == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(epochDay);
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,47 +1,471 @@
 package com.no.patient.sky.patientsky.initializer;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.no.patient.sky.patientsky.dto.Appointments;
+import com.no.patient.sky.patientsky.dto.Booking;
 import com.no.patient.sky.patientsky.exception.AppointmentException;
+import com.no.patient.sky.patientsky.index.BusyIntervalCursor;
+import com.no.patient.sky.patientsky.index.CalendarData;
+import com.no.patient.sky.patientsky.index.CalendarIndex;
+import com.no.patient.sky.patientsky.index.FreeTimeBitmaps;
+import com.no.patient.sky.patientsky.index.SegmentStore;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 
 @Component
 @Slf4j
 public class JsonData {
 
-    private Map<String, Appointments> calendarAppointments = new HashMap<>();
+    /**
+     * Calendars by calendar Id. Calendar data is never modified, a reload or booking replaces the data of one calendar
+     * with a compare and set, so readers never block and writers of different calendars do not wait for each other.
+     */
+    private final ConcurrentHashMap<String, CalendarData> calendars = new ConcurrentHashMap<>();
+
+    /**
+     * Last generation given to published calendar data. Calendars loaded on startup have generation 0.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Calendar Ids of the json files last seen in the data directory, to remove calendars whose file is gone on a rescan.
+     */
+    private final Set<String> directoryCalendarIds = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Bookings of removed calendars by calendar Id, given back to the calendar when its file is added again,
+     * as the write ahead log would replay them on the next start.
+     */
+    private final ConcurrentHashMap<String, CalendarIndex> removedBookings = new ConcurrentHashMap<>();
 
     @Value("classpath:*.json")
     private Resource[] resources;
 
+    @Value("${appointment.snapshot.file:}")
+    private String snapshotFile;
+
+    @Value("${appointment.data.directory:}")
+    private String dataDirectory;
+
+    /**
+     * Keep interval columns outside of the heap, in direct memory or in the memory mapped snapshot.
+     */
+    @Value("${appointment.store.off-heap:false}")
+    private boolean offHeap;
+
+    /**
+     * Directory of monthly appointment segments, appointments are kept in memory if not configured.
+     */
+    @Value("${appointment.segment.directory:}")
+    private String segmentDirectory;
+
+    /**
+     * Maximum bytes of segments kept in memory.
+     */
+    @Value("${appointment.segment.cache-bytes:67108864}")
+    private long segmentCacheBytes;
+
+    /**
+     * Maximum bytes of free time bitmaps of all calendars kept in memory.
+     */
+    @Value("${appointment.bitmap.cache-bytes:16777216}")
+    private long bitmapCacheBytes = 16777216;
+
+    private SegmentStore segmentStore;
+
+    /**
+     * Publisher of {@link CalendarChangedEvent}, null if not created by Spring.
+     */
+    @Autowired(required = false)
+    private ApplicationEventPublisher eventPublisher;
+
+    /**
+     * Load calendars from json files in classpath and data directory.
+     * If a snapshot of the same files exists it is read instead, otherwise the files are parsed
+     * in parallel and a new snapshot is written for the next start.
+     */
     @PostConstruct
     public void loadJsonFiles() {
-        for (Resource resource : resources) {
-            try {
-                Appointments appointments = new ObjectMapper().readValue(resource.getInputStream(), Appointments.class);
-                calendarAppointments.put(removeFileNameExtension(resource.getFilename()), appointments);
-            } catch (IOException e) {
-                log.error("Error in Reading JSON file {}", resource.getFilename());
-                throw new AppointmentException("Error in loading json data from resources");
+        long startTime = System.currentTimeMillis();
+        FreeTimeBitmaps.setMaxCachedBytes(bitmapCacheBytes);
+        Resource[] allResources = getAllResources();
+        long fingerprint = fingerprint(allResources);
+
+        Map<String, CalendarData> loadedCalendars = null;
+        if (StringUtils.hasText(snapshotFile)) {
+            loadedCalendars = CalendarSnapshot.read(Paths.get(snapshotFile), fingerprint, offHeap);
+        }
+
+        if (loadedCalendars == null) {
+            loadedCalendars = parseJsonFiles(allResources);
+            if (StringUtils.hasText(snapshotFile)) {
+                CalendarSnapshot.write(Paths.get(snapshotFile), fingerprint, loadedCalendars);
             }
         }
+
+        if (StringUtils.hasText(segmentDirectory)) {
+            segmentStore = createSegmentStore();
+            loadedCalendars.replaceAll((calendarId, calendarData) -> toSegments(calendarData));
+        }
+
+        calendars.putAll(loadedCalendars);
+        calendars.keySet().retainAll(loadedCalendars.keySet());
+        long intervals = loadedCalendars.values().stream().mapToLong(CalendarData::getAppointmentCount).sum();
+        log.info("Loaded {} calendars with {} appointment intervals {} in {} ms", loadedCalendars.size(), intervals,
+                segmentStore != null ? "in segments" : offHeap ? "off heap" : "on heap", System.currentTimeMillis() - startTime);
     }
 
-    public Appointments getAppointmentByCalendarId(UUID calendarId) {
-        return calendarAppointments.get(calendarId.toString());
+    /**
+     * Delete segment files written by this instance.
+     */
+    @PreDestroy
+    public void close() {
+        if (segmentStore == null) {
+            return;
+        }
+        try {
+            segmentStore.close();
+        } catch (IOException e) {
+            log.error("Error in deleting segment directory {}", segmentStore.getDirectory(), e);
+        }
+    }
+
+    /**
+     * Parse a changed calendar file again and publish it, a deleted file removes the calendar.
+     * If the file can not be parsed, for example because it is still being written, the previous data is kept.
+     *
+     * @param file json file in data directory
+     */
+    public void reloadCalendarFile(Path file) {
+        String calendarId = removeFileNameExtension(file.getFileName().toString());
+        if (!Files.exists(file)) {
+            directoryCalendarIds.remove(calendarId);
+            publishCalendar(calendarId, null);
+            log.info("Calendar {} removed", calendarId);
+            return;
+        }
+
+        directoryCalendarIds.add(calendarId);
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            publishCalendar(calendarId, toSegments(toStore(CalendarFileParser.parse(calendarId, inputStream))));
+            log.info("Calendar {} reloaded from {}", calendarId, file);
+        } catch (IOException | RuntimeException e) {
+            log.error("Error in Reading JSON file {}, previous data of calendar is kept", file, e);
+        }
+    }
+
+    /**
+     * Reload every json file of the data directory and remove the calendars whose file is gone,
+     * when changes of the directory may have been missed.
+     */
+    public void reloadDataDirectory() {
+        Path directory = getDataDirectory();
+        if (directory == null) {
+            return;
+        }
+
+        Set<Path> files = new LinkedHashSet<>();
+        try (DirectoryStream<Path> directoryFiles = Files.newDirectoryStream(directory, "*.json")) {
+            directoryFiles.forEach(files::add);
+        } catch (IOException e) {
+            log.error("Error in reading data directory {}, calendars are not reloaded", directory, e);
+            return;
+        }
+        for (String calendarId : directoryCalendarIds) {
+            files.add(directory.resolve(calendarId + ".json"));
+        }
+        files.forEach(this::reloadCalendarFile);
+        log.info("Reloaded {} calendar files of {}", files.size(), directory);
+    }
+
+    /**
+     * Directory with json files that are loaded after classpath files and watched for changes.
+     *
+     * @return Path of directory or null if not configured
+     */
+    public Path getDataDirectory() {
+        return StringUtils.hasText(dataDirectory) ? Paths.get(dataDirectory) : null;
+    }
+
+    /**
+     * Unavailable intervals of calendar, busy or outside bookable timeslots, sorted and merged at load time.
+     * Recurring timeslots and appointments in segments are not included as they are only read for a period.
+     *
+     * @param calendarId
+     * @return Index of calendar or null if calendar does not exist
+     */
+    public CalendarIndex getCalendarIndex(UUID calendarId) {
+        CalendarData calendarData = calendars.get(calendarId.toString());
+        return calendarData == null ? null : calendarData.getUnavailableIntervals();
+    }
+
+    /**
+     * Unavailable intervals of calendar for appointments of a timeslot type within period.
+     * Recurring timeslots of calendar are expanded and segments of its months are read for period, the index is only valid within it.
+     *
+     * @param calendarId
+     * @param typeId      type of timeslot or null for any type
+     * @param startSecond start of period in epoch seconds
+     * @param endSecond   end of period in epoch seconds
+     * @return Index of calendar or null if calendar does not exist
+     */
+    public CalendarIndex getCalendarIndex(UUID calendarId, String typeId, long startSecond, long endSecond) {
+        CalendarData calendarData = calendars.get(calendarId.toString());
+        return calendarData == null ? null : calendarData.getUnavailableIntervals(typeId, startSecond, endSecond);
+    }
+
+    /**
+     * Unavailable time of calendar within period for a walk of free time of at least given length.
+     * Free time shorter than the length may be read as unavailable, see {@link CalendarData#getUnavailableCursor(String, long, long, long)}.
+     *
+     * @param calendarId
+     * @param typeId         type of timeslot or null for any type
+     * @param startSecond    start of period in epoch seconds
+     * @param endSecond      end of period in epoch seconds
+     * @param minFreeSeconds length of free time that is not read as unavailable
+     * @return Cursor of calendar or null if calendar does not exist
+     */
+    public BusyIntervalCursor getUnavailableCursor(UUID calendarId, String typeId, long startSecond, long endSecond, long minFreeSeconds) {
+        CalendarData calendarData = calendars.get(calendarId.toString());
+        return calendarData == null ? null : calendarData.getUnavailableCursor(typeId, startSecond, endSecond, minFreeSeconds);
+    }
+
+    /**
+     * All data of calendar, for lookups that need more than one index of the same calendar.
+     *
+     * @param calendarId
+     * @return Calendar data or null if calendar does not exist
+     */
+    public CalendarData getCalendarData(UUID calendarId) {
+        return calendars.get(calendarId.toString());
+    }
+
+    /**
+     * Generation of calendar data, changes on every reload or booking of the calendar.
+     * Read it before the index: a result computed from the index is then never newer than the generation it is tagged with.
+     *
+     * @param calendarId
+     * @return Generation of calendar or -1 if calendar does not exist
+     */
+    public long getGeneration(UUID calendarId) {
+        CalendarData calendarData = calendars.get(calendarId.toString());
+        return calendarData == null ? -1 : calendarData.getGeneration();
     }
 
     public boolean checkIfCalendarIdDoesNotExists(UUID calendarId) {
-        return !calendarAppointments.containsKey(calendarId.toString());
+        return !calendars.containsKey(calendarId.toString());
+    }
+
+    /**
+     * Add booked interval to calendar and publish it.
+     * The caller is responsible for checking conflicts, this only records the booking.
+     *
+     * @param booking
+     * @return false if calendar does not exist
+     */
+    public boolean addBooking(Booking booking) {
+        while (true) {
+            CalendarData calendarData = calendars.get(booking.getCalendarId());
+            if (calendarData == null) {
+                return false;
+            }
+
+            long publishedGeneration = generation.incrementAndGet();
+            CalendarData bookedData = calendarData.withBooking(booking.getStartTime(), booking.getEndTime()).withGeneration(publishedGeneration);
+            if (calendars.replace(booking.getCalendarId(), calendarData, bookedData)) {
+                publishChangedEvent(booking.getCalendarId(), publishedGeneration);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Add booking replayed from the write ahead log. A booking of a calendar that does not exist is kept
+     * for the calendar, in case its file is added again.
+     *
+     * @param booking
+     * @return false if calendar does not exist
+     */
+    public boolean restoreBooking(Booking booking) {
+        if (addBooking(booking)) {
+            return true;
+        }
+        removedBookings.merge(booking.getCalendarId(), CalendarIndex.empty().withInterval(booking.getStartTime(), booking.getEndTime()),
+                (bookings, booked) -> bookings.withInterval(booking.getStartTime(), booking.getEndTime()));
+        return false;
+    }
+
+    /**
+     * Replace data of one calendar with copy on write.
+     * Bookings of the previous data are kept, as they are not part of the json file. Bookings of a removed calendar
+     * are kept aside and given back when the calendar is added again.
+     * The data is replaced only if the calendar did not change in between, otherwise it is tried again on the new data,
+     * so concurrent reloads and bookings do not lose each others update.
+     * A {@link CalendarChangedEvent} is published once the new data is visible to readers.
+     *
+     * @param calendarId
+     * @param calendarData new data or null to remove calendar
+     */
+    private void publishCalendar(String calendarId, CalendarData calendarData) {
+        if (calendarData == null) {
+            CalendarData removedData = calendars.remove(calendarId);
+            if (removedData != null && removedData.getBookings().size() > 0) {
+                removedBookings.put(calendarId, removedData.getBookings());
+            }
+            publishChangedEvent(calendarId, -1);
+            return;
+        }
+
+        while (true) {
+            CalendarData previousData = calendars.get(calendarId);
+            CalendarIndex previousBookings = previousData != null ? previousData.getBookings() : removedBookings.get(calendarId);
+            long publishedGeneration = generation.incrementAndGet();
+            CalendarData publishedData = withPreviousBookings(calendarData, previousBookings).withGeneration(publishedGeneration);
+            boolean published = previousData == null
+                    ? calendars.putIfAbsent(calendarId, publishedData) == null
+                    : calendars.replace(calendarId, previousData, publishedData);
+            if (published) {
+                if (previousData == null) {
+                    removedBookings.remove(calendarId);
+                }
+                publishChangedEvent(calendarId, publishedGeneration);
+                return;
+            }
+        }
+    }
+
+    private void publishChangedEvent(String calendarId, long publishedGeneration) {
+        if (eventPublisher != null) {
+            eventPublisher.publishEvent(new CalendarChangedEvent(calendarId, publishedGeneration));
+        }
+    }
+
+    private CalendarData toStore(CalendarData calendarData) {
+        return offHeap ? calendarData.toOffHeap() : calendarData;
+    }
+
+    /**
+     * Move appointments of calendar to segments on disk, if segments are configured.
+     */
+    private CalendarData toSegments(CalendarData calendarData) {
+        if (segmentStore == null) {
+            return calendarData;
+        }
+        return calendarData.withSegments(segmentStore.write(calendarData.getCalendarId(), calendarData.getAppointments()));
+    }
+
+    private SegmentStore createSegmentStore() {
+        try {
+            return new SegmentStore(Paths.get(segmentDirectory), segmentCacheBytes);
+        } catch (IOException e) {
+            log.error("Error in creating segment directory {}", segmentDirectory, e);
+            throw new AppointmentException("Error in creating segment directory");
+        }
+    }
+
+    private CalendarData withPreviousBookings(CalendarData calendarData, CalendarIndex previousBookings) {
+        if (previousBookings == null || previousBookings.size() == 0 || calendarData.getBookings().size() > 0) {
+            return calendarData;
+        }
+        return calendarData.withBookings(previousBookings);
+    }
+
+    /**
+     * Classpath files followed by files of data directory, so a calendar in data directory replaces the classpath one.
+     */
+    private Resource[] getAllResources() {
+        Path directory = getDataDirectory();
+        if (directory == null) {
+            return resources;
+        }
+
+        List<Resource> allResources = new ArrayList<>(Arrays.asList(resources));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.json")) {
+            for (Path file : files) {
+                allResources.add(new FileSystemResource(file));
+                directoryCalendarIds.add(removeFileNameExtension(file.getFileName().toString()));
+            }
+        } catch (IOException e) {
+            log.error("Error in reading data directory {}", directory);
+            throw new AppointmentException("Error in loading json data from data directory");
+        }
+        return allResources.toArray(new Resource[0]);
+    }
+
+    /**
+     * Parse all files in parallel, each file is read with a streaming parser.
+     * If the same calendar Id is found twice the file read last is used.
+     *
+     * @param resources
+     * @return Calendars by calendar Id
+     */
+    private Map<String, CalendarData> parseJsonFiles(Resource[] resources) {
+        try {
+            return Arrays.stream(resources)
+                    .parallel()
+                    .map(this::parseJsonFile)
+                    .collect(Collectors.toMap(CalendarData::getCalendarId, Function.identity(), (first, second) -> second, HashMap::new));
+        } catch (UncheckedIOException exception) {
+            throw new AppointmentException("Error in loading json data from resources");
+        }
+    }
+
+    private CalendarData parseJsonFile(Resource resource) {
+        try {
+            return toStore(CalendarFileParser.parse(removeFileNameExtension(resource.getFilename()), resource.getInputStream()));
+        } catch (IOException e) {
+            log.error("Error in Reading JSON file {}", resource.getFilename());
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Fingerprint of source files from name, size and modification time,
+     * used to decide if a snapshot was written from the same files.
+     *
+     * @param resources
+     * @return Fingerprint
+     */
+    private long fingerprint(Resource[] resources) {
+        CRC32 checksum = new CRC32();
+        Arrays.stream(resources)
+                .map(resource -> {
+                    try {
+                        return resource.getFilename() + ":" + resource.contentLength() + ":" + resource.lastModified();
+                    } catch (IOException e) {
+                        return resource.getFilename();
+                    }
+                })
+                .sorted()
+                .forEach(description -> checksum.update(description.getBytes()));
+        return checksum.getValue() << 16 | resources.length;
     }
 
     private String removeFileNameExtension(String fileName) {
@@ -0,0 +1,256 @@
+package com.no.patient.sky.patientsky.metrics;
+
+import com.no.patient.sky.patientsky.request.AppointmentRequest;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latency of each phase of an availability request and the size of the work done.
+ * <p>
+ * Phases: {@code validate} parses the period, {@code lookup} finds the index of a calendar, {@code slots} walks the
+ * index and generates slots of a calendar (not recorded on a cache hit) and {@code serialize} writes the response.
+ * Lookup and slots are recorded once per calendar. Requests slower than the configured threshold are logged with
+ * their shape, so slow queries can be reproduced. Bytes allocated by the request thread are recorded where the JVM
+ * supports measuring them, work done by helper threads of the calendar pool is not included.
+ * <p>
+ * Admission control records the estimated cost of requests, the time heavy requests wait for a permit and
+ * the requests it downgrades or rejects, by reason {@code budget} or {@code timeout}.
+ * <p>
+ * The availability feed records its open subscriptions, the evaluations of changed calendars and the changes sent.
+ */
+@Component
+@Slf4j
+public class AvailabilityMetrics {
+
+    public static final String PHASE_VALIDATE = "validate";
+    public static final String PHASE_LOOKUP = "lookup";
+    public static final String PHASE_SLOTS = "slots";
+    public static final String PHASE_SERIALIZE = "serialize";
+
+    public static final String REJECTED_BUDGET = "budget";
+    public static final String REJECTED_TIMEOUT = "timeout";
+
+    private final Timer requestTimer;
+    private final Timer validateTimer;
+    private final Timer lookupTimer;
+    private final Timer slotsTimer;
+    private final Timer serializeTimer;
+    private final DistributionSummary calendarsPerRequest;
+    private final DistributionSummary appointmentsScanned;
+    private final DistributionSummary slotsEmitted;
+    private final DistributionSummary allocatedBytes;
+    private final DistributionSummary admissionCost;
+    private final Timer admissionQueueTimer;
+    private final Counter downgradedCounter;
+    private final Counter rejectedBudgetCounter;
+    private final Counter rejectedTimeoutCounter;
+    private final AtomicInteger feedSubscriptions = new AtomicInteger();
+    private final Counter feedEvaluationCounter;
+    private final Counter feedChangeCounter;
+    private final long slowQueryThresholdNanos;
+
+    /**
+     * Bean measuring bytes allocated per thread, null if the JVM does not support it.
+     */
+    private final com.sun.management.ThreadMXBean allocationBean;
+
+    public AvailabilityMetrics(MeterRegistry registry,
+                               @Value("${appointment.metrics.slow-query-threshold:500ms}") Duration slowQueryThreshold) {
+        this.requestTimer = Timer.builder("availability.request")
+                .description("Time to compute available slots of a request")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.validateTimer = phaseTimer(registry, PHASE_VALIDATE);
+        this.lookupTimer = phaseTimer(registry, PHASE_LOOKUP);
+        this.slotsTimer = phaseTimer(registry, PHASE_SLOTS);
+        this.serializeTimer = phaseTimer(registry, PHASE_SERIALIZE);
+        this.calendarsPerRequest = DistributionSummary.builder("availability.calendars")
+                .description("Calendars per request")
+                .register(registry);
+        this.appointmentsScanned = DistributionSummary.builder("availability.appointments.scanned")
+                .description("Busy intervals walked for one calendar or common time")
+                .register(registry);
+        this.slotsEmitted = DistributionSummary.builder("availability.slots.emitted")
+                .description("Slots or slot runs returned per request")
+                .register(registry);
+        this.allocatedBytes = DistributionSummary.builder("availability.request.allocated")
+                .description("Bytes allocated by the thread of a request")
+                .baseUnit("bytes")
+                .register(registry);
+        this.admissionCost = DistributionSummary.builder("availability.admission.cost")
+                .description("Estimated slots of a request")
+                .register(registry);
+        this.admissionQueueTimer = Timer.builder("availability.admission.queue")
+                .description("Time a heavy request waited for a permit")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.downgradedCounter = Counter.builder("availability.admission.downgraded")
+                .description("Requests over budget answered in compact format")
+                .register(registry);
+        this.rejectedBudgetCounter = rejectedCounter(registry, REJECTED_BUDGET);
+        this.rejectedTimeoutCounter = rejectedCounter(registry, REJECTED_TIMEOUT);
+        Gauge.builder("availability.feed.subscriptions", feedSubscriptions, AtomicInteger::get)
+                .description("Open subscriptions of the availability feed")
+                .register(registry);
+        this.feedEvaluationCounter = Counter.builder("availability.feed.evaluations")
+                .description("Lookups of a changed calendar and timeslot type, shared by all its subscriptions")
+                .register(registry);
+        this.feedChangeCounter = Counter.builder("availability.feed.changes")
+                .description("Snapshots and changes sent to subscriptions")
+                .register(registry);
+        this.slowQueryThresholdNanos = slowQueryThreshold.toNanos();
+        this.allocationBean = getAllocationBean();
+    }
+
+    /**
+     * Bytes allocated by the current thread so far, to be passed to {@link #recordRequest(AppointmentRequest, long, long, long)}.
+     *
+     * @return Allocated bytes or -1 if not supported
+     */
+    public long getAllocatedBytes() {
+        return allocationBean == null ? -1 : allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Record time of a phase.
+     *
+     * @param phase      one of the PHASE constants
+     * @param startNanos {@link System#nanoTime()} at start of phase
+     */
+    public void recordPhase(String phase, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        switch (phase) {
+            case PHASE_VALIDATE:
+                validateTimer.record(elapsed, TimeUnit.NANOSECONDS);
+                break;
+            case PHASE_LOOKUP:
+                lookupTimer.record(elapsed, TimeUnit.NANOSECONDS);
+                break;
+            case PHASE_SLOTS:
+                slotsTimer.record(elapsed, TimeUnit.NANOSECONDS);
+                break;
+            case PHASE_SERIALIZE:
+                serializeTimer.record(elapsed, TimeUnit.NANOSECONDS);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown phase " + phase);
+        }
+    }
+
+    public void recordAppointmentsScanned(int count) {
+        appointmentsScanned.record(count);
+    }
+
+    public void recordAdmissionCost(long cost) {
+        admissionCost.record(cost);
+    }
+
+    /**
+     * Record time a heavy request waited for a permit, also if it timed out.
+     *
+     * @param startNanos {@link System#nanoTime()} when request started waiting
+     */
+    public void recordAdmissionQueue(long startNanos) {
+        admissionQueueTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordDowngraded() {
+        downgradedCounter.increment();
+    }
+
+    /**
+     * Record a request rejected by admission control.
+     *
+     * @param reason one of the REJECTED constants
+     */
+    public void recordRejected(String reason) {
+        switch (reason) {
+            case REJECTED_BUDGET:
+                rejectedBudgetCounter.increment();
+                break;
+            case REJECTED_TIMEOUT:
+                rejectedTimeoutCounter.increment();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown reason " + reason);
+        }
+    }
+
+    public void recordSubscribed() {
+        feedSubscriptions.incrementAndGet();
+    }
+
+    public void recordUnsubscribed() {
+        feedSubscriptions.decrementAndGet();
+    }
+
+    public void recordFeedEvaluation() {
+        feedEvaluationCounter.increment();
+    }
+
+    public void recordFeedChange() {
+        feedChangeCounter.increment();
+    }
+
+    /**
+     * Record a completed request and log it if it is slower than threshold.
+     *
+     * @param request             request with validated period
+     * @param startNanos          {@link System#nanoTime()} at start of request
+     * @param startAllocatedBytes {@link #getAllocatedBytes()} at start of request
+     * @param slots               number of slots or slot runs in response
+     */
+    public void recordRequest(AppointmentRequest request, long startNanos, long startAllocatedBytes, long slots) {
+        long elapsed = System.nanoTime() - startNanos;
+        requestTimer.record(elapsed, TimeUnit.NANOSECONDS);
+        calendarsPerRequest.record(request.getCalendarIds().size());
+        slotsEmitted.record(slots);
+        if (startAllocatedBytes >= 0) {
+            allocatedBytes.record(getAllocatedBytes() - startAllocatedBytes);
+        }
+
+        if (elapsed > slowQueryThresholdNanos) {
+            log.warn("Slow availability request took {} ms: calendars={}, period={}, duration={}, mode={}, format={}, typeId={}, slots={}",
+                    TimeUnit.NANOSECONDS.toMillis(elapsed), request.getCalendarIds().size(), request.getPeriodToSearch(),
+                    request.getDuration(), request.getAvailabilityMode(), request.getSlotFormat(), request.getTypeId(), slots);
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean getAllocationBean() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()
+                && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemoryEnabled()) {
+            return (com.sun.management.ThreadMXBean) threadBean;
+        }
+        log.info("Allocated bytes of requests are not recorded, the JVM does not measure them per thread");
+        return null;
+    }
+
+    private static Timer phaseTimer(MeterRegistry registry, String phase) {
+        return Timer.builder("availability.phase")
+                .description("Time spent in a phase of an availability request")
+                .tag("phase", phase)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private static Counter rejectedCounter(MeterRegistry registry, String reason) {
+        return Counter.builder("availability.admission.rejected")
+                .description("Requests rejected by admission control")
+                .tag("reason", reason)
+                .register(registry);
+    }
+}
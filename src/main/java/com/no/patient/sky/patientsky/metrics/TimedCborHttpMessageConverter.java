@@ -0,0 +1,48 @@
+package com.no.patient.sky.patientsky.metrics;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.no.patient.sky.patientsky.response.AppointmentResponse;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+/**
+ * CBOR converter for internal callers, replaces the default CBOR converter of Spring.
+ * Uses the Jackson configuration of Spring Boot, but dates and instants are written and read as epoch millis.
+ */
+@Component
+public class TimedCborHttpMessageConverter extends MappingJackson2CborHttpMessageConverter {
+
+    private final AvailabilityMetrics availabilityMetrics;
+
+    /**
+     * @param objectMapperBuilder new builder of Spring Boot, it is changed to build the CBOR object mapper
+     * @param availabilityMetrics
+     */
+    public TimedCborHttpMessageConverter(Jackson2ObjectMapperBuilder objectMapperBuilder, AvailabilityMetrics availabilityMetrics) {
+        super(objectMapperBuilder.factory(new CBORFactory())
+                .featuresToEnable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                .featuresToDisable(SerializationFeature.WRITE_DATE_TIMESTAMPS_AS_NANOSECONDS,
+                        DeserializationFeature.READ_DATE_TIMESTAMPS_AS_NANOSECONDS)
+                .build());
+        this.availabilityMetrics = availabilityMetrics;
+    }
+
+    @Override
+    protected void writeInternal(Object object, Type type, HttpOutputMessage outputMessage) throws IOException {
+        if (!(object instanceof AppointmentResponse)) {
+            super.writeInternal(object, type, outputMessage);
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        super.writeInternal(object, type, outputMessage);
+        availabilityMetrics.recordPhase(AvailabilityMetrics.PHASE_SERIALIZE, startNanos);
+    }
+}
@@ -0,0 +1,37 @@
+package com.no.patient.sky.patientsky.metrics;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.no.patient.sky.patientsky.response.AppointmentResponse;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+/**
+ * Json converter of Spring Boot, recording the serialize phase of availability responses.
+ * The time includes writing to the response buffer, as Jackson writes while it serializes.
+ */
+@Component
+public class TimedJacksonHttpMessageConverter extends MappingJackson2HttpMessageConverter {
+
+    private final AvailabilityMetrics availabilityMetrics;
+
+    public TimedJacksonHttpMessageConverter(ObjectMapper objectMapper, AvailabilityMetrics availabilityMetrics) {
+        super(objectMapper);
+        this.availabilityMetrics = availabilityMetrics;
+    }
+
+    @Override
+    protected void writeInternal(Object object, Type type, HttpOutputMessage outputMessage) throws IOException {
+        if (!(object instanceof AppointmentResponse)) {
+            super.writeInternal(object, type, outputMessage);
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        super.writeInternal(object, type, outputMessage);
+        availabilityMetrics.recordPhase(AvailabilityMetrics.PHASE_SERIALIZE, startNanos);
+    }
+}
@@ -18,12 +18,36 @@ public class AppointmentRequest {
     @NotEmpty(message = "List of Calendar Ids cannot be Empty")
     private List<@NotNull(message = "UUId is invalid") UUID> calendarIds;
 
-    @Min(value = 0L, message = "Duration must be greater than zero")
+    @NotNull(message = "Duration cannot be Empty")
+    @Min(value = 1L, message = "Duration must be greater than zero")
     private Integer duration;
 
     @NotBlank(message = "Invalid Period to Search")
     private String periodToSearch;
 
+    private AvailabilityMode availabilityMode;
+
+    private SlotFormat slotFormat;
+
+    private String typeId;
+
+    /**
+     * Number of calendars that must be free at the same time in pool mode.
+     */
+    @Min(value = 1L, message = "Minimum free calendars must be greater than zero")
+    private Integer minFreeCalendars;
+
+    /**
+     * Return only the earliest slots, at most this many in total over all calendars.
+     */
+    @Min(value = 1L, message = "Limit must be greater than zero")
+    private Integer limit;
+
+    /**
+     * Next cursor of the previous page, to continue a request with a limit.
+     */
+    private String cursor;
+
     private Instant startTime;
     private Instant endTime;
 
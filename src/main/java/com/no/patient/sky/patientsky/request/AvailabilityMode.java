@@ -0,0 +1,23 @@
+package com.no.patient.sky.patientsky.request;
+
+/**
+ * How available time of several calendars is returned.
+ */
+public enum AvailabilityMode {
+
+    /**
+     * Available slots are returned for each calendar separately.
+     */
+    INDIVIDUAL,
+
+    /**
+     * Only slots where all requested calendars are free are returned.
+     */
+    COMMON,
+
+    /**
+     * Time where at least a minimum number of requested calendars are free is returned with the free calendars.
+     */
+    POOL
+
+}
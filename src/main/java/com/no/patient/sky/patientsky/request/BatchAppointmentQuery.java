@@ -0,0 +1,18 @@
+package com.no.patient.sky.patientsky.request;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import javax.validation.constraints.NotBlank;
+
+/**
+ * One query of a batch, the same as a single request with an Id to find its result.
+ */
+@Getter
+@Setter
+public class BatchAppointmentQuery extends AppointmentRequest {
+
+    @NotBlank(message = "Query Id cannot be Empty")
+    private String queryId;
+
+}
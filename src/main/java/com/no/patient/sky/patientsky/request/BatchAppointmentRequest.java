@@ -0,0 +1,18 @@
+package com.no.patient.sky.patientsky.request;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.NotNull;
+import java.util.List;
+
+@Getter
+@Setter
+public class BatchAppointmentRequest {
+
+    @NotEmpty(message = "List of Queries cannot be Empty")
+    private List<@NotNull(message = "Query cannot be Empty") @Valid BatchAppointmentQuery> queries;
+
+}
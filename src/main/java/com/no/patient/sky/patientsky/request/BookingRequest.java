@@ -0,0 +1,23 @@
+package com.no.patient.sky.patientsky.request;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import javax.validation.constraints.NotNull;
+import java.time.Instant;
+import java.util.UUID;
+
+@Getter
+@Setter
+public class BookingRequest {
+
+    @NotNull(message = "Calendar Id cannot be Empty")
+    private UUID calendarId;
+
+    @NotNull(message = "Start time cannot be Empty")
+    private Instant startTime;
+
+    @NotNull(message = "End time cannot be Empty")
+    private Instant endTime;
+
+}
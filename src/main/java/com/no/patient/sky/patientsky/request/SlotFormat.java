@@ -0,0 +1,18 @@
+package com.no.patient.sky.patientsky.request;
+
+/**
+ * How available slots are returned in response.
+ */
+public enum SlotFormat {
+
+    /**
+     * Every slot is returned with start and end time.
+     */
+    EXPANDED,
+
+    /**
+     * Back to back slots within one free time are returned once with start, end, duration and count.
+     */
+    COMPACT
+
+}
@@ -1,5 +1,6 @@
 package com.no.patient.sky.patientsky.response;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -7,8 +8,17 @@ import java.util.List;
 
 @Getter
 @Setter
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class AppointmentResponse {
 
     private List<CalendarAvailableSlot> availableSlots;
+    private List<AvailableSlot> commonAvailableSlotList;
+    private List<AvailableSlotRun> commonAvailableSlotRunList;
+    private List<PoolAvailableTime> poolAvailableTimeList;
+
+    /**
+     * Set if the request has a limit and there are more slots, pass it as cursor of the same request for the next page.
+     */
+    private String nextCursor;
 
 }
@@ -0,0 +1,30 @@
+package com.no.patient.sky.patientsky.response;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.UUID;
+
+/**
+ * Change of the available slots of one calendar of a subscription.
+ * The first change of a calendar is a snapshot with all its slots as added, later changes only hold the difference.
+ */
+@Builder
+@Getter
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class AvailabilityChange {
+
+    private UUID calendarId;
+    private boolean snapshot;
+
+    /**
+     * Generation of the calendar data the slots are computed from, -1 if calendar does not exist.
+     */
+    private long generation;
+
+    private AvailableSlotList addedSlots;
+    private AvailableSlotList removedSlots;
+    private String error;
+
+}
@@ -1,17 +1,21 @@
 package com.no.patient.sky.patientsky.response;
 
-import lombok.Builder;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import lombok.AllArgsConstructor;
 import lombok.Getter;
-import lombok.Setter;
-
-import java.util.Date;
 
+/**
+ * One available slot, times are epoch millis written like dates.
+ * Slots of a response are kept in an {@link AvailableSlotList}, which creates this only when a slot is read from it.
+ */
 @Getter
-@Setter
-@Builder
+@AllArgsConstructor
 public class AvailableSlot {
 
-    private Date startTime;
-    private Date endTime;
+    @JsonSerialize(using = TimestampWriter.EpochMilliSerializer.class)
+    private final long startTime;
+
+    @JsonSerialize(using = TimestampWriter.EpochMilliSerializer.class)
+    private final long endTime;
 
 }
@@ -0,0 +1,120 @@
+package com.no.patient.sky.patientsky.response;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * List of available slots stored as two columns of epoch millis.
+ * <p>
+ * Adding a slot only writes two longs, no object is created per slot. It is serialized straight from the columns
+ * in the same format as a list of {@link AvailableSlot}, {@link #get(int)} creates a slot only for callers that ask for it.
+ */
+@JsonSerialize(using = AvailableSlotList.Serializer.class)
+public final class AvailableSlotList extends AbstractList<AvailableSlot> implements RandomAccess {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] startTimes;
+    private long[] endTimes;
+    private int size;
+
+    public AvailableSlotList() {
+        startTimes = new long[INITIAL_CAPACITY];
+        endTimes = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Add slot at end of list.
+     *
+     * @param startTime epoch millis
+     * @param endTime   epoch millis
+     */
+    public void add(long startTime, long endTime) {
+        if (size == startTimes.length) {
+            startTimes = Arrays.copyOf(startTimes, size * 2);
+            endTimes = Arrays.copyOf(endTimes, size * 2);
+        }
+        startTimes[size] = startTime;
+        endTimes[size] = endTime;
+        size++;
+    }
+
+    public long getStartTime(int index) {
+        checkIndex(index);
+        return startTimes[index];
+    }
+
+    public long getEndTime(int index) {
+        checkIndex(index);
+        return endTimes[index];
+    }
+
+    @Override
+    public AvailableSlot get(int index) {
+        checkIndex(index);
+        return new AvailableSlot(startTimes[index], endTimes[index]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    /**
+     * Writes the columns as array of objects with startTime and endTime, timestamps are written by {@link TimestampWriter}.
+     */
+    public static final class Serializer extends StdSerializer<AvailableSlotList> {
+
+        public Serializer() {
+            super(AvailableSlotList.class);
+        }
+
+        @Override
+        public void serialize(AvailableSlotList availableSlots, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            TimestampWriter timestampWriter = TimestampWriter.of(provider.getConfig());
+            generator.writeStartArray(availableSlots.size);
+            for (int i = 0; i < availableSlots.size; i++) {
+                writeSlot(availableSlots.startTimes[i], availableSlots.endTimes[i], generator, provider, timestampWriter);
+            }
+            generator.writeEndArray();
+        }
+
+        @Override
+        public boolean isEmpty(SerializerProvider provider, AvailableSlotList availableSlots) {
+            return availableSlots.isEmpty();
+        }
+
+        /**
+         * Write one slot object, also used to write slots while they are generated.
+         *
+         * @param startTime       epoch millis
+         * @param endTime         epoch millis
+         * @param generator
+         * @param provider        provider of current serialization, null if written outside of a serializer
+         * @param timestampWriter writer for configuration of generator
+         * @throws IOException if writing fails
+         */
+        public static void writeSlot(long startTime, long endTime, JsonGenerator generator, SerializerProvider provider,
+                                     TimestampWriter timestampWriter) throws IOException {
+            generator.writeStartObject();
+            generator.writeFieldName("startTime");
+            timestampWriter.write(startTime, generator, provider);
+            generator.writeFieldName("endTime");
+            timestampWriter.write(endTime, generator, provider);
+            generator.writeEndObject();
+        }
+    }
+}
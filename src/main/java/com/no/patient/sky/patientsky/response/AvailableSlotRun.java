@@ -0,0 +1,23 @@
+package com.no.patient.sky.patientsky.response;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Date;
+
+/**
+ * Back to back slots of same duration within one free time.
+ * Slot n (starting from 0) starts at startTime plus n times duration, endTime is end of the last slot.
+ */
+@Getter
+@Setter
+@Builder
+public class AvailableSlotRun {
+
+    private Date startTime;
+    private Date endTime;
+    private Integer duration;
+    private Long count;
+
+}
@@ -0,0 +1,20 @@
+package com.no.patient.sky.patientsky.response;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Map;
+
+/**
+ * Results of batch by query Id, in order of the queries. Queries with invalid period are in errors instead.
+ */
+@Getter
+@Setter
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+public class BatchAppointmentResponse {
+
+    private Map<String, AppointmentResponse> results;
+    private Map<String, String> errors;
+
+}
@@ -0,0 +1,18 @@
+package com.no.patient.sky.patientsky.response;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.Date;
+import java.util.UUID;
+
+@Builder
+@Getter
+public class BookingResponse {
+
+    private UUID bookingId;
+    private UUID calendarId;
+    private Date startTime;
+    private Date endTime;
+
+}
@@ -0,0 +1,20 @@
+package com.no.patient.sky.patientsky.response;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Counters of the availability cache since startup.
+ * A hit on an entry of an older generation of the calendar counts as miss and as invalidation.
+ */
+@Builder
+@Getter
+public class CacheStatistics {
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+    private long size;
+
+}
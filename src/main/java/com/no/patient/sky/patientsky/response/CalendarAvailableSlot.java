@@ -14,6 +14,7 @@ public class CalendarAvailableSlot {
 
     private UUID calendarId;
     private List<AvailableSlot> availableSlotList;
+    private List<AvailableSlotRun> availableSlotRunList;
     private String error;
 
 }
@@ -0,0 +1,22 @@
+package com.no.patient.sky.patientsky.response;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Time in which the same calendars of a pool are free, at least the minimum number of them.
+ * Consecutive entries of back to back time differ in the calendars that are free.
+ */
+@Getter
+@Builder
+public class PoolAvailableTime {
+
+    private Date startTime;
+    private Date endTime;
+    private List<UUID> calendarIds;
+
+}
@@ -0,0 +1,148 @@
+package com.no.patient.sky.patientsky.response;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.databind.util.StdDateFormat;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.time.Instant;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Writes epoch milli timestamps exactly like Jackson writes a {@link Date} with the same configuration,
+ * without creating a {@link Date}, calendar or {@link String} for each timestamp.
+ * <p>
+ * As a number if dates are written as timestamps. With the default date format of Jackson in UTC the digits
+ * are formatted into a reused buffer and copied into the output. Any other date format, and years which that format
+ * writes in the Julian calendar or with more than four digits, are left to Jackson.
+ * <p>
+ * An instance keeps its buffer, so it is used by one thread at a time.
+ */
+public final class TimestampWriter {
+
+    private static final long FIRST_GREGORIAN_YEAR_MILLI = Instant.parse("1583-01-01T00:00:00Z").toEpochMilli();
+    private static final long FIRST_FIVE_DIGIT_YEAR_MILLI = Instant.parse("9999-12-31T23:59:59.999Z").toEpochMilli() + 1;
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private final boolean asNumber;
+    private final boolean formatted;
+    private final boolean colonInTimeZone;
+    private final char[] buffer = new char[29];
+
+    private TimestampWriter(boolean asNumber, boolean formatted, boolean colonInTimeZone) {
+        this.asNumber = asNumber;
+        this.formatted = formatted;
+        this.colonInTimeZone = colonInTimeZone;
+    }
+
+    /**
+     * Writer for configuration of object mapper.
+     *
+     * @param config serialization config of object mapper
+     * @return Writer writing timestamps like dates of config
+     */
+    public static TimestampWriter of(SerializationConfig config) {
+        DateFormat dateFormat = config.getDateFormat();
+        boolean standardFormat = dateFormat != null && dateFormat.getClass() == StdDateFormat.class && isUtc(config.getTimeZone());
+        return new TimestampWriter(config.isEnabled(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS), standardFormat,
+                standardFormat && ((StdDateFormat) dateFormat).isColonIncludedInTimeZone());
+    }
+
+    /**
+     * Write timestamp as value.
+     *
+     * @param epochMilli
+     * @param generator
+     * @param provider   provider of current serialization, null if written outside of a serializer
+     * @throws IOException if writing fails
+     */
+    public void write(long epochMilli, JsonGenerator generator, SerializerProvider provider) throws IOException {
+        if (asNumber) {
+            generator.writeNumber(epochMilli);
+        } else if (formatted && epochMilli >= FIRST_GREGORIAN_YEAR_MILLI && epochMilli < FIRST_FIVE_DIGIT_YEAR_MILLI) {
+            generator.writeString(buffer, 0, format(epochMilli));
+        } else if (provider != null) {
+            provider.defaultSerializeDateValue(epochMilli, generator);
+        } else {
+            generator.writeObject(new Date(epochMilli));
+        }
+    }
+
+    /**
+     * Format as yyyy-MM-dd'T'HH:mm:ss.SSS+0000 into buffer.
+     * Date is computed from days since epoch with the proleptic Gregorian civil calendar.
+     *
+     * @return Number of characters
+     */
+    private int format(long epochMilli) {
+        long days = Math.floorDiv(epochMilli, MILLIS_PER_DAY);
+        int milliOfDay = (int) Math.floorMod(epochMilli, MILLIS_PER_DAY);
+
+        long shiftedDays = days + 719468;
+        long era = Math.floorDiv(shiftedDays, 146097);
+        int dayOfEra = (int) (shiftedDays - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        writeDigits(year, 0, 4);
+        buffer[4] = '-';
+        writeDigits(month, 5, 2);
+        buffer[7] = '-';
+        writeDigits(day, 8, 2);
+        buffer[10] = 'T';
+        writeDigits(milliOfDay / 3600000, 11, 2);
+        buffer[13] = ':';
+        writeDigits(milliOfDay / 60000 % 60, 14, 2);
+        buffer[16] = ':';
+        writeDigits(milliOfDay / 1000 % 60, 17, 2);
+        buffer[19] = '.';
+        writeDigits(milliOfDay % 1000, 20, 3);
+        buffer[23] = '+';
+        buffer[24] = '0';
+        buffer[25] = '0';
+        if (colonInTimeZone) {
+            buffer[26] = ':';
+            buffer[27] = '0';
+            buffer[28] = '0';
+            return 29;
+        }
+        buffer[26] = '0';
+        buffer[27] = '0';
+        return 28;
+    }
+
+    private void writeDigits(int value, int offset, int length) {
+        for (int position = offset + length - 1; position >= offset; position--) {
+            buffer[position] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static boolean isUtc(TimeZone timeZone) {
+        return timeZone.getRawOffset() == 0 && !timeZone.useDaylightTime();
+    }
+
+    /**
+     * Serializer of an epoch milli property, written like a date.
+     */
+    public static final class EpochMilliSerializer extends StdSerializer<Long> {
+
+        public EpochMilliSerializer() {
+            super(Long.class);
+        }
+
+        @Override
+        public void serialize(Long epochMilli, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            of(provider.getConfig()).write(epochMilli, generator, provider);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.no.patient.sky.patientsky.service;
+
+import com.no.patient.sky.patientsky.exception.AppointmentException;
+import com.no.patient.sky.patientsky.exception.QueryBudgetExceededException;
+import com.no.patient.sky.patientsky.exception.QueryQueueTimeoutException;
+import com.no.patient.sky.patientsky.metrics.AvailabilityMetrics;
+import com.no.patient.sky.patientsky.request.AppointmentRequest;
+import com.no.patient.sky.patientsky.request.AvailabilityMode;
+import com.no.patient.sky.patientsky.request.SlotFormat;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the work of availability requests by their estimated cost, before anything is computed.
+ * <p>
+ * The cost is the number of slots a request can produce: calendars times period divided by duration, at most
+ * the limit of a request with a limit. A request over the budget is downgraded to compact format, which returns one
+ * run per free time instead of one entry per slot, or rejected if downgrading is disabled. Compact and pool requests
+ * do not create slots and are not rejected by the budget.
+ * Requests over the heavy cost wait in a fair queue for one of a few permits, so heavy queries can not take all
+ * cores, and are rejected if no permit is free within the queue timeout.
+ */
+@Slf4j
+@Component
+public class AdmissionControl {
+
+    private static final Permit NO_PERMIT = () -> {
+    };
+
+    private final long maxCost;
+    private final long heavyCost;
+    private final long queueTimeoutNanos;
+    private final boolean downgrade;
+    private final Semaphore heavyPermits;
+    private final AvailabilityMetrics availabilityMetrics;
+
+    /**
+     * @param maxCost            budget of slots of one request, or of all queries of a batch
+     * @param heavyCost          cost from which a request needs a permit
+     * @param maxConcurrentHeavy number of heavy requests evaluated at the same time
+     * @param queueTimeout       maximum time a heavy request waits for a permit
+     * @param downgrade          downgrade requests over budget to compact format instead of rejecting them
+     * @param availabilityMetrics
+     */
+    public AdmissionControl(@Value("${appointment.admission.max-cost:1000000}") long maxCost,
+                            @Value("${appointment.admission.heavy-cost:100000}") long heavyCost,
+                            @Value("${appointment.admission.max-concurrent-heavy:2}") int maxConcurrentHeavy,
+                            @Value("${appointment.admission.queue-timeout:2s}") Duration queueTimeout,
+                            @Value("${appointment.admission.downgrade:true}") boolean downgrade,
+                            AvailabilityMetrics availabilityMetrics) {
+        this.maxCost = maxCost;
+        this.heavyCost = heavyCost;
+        this.queueTimeoutNanos = queueTimeout.toNanos();
+        this.downgrade = downgrade;
+        this.heavyPermits = new Semaphore(Math.max(1, maxConcurrentHeavy), true);
+        this.availabilityMetrics = availabilityMetrics;
+    }
+
+    /**
+     * Estimated number of slots of request.
+     *
+     * @param request request with validated period
+     * @return Cost of request
+     * @throws AppointmentException if duration is not greater than zero
+     */
+    public long estimateCost(AppointmentRequest request) {
+        if (request.getDuration() == null || request.getDuration() < 1) {
+            throw new AppointmentException("Duration must be greater than zero");
+        }
+
+        long durationSeconds = TimeUnit.MINUTES.toSeconds(request.getDuration());
+        Duration period = Duration.between(request.getStartTime(), request.getEndTime());
+        long periodSeconds = period.getNano() > 0 ? period.getSeconds() + 1 : period.getSeconds();
+        long slotsPerCalendar = (periodSeconds + durationSeconds - 1) / durationSeconds;
+        long calendars = request.getCalendarIds().size();
+        long cost = slotsPerCalendar > Long.MAX_VALUE / calendars ? Long.MAX_VALUE : slotsPerCalendar * calendars;
+        return request.getLimit() == null ? cost : Math.min(cost, request.getLimit());
+    }
+
+    /**
+     * Admit request within what is left of the budget, downgrading it to compact format if it does not fit.
+     *
+     * @param request      request with validated period, its slot format is set to compact when it is downgraded
+     * @param admittedCost cost already admitted for the same batch, 0 for a single request
+     * @return Cost of request
+     * @throws QueryBudgetExceededException if request does not fit and downgrading is disabled
+     */
+    public long admit(AppointmentRequest request, long admittedCost) {
+        long cost = estimateCost(request);
+        availabilityMetrics.recordAdmissionCost(cost);
+        if (cost <= maxCost - admittedCost || request.getSlotFormat() == SlotFormat.COMPACT
+                || request.getAvailabilityMode() == AvailabilityMode.POOL) {
+            return cost;
+        }
+
+        if (downgrade) {
+            log.info("Request with estimated {} slots over budget of {} is answered in compact format: calendars={}, period={}, duration={}",
+                    cost, maxCost - admittedCost, request.getCalendarIds().size(), request.getPeriodToSearch(), request.getDuration());
+            request.setSlotFormat(SlotFormat.COMPACT);
+            availabilityMetrics.recordDowngraded();
+            return cost;
+        }
+
+        log.warn("Request with estimated {} slots over budget of {} is rejected: calendars={}, period={}, duration={}",
+                cost, maxCost - admittedCost, request.getCalendarIds().size(), request.getPeriodToSearch(), request.getDuration());
+        availabilityMetrics.recordRejected(AvailabilityMetrics.REJECTED_BUDGET);
+        throw new QueryBudgetExceededException("Query exceeds work budget, use a shorter period, a longer duration, a limit or compact format");
+    }
+
+    /**
+     * Wait for a permit if cost is heavy.
+     *
+     * @param cost cost of admitted request
+     * @return Permit to close when the request is done
+     * @throws QueryQueueTimeoutException if no permit is free within queue timeout
+     */
+    public Permit acquire(long cost) {
+        if (cost < heavyCost) {
+            return NO_PERMIT;
+        }
+
+        long startNanos = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = heavyPermits.tryAcquire(queueTimeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for heavy query permit", e);
+        } finally {
+            availabilityMetrics.recordAdmissionQueue(startNanos);
+        }
+
+        if (!acquired) {
+            availabilityMetrics.recordRejected(AvailabilityMetrics.REJECTED_TIMEOUT);
+            throw new QueryQueueTimeoutException("Too many heavy queries, try again later");
+        }
+        return heavyPermits::release;
+    }
+
+    /**
+     * Permit of an admitted request, released on close.
+     */
+    @FunctionalInterface
+    public interface Permit extends AutoCloseable {
+
+        @Override
+        void close();
+
+    }
+}
@@ -1,10 +1,18 @@
 package com.no.patient.sky.patientsky.service;
 
 import com.no.patient.sky.patientsky.request.AppointmentRequest;
+import com.no.patient.sky.patientsky.request.BatchAppointmentRequest;
 import com.no.patient.sky.patientsky.response.AppointmentResponse;
+import com.no.patient.sky.patientsky.response.BatchAppointmentResponse;
 
 public interface AppointmentService {
 
     AppointmentResponse getAvailableTimes(AppointmentRequest request);
 
+    AvailabilityWriter streamAvailableTimes(AppointmentRequest request);
+
+    BatchAppointmentResponse getBatchAvailableTimes(BatchAppointmentRequest request);
+
+    AvailabilityFeed.Subscription subscribeAvailableTimes(AppointmentRequest request, AvailabilityListener listener);
+
 }
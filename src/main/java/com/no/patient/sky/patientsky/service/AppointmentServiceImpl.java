@@ -1,24 +1,55 @@
 package com.no.patient.sky.patientsky.service;
 
-import com.no.patient.sky.patientsky.dto.Appointment;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.no.patient.sky.patientsky.exception.AppointmentException;
+import com.no.patient.sky.patientsky.index.BusyIntervalCursor;
+import com.no.patient.sky.patientsky.index.BusyIntervalMerger;
+import com.no.patient.sky.patientsky.index.CalendarData;
+import com.no.patient.sky.patientsky.index.CalendarIndex;
+import com.no.patient.sky.patientsky.index.FreeTimeBitmaps;
 import com.no.patient.sky.patientsky.initializer.JsonData;
+import com.no.patient.sky.patientsky.metrics.AvailabilityMetrics;
 import com.no.patient.sky.patientsky.request.AppointmentRequest;
+import com.no.patient.sky.patientsky.request.AvailabilityMode;
+import com.no.patient.sky.patientsky.request.BatchAppointmentQuery;
+import com.no.patient.sky.patientsky.request.BatchAppointmentRequest;
+import com.no.patient.sky.patientsky.request.SlotFormat;
 import com.no.patient.sky.patientsky.response.AppointmentResponse;
 import com.no.patient.sky.patientsky.response.AvailableSlot;
+import com.no.patient.sky.patientsky.response.AvailableSlotList;
+import com.no.patient.sky.patientsky.response.AvailableSlotRun;
+import com.no.patient.sky.patientsky.response.BatchAppointmentResponse;
 import com.no.patient.sky.patientsky.response.CalendarAvailableSlot;
+import com.no.patient.sky.patientsky.response.PoolAvailableTime;
+import com.no.patient.sky.patientsky.response.TimestampWriter;
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Instant;
 import java.time.format.DateTimeParseException;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -28,65 +59,803 @@ public class AppointmentServiceImpl implements AppointmentService {
     @Autowired
     JsonData fileData;
 
+    @Autowired
+    AvailabilityCache availabilityCache;
+
+    @Autowired
+    CalendarExecutor calendarExecutor;
+
+    @Autowired
+    AvailabilityMetrics availabilityMetrics;
+
+    @Autowired
+    AdmissionControl admissionControl;
+
+    @Autowired
+    AvailabilityFeed availabilityFeed;
+
     @Override
     public AppointmentResponse getAvailableTimes(AppointmentRequest request) {
 
+        long startNanos = System.nanoTime();
+        long startAllocatedBytes = availabilityMetrics.getAllocatedBytes();
         validateTimePeriod(request);
+        validatePool(request);
+        availabilityMetrics.recordPhase(AvailabilityMetrics.PHASE_VALIDATE, startNanos);
+
+        long cost = admissionControl.admit(request, 0);
+        AppointmentResponse response;
+        AdmissionControl.Permit permit = admissionControl.acquire(cost);
+        try {
+            if (isLimited(request)) {
+                response = getFirstAvailableTimes(request);
+            } else if (isPool(request)) {
+                response = getPoolAvailableTimes(request);
+            } else if (request.getAvailabilityMode() == AvailabilityMode.COMMON) {
+                response = getCommonAvailableTimes(request);
+            } else {
+                List<UUID> calendarIds = request.getCalendarIds();
+                CalendarAvailableSlot[] availableTimeSlot = new CalendarAvailableSlot[calendarIds.size()];
+                calendarExecutor.forEach(calendarIds.size(),
+                        position -> availableTimeSlot[position] = getCalendarAvailableSlot(calendarIds.get(position), request));
+
+                response = new AppointmentResponse();
+                response.setAvailableSlots(new ArrayList<>(Arrays.asList(availableTimeSlot)));
+            }
+        } finally {
+            permit.close();
+        }
+
+        availabilityMetrics.recordRequest(request, startNanos, startAllocatedBytes, countSlots(response));
+        return response;
+    }
+
+    /**
+     * Number of slots or slot runs in response, for metrics.
+     */
+    private long countSlots(AppointmentResponse response) {
+        long slots = size(response.getCommonAvailableSlotList()) + size(response.getCommonAvailableSlotRunList())
+                + size(response.getPoolAvailableTimeList());
+        for (CalendarAvailableSlot calendarAvailableSlot : response.getAvailableSlots()) {
+            slots += size(calendarAvailableSlot.getAvailableSlotList()) + size(calendarAvailableSlot.getAvailableSlotRunList());
+        }
+        return slots;
+    }
+
+    private int size(List<?> list) {
+        return list == null ? 0 : list.size();
+    }
+
+    /**
+     * Get available slots of one calendar from cache or compute them.
+     * Called concurrently for calendars of a request.
+     *
+     * @param calendarId
+     * @param request
+     * @return Available slots of calendar or error if Calendar Id does not exist
+     */
+    private CalendarAvailableSlot getCalendarAvailableSlot(UUID calendarId, AppointmentRequest request) {
+        long lookupStartNanos = System.nanoTime();
+        long generation = fileData.getGeneration(calendarId);
+        CalendarIndex index = findCalendarIndex(calendarId, request);
+        availabilityMetrics.recordPhase(AvailabilityMetrics.PHASE_LOOKUP, lookupStartNanos);
+        if (index == null) {
+            //Calendar Id does not exists hence form response with Error statement.
+            return CalendarAvailableSlot.builder().calendarId(calendarId).error("Calendar Id does not exist.").build();
+        }
+        return availabilityCache.get(calendarId, generation, request, () -> {
+            long slotsStartNanos = System.nanoTime();
+            CalendarAvailableSlot calendarAvailableSlot = getCalendarAvailableSlot(calendarId, index, request);
+            availabilityMetrics.recordPhase(AvailabilityMetrics.PHASE_SLOTS, slotsStartNanos);
+            return calendarAvailableSlot;
+        });
+    }
+
+    /**
+     * Get available slots of one calendar in format of request.
+     *
+     * @param calendarId
+     * @param index      unavailable intervals of calendar
+     * @param request
+     * @return Available slots of calendar
+     */
+    private CalendarAvailableSlot getCalendarAvailableSlot(UUID calendarId, CalendarIndex index, AppointmentRequest request) {
+        if (isCompact(request)) {
+            List<AvailableSlotRun> availableSlotRunList = getAvailableSlotRunsBetweenSchedules(index, request);
+
+            return CalendarAvailableSlot.builder()
+                    .calendarId(calendarId)
+                    .availableSlotRunList(availableSlotRunList)
+                    .build();
+        }
+
+        List<AvailableSlot> availableSlotList = getAvailableSlotsBetweenSchedules(index, request);
+
+        return CalendarAvailableSlot.builder()
+                .calendarId(calendarId)
+                .availableSlotList(availableSlotList)
+                .build();
+    }
+
+    /**
+     * Get slots where all calendars are free.
+     * If period and duration are on the five minute grid, the free time bitmaps of the days of the period are combined
+     * with a word wise AND and slots are read from the runs of free cells. Otherwise, or if some day of a calendar
+     * is not on the grid, busy intervals of calendars are merged in a single index with k-way merge and free time
+     * is split in slots once. Both cost depend on the number of days or appointments and not on the number of slots of each calendar.
+     * Calendar Ids that does not exist are returned with error and are not part of common time.
+     *
+     * @param request
+     * @return Response with common available slots
+     */
+    private AppointmentResponse getCommonAvailableTimes(AppointmentRequest request) {
+
+        List<CalendarAvailableSlot> missingCalendars = new ArrayList<>();
+        List<CalendarData> calendars = getCalendars(request, missingCalendars);
 
         AppointmentResponse response = new AppointmentResponse();
-        List<CalendarAvailableSlot> availableTimeSlot = new ArrayList<>();
+        response.setAvailableSlots(missingCalendars);
+        long[] freeCells = calendars.isEmpty() || !isOnGrid(request) ? null : FreeTimeBitmaps.commonFreeCells(
+                calendars, request.getTypeId(), request.getStartTime().getEpochSecond(), request.getEndTime().getEpochSecond());
+        if (freeCells != null) {
+            setCommonAvailableSlotsOfFreeCells(freeCells, request, response);
+            return response;
+        }
 
-        for (UUID calendarId : request.getCalendarIds()) {
-            if (fileData.checkIfCalendarIdDoesNotExists(calendarId)) {
-                //Calendar Id does not exists hence form response with Error statement.
-                availableTimeSlot.add(CalendarAvailableSlot.builder().calendarId(calendarId).error("Calendar Id does not exist.").build());
-            } else {
+        CalendarIndex busyIntervals = calendars.isEmpty() ? null : getCommonBusyIntervals(calendars.stream()
+                .map(calendarData -> calendarData.getUnavailableIntervals(request.getTypeId(), request.getStartTime().getEpochSecond(),
+                        ceilToSecond(request.getEndTime()))).collect(Collectors.toList()), request);
+        if (isCompact(request)) {
+            response.setCommonAvailableSlotRunList(busyIntervals == null
+                    ? new ArrayList<>() : getAvailableSlotRunsBetweenSchedules(busyIntervals, request));
+        } else {
+            response.setCommonAvailableSlotList(busyIntervals == null
+                    ? new ArrayList<>() : getAvailableSlotsBetweenSchedules(busyIntervals, request));
+        }
+        return response;
+    }
 
-                List<Appointment> schedules = getSchedulesForCalendarIdByTimePeriod(calendarId, request.getStartTime(), request.getEndTime());
+    /**
+     * Check if period starts and ends on the grid of free time bitmaps and duration is a multiple of it.
+     */
+    private boolean isOnGrid(AppointmentRequest request) {
+        return request.getDuration() != null && request.getDuration() > 0
+                && TimeUnit.MINUTES.toSeconds(request.getDuration()) % FreeTimeBitmaps.GRID_SECONDS == 0
+                && isOnGrid(request.getStartTime()) && isOnGrid(request.getEndTime());
+    }
 
-                if (schedules.isEmpty()) {
-                    //There are no appointments for this calendarId. Split available time in duration slots.
-                    List<AvailableSlot> availableSlotList = getAllTimeSlotsBetweenTime(request.getStartTime(), request.getEndTime(), request.getDuration());
+    private boolean isOnGrid(Instant time) {
+        return time.getNano() == 0 && Math.floorMod(time.getEpochSecond(), FreeTimeBitmaps.GRID_SECONDS) == 0;
+    }
 
-                    availableTimeSlot.add(CalendarAvailableSlot.builder()
-                            .calendarId(calendarId)
-                            .availableSlotList(availableSlotList)
-                            .build());
-                } else {
+    /**
+     * Split each run of free cells in slots of duration, in format of request.
+     *
+     * @param freeCells common free cells of period
+     * @param request
+     * @param response  common slots are set in response
+     */
+    private void setCommonAvailableSlotsOfFreeCells(long[] freeCells, AppointmentRequest request, AppointmentResponse response) {
+        long startSecond = request.getStartTime().getEpochSecond();
+        if (isCompact(request)) {
+            List<AvailableSlotRun> availableSlotRunList = new ArrayList<>();
+            FreeTimeBitmaps.forEachFreeRun(freeCells, startSecond, (freeStart, freeEnd) -> {
+                AvailableSlotRun availableSlotRun = getTimeSlotRunBetweenTime(toMillis(freeStart), toMillis(freeEnd), request.getDuration());
+                if (availableSlotRun != null) {
+                    availableSlotRunList.add(availableSlotRun);
+                }
+            });
+            response.setCommonAvailableSlotRunList(availableSlotRunList);
+        } else {
+            AvailableSlotList availableSlotList = new AvailableSlotList();
+            FreeTimeBitmaps.forEachFreeRun(freeCells, startSecond, (freeStart, freeEnd) ->
+                    addAllTimeSlotsBetweenTime(toMillis(freeStart), toMillis(freeEnd), request.getDuration(), availableSlotList));
+            response.setCommonAvailableSlotList(availableSlotList);
+        }
+    }
 
-                    //Sort list by startTime time.
-                    schedules.sort(Comparator.comparing(Appointment::getStartTime));
-
-                    List<AvailableSlot> availableSlotList = new ArrayList<>();
-
-                    /**
-                     * Iterate the list of schedules and get slots in between the available time.
-                     * Increment startTime time slot on each iteration.
-                     */
-                    Instant startTimeSlot = request.getStartTime();
-                    for (Appointment appointment : schedules) {
-                        if (startTimeSlot.isBefore(appointment.getStartTime().toInstant())) {
-                            availableSlotList.addAll(getAllTimeSlotsBetweenTime(startTimeSlot, appointment.getStartTime().toInstant(), request.getDuration()));
-                        }
-                        startTimeSlot = appointment.getEndTime().toInstant();
-                    }
+    private boolean isLimited(AppointmentRequest request) {
+        return request.getLimit() != null || request.getCursor() != null;
+    }
+
+    /**
+     * Get the earliest slots of request up to its limit, continuing after the previous page if a cursor is given.
+     * <p>
+     * There is one walk of free time per calendar, or one walk of the merged busy intervals for common time.
+     * Walks are read in time order of their next slot, ties in order of calendars, and stop when the limit is reached.
+     * Busy intervals after the last slot are not read, so the cost depends on the limit and not on the length of the period.
+     * Walks of a single calendar skip free time shorter than the duration in the free interval tree of the calendar.
+     *
+     * @param request validated request
+     * @return Response with at most limit slots and a cursor if there are more
+     * @throws AppointmentException if cursor is given without limit or is not valid for request
+     */
+    private AppointmentResponse getFirstAvailableTimes(AppointmentRequest request) {
+        if (request.getLimit() == null) {
+            throw new AppointmentException("Cursor requires a limit");
+        }
 
-                    //After iteration if there is slot available between endTime time Add to list.
-                    if (startTimeSlot.isBefore(request.getEndTime())) {
-                        availableSlotList.addAll(getAllTimeSlotsBetweenTime(startTimeSlot, request.getEndTime(), request.getDuration()));
+        boolean common = request.getAvailabilityMode() == AvailabilityMode.COMMON;
+        List<UUID> calendarIds = request.getCalendarIds();
+        Instant[] resumeTimes = AvailabilityCursor.decode(request, common ? 1 : calendarIds.size());
+        SlotWalker[] walkers = new SlotWalker[resumeTimes.length];
+        List<CalendarAvailableSlot> missingCalendars = new ArrayList<>();
+        BitSet missingCalendarPositions = new BitSet();
+        long endSecond = ceilToSecond(request.getEndTime());
+
+        if (common) {
+            List<CalendarIndex> indexes = getCalendarIndexes(request, missingCalendars);
+            if (!indexes.isEmpty() && resumeTimes[0] != null) {
+                walkers[0] = new SlotWalker(BusyIntervalMerger.cursor(indexes, resumeTimes[0].getEpochSecond(), endSecond),
+                        resumeTimes[0].toEpochMilli(), request.getEndTime().toEpochMilli(), request.getDuration());
+            }
+        } else {
+            long durationSeconds = TimeUnit.MINUTES.toSeconds(request.getDuration());
+            for (int position = 0; position < calendarIds.size(); position++) {
+                UUID calendarId = calendarIds.get(position);
+                if (fileData.checkIfCalendarIdDoesNotExists(calendarId)) {
+                    missingCalendarPositions.set(position);
+                } else if (resumeTimes[position] != null) {
+                    BusyIntervalCursor unavailable = fileData.getUnavailableCursor(calendarId, request.getTypeId(),
+                            resumeTimes[position].getEpochSecond(), endSecond, durationSeconds);
+                    if (unavailable == null) {
+                        missingCalendarPositions.set(position);
+                    } else {
+                        walkers[position] = new SlotWalker(unavailable, resumeTimes[position].toEpochMilli(),
+                                request.getEndTime().toEpochMilli(), request.getDuration());
                     }
+                }
+            }
+        }
+
+        SlotCollector[] collectors = new SlotCollector[walkers.length];
+        PriorityQueue<Integer> walks = new PriorityQueue<>(Math.max(1, walkers.length), (first, second) -> {
+            int comparison = Long.compare(walkers[first].getSlotStartTime(), walkers[second].getSlotStartTime());
+            return comparison != 0 ? comparison : Integer.compare(first, second);
+        });
+        for (int position = 0; position < walkers.length; position++) {
+            collectors[position] = new SlotCollector(request);
+            if (walkers[position] != null && walkers[position].hasSlot()) {
+                walks.add(position);
+            }
+        }
+
+        for (int slots = 0; slots < request.getLimit() && !walks.isEmpty(); slots++) {
+            int position = walks.poll();
+            SlotWalker walker = walkers[position];
+            collectors[position].addSlot(walker.getSlotStartTime(), walker.getSlotEndTime());
+            walker.nextSlot();
+            if (walker.hasSlot()) {
+                walks.add(position);
+            }
+        }
 
-                    availableTimeSlot.add(CalendarAvailableSlot.builder()
-                            .calendarId(calendarId)
-                            .availableSlotList(availableSlotList)
-                            .build());
+        int intervalsScanned = 0;
+        for (int position = 0; position < walkers.length; position++) {
+            resumeTimes[position] = walkers[position] == null || !walkers[position].hasSlot()
+                    ? null : Instant.ofEpochMilli(walkers[position].getSlotStartTime());
+            intervalsScanned += walkers[position] == null ? 0 : walkers[position].getIntervalsScanned();
+        }
+        availabilityMetrics.recordAppointmentsScanned(intervalsScanned);
+
+        AppointmentResponse response = new AppointmentResponse();
+        if (common) {
+            response.setAvailableSlots(missingCalendars);
+            if (isCompact(request)) {
+                response.setCommonAvailableSlotRunList(collectors[0].availableSlotRunList);
+            } else {
+                response.setCommonAvailableSlotList(collectors[0].availableSlotList);
+            }
+        } else {
+            List<CalendarAvailableSlot> availableSlots = new ArrayList<>();
+            for (int position = 0; position < calendarIds.size(); position++) {
+                availableSlots.add(missingCalendarPositions.get(position)
+                        ? CalendarAvailableSlot.builder().calendarId(calendarIds.get(position)).error("Calendar Id does not exist.").build()
+                        : collectors[position].toCalendarAvailableSlot(calendarIds.get(position)));
+            }
+            response.setAvailableSlots(availableSlots);
+        }
+        response.setNextCursor(AvailabilityCursor.encode(request, resumeTimes));
+        return response;
+    }
+
+    private boolean isPool(AppointmentRequest request) {
+        return request.getAvailabilityMode() == AvailabilityMode.POOL;
+    }
+
+    /**
+     * Check minimum free calendars of a request in pool mode, a calendar Id given twice is counted once.
+     *
+     * @param request
+     * @throws AppointmentException if minimum is missing or more than the number of calendars, or a limit is given
+     */
+    private void validatePool(AppointmentRequest request) {
+        if (!isPool(request)) {
+            return;
+        }
+        if (request.getMinFreeCalendars() == null || request.getMinFreeCalendars() < 1) {
+            throw new AppointmentException("Minimum free calendars must be greater than zero in pool mode");
+        }
+        if (request.getMinFreeCalendars() > new HashSet<>(request.getCalendarIds()).size()) {
+            throw new AppointmentException("Minimum free calendars is more than the number of calendars");
+        }
+        if (isLimited(request)) {
+            throw new AppointmentException("Pool mode does not support a limit");
+        }
+    }
+
+    /**
+     * Get time where at least the minimum number of calendars of request are free, with the calendars that are free.
+     * <p>
+     * One sweep over the start and end events of the busy intervals of all calendars. Calendars are read in time order of
+     * their next event from a priority queue, each event updates the set and the number of free calendars. While enough
+     * calendars are free, each change of the set starts a new entry. The cost depends on the number of busy intervals
+     * times the log of the number of calendars and not on the number of slots. An entry is dropped unless the minimum
+     * number of its free calendars stay free together for at least the duration, so calendars that take over from each
+     * other do not add up. Calendar Ids that does not exist are returned with error and are never free.
+     *
+     * @param request validated request
+     * @return Response with pool available time
+     */
+    private AppointmentResponse getPoolAvailableTimes(AppointmentRequest request) {
+        List<UUID> calendarIds = new ArrayList<>(new LinkedHashSet<>(request.getCalendarIds()));
+        long startTime = request.getStartTime().toEpochMilli();
+        long endTime = request.getEndTime().toEpochMilli();
+        List<CalendarAvailableSlot> missingCalendars = new ArrayList<>();
+        PoolCursor[] cursors = new PoolCursor[calendarIds.size()];
+        PriorityQueue<Integer> events = new PriorityQueue<>(Math.max(1, cursors.length),
+                (first, second) -> Long.compare(cursors[first].getEventTime(), cursors[second].getEventTime()));
+        BitSet freeCalendars = new BitSet();
+        long[] freeSince = new long[cursors.length];
+        long[] freeUntil = new long[cursors.length];
+        int freeCount = 0;
+        int intervalsScanned = 0;
+
+        for (int position = 0; position < calendarIds.size(); position++) {
+            CalendarIndex index = findCalendarIndex(calendarIds.get(position), request);
+            if (index == null) {
+                missingCalendars.add(CalendarAvailableSlot.builder().calendarId(calendarIds.get(position)).error("Calendar Id does not exist.").build());
+                continue;
+            }
+            cursors[position] = new PoolCursor(index, startTime, endTime);
+            intervalsScanned += cursors[position].last - cursors[position].position;
+            freeCalendars.set(position);
+            freeSince[position] = startTime;
+            freeUntil[position] = getFreeUntil(cursors[position], endTime);
+            freeCount++;
+            if (cursors[position].hasEvent()) {
+                events.add(position);
+            }
+        }
+        availabilityMetrics.recordAppointmentsScanned(intervalsScanned);
+
+        PoolCollector collector = new PoolCollector(calendarIds, request.getMinFreeCalendars(), TimeUnit.MINUTES.toMillis(request.getDuration()));
+        for (long time = startTime; time < endTime; ) {
+            while (!events.isEmpty() && cursors[events.peek()].getEventTime() <= time) {
+                int position = events.poll();
+                PoolCursor cursor = cursors[position];
+                long eventTime = cursor.getEventTime();
+                cursor.next();
+                if (!cursor.busy) {
+                    freeSince[position] = eventTime;
+                    freeUntil[position] = getFreeUntil(cursor, endTime);
+                }
+                freeCalendars.set(position, !cursor.busy);
+                freeCount += cursor.busy ? -1 : 1;
+                if (cursor.hasEvent()) {
+                    events.add(position);
+                }
+            }
+            long nextTime = events.isEmpty() ? endTime : Math.min(endTime, cursors[events.peek()].getEventTime());
+            if (freeCount >= request.getMinFreeCalendars()) {
+                collector.add(time, nextTime, freeCalendars, freeSince, freeUntil);
+            }
+            time = nextTime;
+        }
+
+        AppointmentResponse response = new AppointmentResponse();
+        response.setAvailableSlots(missingCalendars);
+        response.setPoolAvailableTimeList(collector.poolAvailableTimeList);
+        return response;
+    }
+
+    /**
+     * End of the free time of a free calendar within period, the start of its next busy interval.
+     */
+    private static long getFreeUntil(PoolCursor cursor, long endTime) {
+        return cursor.hasEvent() ? Math.min(endTime, cursor.getEventTime()) : endTime;
+    }
+
+    @Override
+    public AvailabilityWriter streamAvailableTimes(AppointmentRequest request) {
+
+        long startNanos = System.nanoTime();
+        validateTimePeriod(request);
+        validatePool(request);
+        availabilityMetrics.recordPhase(AvailabilityMetrics.PHASE_VALIDATE, startNanos);
+
+        long cost = admissionControl.admit(request, 0);
+        if (isLimited(request) || isPool(request)) {
+            AppointmentResponse response;
+            AdmissionControl.Permit permit = admissionControl.acquire(cost);
+            try {
+                response = isPool(request) ? getPoolAvailableTimes(request) : getFirstAvailableTimes(request);
+            } finally {
+                permit.close();
+            }
+            return generator -> generator.writeObject(response);
+        }
+        return generator -> {
+            AdmissionControl.Permit permit = admissionControl.acquire(cost);
+            try {
+                writeAvailableTimes(request, generator);
+            } catch (UncheckedIOException exception) {
+                throw exception.getCause();
+            } finally {
+                permit.close();
+            }
+        };
+    }
+
+    /**
+     * Subscribe to changes of the individual slots of request, sent to listener instead of being polled.
+     *
+     * @param request
+     * @param listener
+     * @return Subscription to close when the client is gone
+     * @throws AppointmentException if period is invalid or request is in common or pool mode or has a limit
+     */
+    @Override
+    public AvailabilityFeed.Subscription subscribeAvailableTimes(AppointmentRequest request, AvailabilityListener listener) {
+        validateTimePeriod(request);
+        if ((request.getAvailabilityMode() != null && request.getAvailabilityMode() != AvailabilityMode.INDIVIDUAL)
+                || request.getLimit() != null) {
+            throw new AppointmentException("Subscriptions support neither common or pool mode nor a limit");
+        }
+        return availabilityFeed.subscribe(request, listener);
+    }
+
+    @Override
+    public BatchAppointmentResponse getBatchAvailableTimes(BatchAppointmentRequest batchRequest) {
+
+        Map<String, AppointmentResponse> results = new LinkedHashMap<>();
+        Map<String, String> errors = new LinkedHashMap<>();
+        Map<CalendarTypeKey, List<CalendarQuery>> queriesByCalendar = new LinkedHashMap<>();
+        Map<String, CalendarAvailableSlot[]> individualResults = new HashMap<>();
+        Set<String> queryIds = new HashSet<>();
+        List<BatchAppointmentQuery> admittedQueries = new ArrayList<>();
+        long batchCost = 0;
+
+        for (BatchAppointmentQuery query : batchRequest.getQueries()) {
+            if (!queryIds.add(query.getQueryId())) {
+                throw new AppointmentException("Query Id " + query.getQueryId() + " is not unique");
+            }
+            try {
+                validateTimePeriod(query);
+                validatePool(query);
+                batchCost += admissionControl.admit(query, batchCost);
+                admittedQueries.add(query);
+            } catch (AppointmentException exception) {
+                errors.put(query.getQueryId(), exception.getMessage());
+            }
+        }
+
+        AdmissionControl.Permit permit = admissionControl.acquire(batchCost);
+        try {
+            for (BatchAppointmentQuery query : admittedQueries) {
+                if (isLimited(query)) {
+                    try {
+                        results.put(query.getQueryId(), getFirstAvailableTimes(query));
+                    } catch (AppointmentException exception) {
+                        errors.put(query.getQueryId(), exception.getMessage());
+                    }
+                } else if (isPool(query)) {
+                    results.put(query.getQueryId(), getPoolAvailableTimes(query));
+                } else if (query.getAvailabilityMode() == AvailabilityMode.COMMON) {
+                    results.put(query.getQueryId(), getCommonAvailableTimes(query));
+                } else {
+                    results.put(query.getQueryId(), new AppointmentResponse());
+                    individualResults.put(query.getQueryId(), new CalendarAvailableSlot[query.getCalendarIds().size()]);
+                    for (int position = 0; position < query.getCalendarIds().size(); position++) {
+                        queriesByCalendar.computeIfAbsent(new CalendarTypeKey(query.getCalendarIds().get(position), query.getTypeId()),
+                                key -> new ArrayList<>()).add(new CalendarQuery(query, position));
+                    }
                 }
             }
+
+            List<Map.Entry<CalendarTypeKey, List<CalendarQuery>>> calendars = new ArrayList<>(queriesByCalendar.entrySet());
+            calendarExecutor.forEach(calendars.size(), position -> {
+                Map.Entry<CalendarTypeKey, List<CalendarQuery>> calendar = calendars.get(position);
+                evaluateCalendarQueries(calendar.getKey(), calendar.getValue(), individualResults);
+            });
+            individualResults.forEach((queryId, availableSlots) ->
+                    results.get(queryId).setAvailableSlots(new ArrayList<>(Arrays.asList(availableSlots))));
+        } finally {
+            permit.close();
         }
-        response.setAvailableSlots(availableTimeSlot);
+
+        BatchAppointmentResponse response = new BatchAppointmentResponse();
+        response.setResults(results);
+        response.setErrors(errors);
         return response;
     }
 
+    /**
+     * Evaluate all queries of a batch on one calendar with a single lookup and a single walk of its busy intervals.
+     * The walk covers the union of the periods of the queries, each free time is clipped to the queries it overlaps.
+     *
+     * @param key               calendar and timeslot type of queries
+     * @param calendarQueries   queries on calendar
+     * @param individualResults result arrays of queries, the position of each query on this calendar is set
+     */
+    private void evaluateCalendarQueries(CalendarTypeKey key, List<CalendarQuery> calendarQueries,
+                                         Map<String, CalendarAvailableSlot[]> individualResults) {
+        List<CalendarQuery> sortedQueries = new ArrayList<>(calendarQueries);
+        sortedQueries.sort(Comparator.comparing(calendarQuery -> calendarQuery.query.getStartTime()));
+        long startTime = sortedQueries.get(0).query.getStartTime().toEpochMilli();
+        long endTime = sortedQueries.stream().mapToLong(calendarQuery -> calendarQuery.query.getEndTime().toEpochMilli()).max().getAsLong();
+
+        CalendarIndex index = findCalendarIndex(key.calendarId, key.typeId, Math.floorDiv(startTime, 1000), -Math.floorDiv(-endTime, 1000));
+        if (index == null) {
+            for (CalendarQuery calendarQuery : calendarQueries) {
+                individualResults.get(calendarQuery.query.getQueryId())[calendarQuery.position] =
+                        CalendarAvailableSlot.builder().calendarId(key.calendarId).error("Calendar Id does not exist.").build();
+            }
+            return;
+        }
+
+        List<CalendarQuery> activeQueries = new ArrayList<>();
+        Iterator<CalendarQuery> pendingQueries = sortedQueries.iterator();
+        CalendarQuery[] nextQuery = {pendingQueries.next()};
+        forEachFreeTimeBetweenSchedules(index, startTime, endTime, (freeStartTime, freeEndTime) -> {
+            while (nextQuery[0] != null && nextQuery[0].query.getStartTime().toEpochMilli() < freeEndTime) {
+                activeQueries.add(nextQuery[0]);
+                nextQuery[0] = pendingQueries.hasNext() ? pendingQueries.next() : null;
+            }
+            activeQueries.removeIf(calendarQuery -> calendarQuery.query.getEndTime().toEpochMilli() <= freeStartTime);
+            for (CalendarQuery calendarQuery : activeQueries) {
+                long clippedStartTime = Math.max(freeStartTime, calendarQuery.query.getStartTime().toEpochMilli());
+                long clippedEndTime = Math.min(freeEndTime, calendarQuery.query.getEndTime().toEpochMilli());
+                if (clippedStartTime < clippedEndTime) {
+                    calendarQuery.addFreeTime(clippedStartTime, clippedEndTime);
+                }
+            }
+        });
+
+        for (CalendarQuery calendarQuery : calendarQueries) {
+            individualResults.get(calendarQuery.query.getQueryId())[calendarQuery.position] = isCompact(calendarQuery.query)
+                    ? CalendarAvailableSlot.builder().calendarId(key.calendarId).availableSlotRunList(calendarQuery.availableSlotRunList).build()
+                    : CalendarAvailableSlot.builder().calendarId(key.calendarId).availableSlotList(calendarQuery.availableSlotList).build();
+        }
+    }
+
+    /**
+     * Write response in the same format as {@link AppointmentResponse}, calendar by calendar.
+     * Slots are generated while they are written and are never collected,
+     * so memory used does not depend on length of period or duration.
+     *
+     * @param request
+     * @param generator
+     * @throws IOException if writing fails
+     */
+    private void writeAvailableTimes(AppointmentRequest request, JsonGenerator generator) throws IOException {
+
+        boolean common = request.getAvailabilityMode() == AvailabilityMode.COMMON;
+        List<CalendarAvailableSlot> missingCalendars = new ArrayList<>();
+
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("availableSlots");
+        if (common) {
+            List<CalendarIndex> indexes = getCalendarIndexes(request, missingCalendars);
+            for (CalendarAvailableSlot missingCalendar : missingCalendars) {
+                generator.writeObject(missingCalendar);
+            }
+            generator.writeEndArray();
+
+            generator.writeArrayFieldStart(isCompact(request) ? "commonAvailableSlotRunList" : "commonAvailableSlotList");
+            if (!indexes.isEmpty()) {
+                writeAvailableSlotsBetweenSchedules(getCommonBusyIntervals(indexes, request), request, generator);
+            }
+        } else {
+            for (UUID calendarId : request.getCalendarIds()) {
+                CalendarIndex index = findCalendarIndex(calendarId, request);
+                if (index == null) {
+                    generator.writeObject(CalendarAvailableSlot.builder().calendarId(calendarId).error("Calendar Id does not exist.").build());
+                } else {
+                    generator.writeStartObject();
+                    generator.writeObjectField("calendarId", calendarId);
+                    generator.writeArrayFieldStart(isCompact(request) ? "availableSlotRunList" : "availableSlotList");
+                    writeAvailableSlotsBetweenSchedules(index, request, generator);
+                    generator.writeEndArray();
+                    generator.writeEndObject();
+                }
+            }
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    private void writeAvailableSlotsBetweenSchedules(CalendarIndex index, AppointmentRequest request, JsonGenerator generator) {
+        if (isCompact(request)) {
+            forEachFreeTimeBetweenSchedules(index, request, (startTime, endTime) -> {
+                AvailableSlotRun availableSlotRun = getTimeSlotRunBetweenTime(startTime, endTime, request.getDuration());
+                if (availableSlotRun != null) {
+                    writeObject(generator, availableSlotRun);
+                }
+            });
+        } else {
+            TimestampWriter timestampWriter = getTimestampWriter(generator);
+            long durationMillis = TimeUnit.MINUTES.toMillis(request.getDuration());
+            forEachFreeTimeBetweenSchedules(index, request, (startTime, endTime) -> {
+                try {
+                    for (long startSlot = startTime; startSlot + durationMillis <= endTime; startSlot += durationMillis) {
+                        AvailableSlotList.Serializer.writeSlot(startSlot, startSlot + durationMillis, generator, null, timestampWriter);
+                    }
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            });
+        }
+    }
+
+    private void writeObject(JsonGenerator generator, Object value) {
+        try {
+            generator.writeObject(value);
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    /**
+     * Timestamp writer for the object mapper the generator was created by.
+     */
+    private TimestampWriter getTimestampWriter(JsonGenerator generator) {
+        ObjectCodec codec = generator.getCodec();
+        ObjectMapper objectMapper = codec instanceof ObjectMapper ? (ObjectMapper) codec : new ObjectMapper();
+        return TimestampWriter.of(objectMapper.getSerializationConfig());
+    }
+
+    /**
+     * Get index of each calendar of request.
+     * Calendar Ids that does not exist are added with error to missing calendars.
+     *
+     * @param request
+     * @param missingCalendars
+     * @return List of calendar indexes
+     */
+    private List<CalendarIndex> getCalendarIndexes(AppointmentRequest request, List<CalendarAvailableSlot> missingCalendars) {
+
+        List<CalendarIndex> indexes = new ArrayList<>();
+        for (UUID calendarId : request.getCalendarIds()) {
+            CalendarIndex index = findCalendarIndex(calendarId, request);
+            if (index == null) {
+                missingCalendars.add(CalendarAvailableSlot.builder().calendarId(calendarId).error("Calendar Id does not exist.").build());
+            } else {
+                indexes.add(index);
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Get data of each calendar of request.
+     * Calendar Ids that does not exist are added with error to missing calendars.
+     *
+     * @param request
+     * @param missingCalendars
+     * @return List of calendar data
+     */
+    private List<CalendarData> getCalendars(AppointmentRequest request, List<CalendarAvailableSlot> missingCalendars) {
+
+        List<CalendarData> calendars = new ArrayList<>();
+        for (UUID calendarId : request.getCalendarIds()) {
+            CalendarData calendarData = fileData.getCalendarData(calendarId);
+            if (calendarData == null) {
+                missingCalendars.add(CalendarAvailableSlot.builder().calendarId(calendarId).error("Calendar Id does not exist.").build());
+            } else {
+                calendars.add(calendarData);
+            }
+        }
+        return calendars;
+    }
+
+    private CalendarIndex findCalendarIndex(UUID calendarId, AppointmentRequest request) {
+        return findCalendarIndex(calendarId, request.getTypeId(), request.getStartTime().getEpochSecond(), ceilToSecond(request.getEndTime()));
+    }
+
+    /**
+     * Get index of unavailable time of calendar within period, restricted to timeslots of type if requested.
+     * Calendar can be removed by a reload in between the check and the lookup, this is handled as not existing too.
+     *
+     * @param calendarId
+     * @param typeId      type of timeslot or null for any type
+     * @param startSecond start of period in epoch seconds
+     * @param endSecond   end of period in epoch seconds
+     * @return Index of calendar or null if Calendar Id does not exist
+     */
+    private CalendarIndex findCalendarIndex(UUID calendarId, String typeId, long startSecond, long endSecond) {
+        if (fileData.checkIfCalendarIdDoesNotExists(calendarId)) {
+            return null;
+        }
+        return fileData.getCalendarIndex(calendarId, typeId, startSecond, endSecond);
+    }
+
+    private CalendarIndex getCommonBusyIntervals(List<CalendarIndex> indexes, AppointmentRequest request) {
+        return BusyIntervalMerger.union(indexes, request.getStartTime().getEpochSecond(), ceilToSecond(request.getEndTime()));
+    }
+
+    /**
+     * Get all available slots of free time in between busy intervals.
+     *
+     * @param index
+     * @param request
+     * @return List of available Time.
+     */
+    private List<AvailableSlot> getAvailableSlotsBetweenSchedules(CalendarIndex index, AppointmentRequest request) {
+
+        AvailableSlotList availableSlotList = new AvailableSlotList();
+        forEachFreeTimeBetweenSchedules(index, request, (startTime, endTime) ->
+                addAllTimeSlotsBetweenTime(startTime, endTime, request.getDuration(), availableSlotList));
+        return availableSlotList;
+    }
+
+    /**
+     * Get one run of back to back slots for each free time in between busy intervals.
+     *
+     * @param index
+     * @param request
+     * @return List of available slot runs.
+     */
+    private List<AvailableSlotRun> getAvailableSlotRunsBetweenSchedules(CalendarIndex index, AppointmentRequest request) {
+
+        List<AvailableSlotRun> availableSlotRunList = new ArrayList<>();
+        forEachFreeTimeBetweenSchedules(index, request, (startTime, endTime) -> {
+            AvailableSlotRun availableSlotRun = getTimeSlotRunBetweenTime(startTime, endTime, request.getDuration());
+            if (availableSlotRun != null) {
+                availableSlotRunList.add(availableSlotRun);
+            }
+        });
+        return availableSlotRunList;
+    }
+
+    private boolean isCompact(AppointmentRequest request) {
+        return request.getSlotFormat() == SlotFormat.COMPACT;
+    }
+
+    /**
+     * Iterate the busy intervals within period and pass the free time in between to consumer.
+     * Intervals are already sorted and merged in index, only the positions are searched.
+     * Increment startTime time slot on each iteration.
+     * Times are epoch millis, a period given with finer precision is cut to the millisecond.
+     *
+     * @param index
+     * @param request
+     * @param freeTimeConsumer receives start and end of each free time
+     */
+    private void forEachFreeTimeBetweenSchedules(CalendarIndex index, AppointmentRequest request, FreeTimeConsumer freeTimeConsumer) {
+        forEachFreeTimeBetweenSchedules(index, request.getStartTime().toEpochMilli(), request.getEndTime().toEpochMilli(), freeTimeConsumer);
+    }
+
+    private void forEachFreeTimeBetweenSchedules(CalendarIndex index, long startTime, long endTime, FreeTimeConsumer freeTimeConsumer) {
+
+        long startTimeSlot = startTime;
+        int first = getFirstScheduleByTimePeriod(index, startTime);
+        int last = getLastScheduleByTimePeriod(index, endTime);
+        availabilityMetrics.recordAppointmentsScanned(Math.max(0, last - first));
+        for (int i = first; i < last; i++) {
+            long busyStartTime = toMillis(index.getStart(i));
+            if (startTimeSlot < busyStartTime) {
+                freeTimeConsumer.accept(startTimeSlot, busyStartTime);
+            }
+            startTimeSlot = toMillis(index.getEnd(i));
+        }
+
+        //After iteration if there is slot available between endTime time Add to list.
+        if (startTimeSlot < endTime) {
+            freeTimeConsumer.accept(startTimeSlot, endTime);
+        }
+    }
+
     /**
      * This method validates Time period and sets StartTime and End time in object.
      * Period valid format = <Start date>/<End date>
@@ -118,56 +887,262 @@ public class AppointmentServiceImpl implements AppointmentService {
     }
 
     /**
-     * Get the Appointments of calendarId.
-     * The List is filtered based on following criteria
-     * 1. Appointment Calendar Id mathes Calendar If from Request
-     * 2. Filter All appointments that are with Start time and after Start time.
-     * 3. Filter All appointments that are with End time and before End time.
+     * Get position of first busy interval of calendar which is within time period.
+     * This is the first interval which ends after Start time, found by binary search.
      *
-     * @param calendarId
-     * @param startTime
-     * @param endTime
-     * @return List of Appointments
+     * @param index
+     * @param startTime epoch millis
+     * @return position in index
+     */
+    private int getFirstScheduleByTimePeriod(CalendarIndex index, long startTime) {
+        return index.firstEndingAfter(Math.floorDiv(startTime, 1000));
+    }
+
+    /**
+     * Get position after last busy interval of calendar which is within time period.
+     * This is the first interval which starts at or after End time, found by binary search.
+     * End time is rounded up to full second as index is in seconds.
+     *
+     * @param index
+     * @param endTime epoch millis
+     * @return position in index
      */
-    private List<Appointment> getSchedulesForCalendarIdByTimePeriod(UUID calendarId, Instant startTime, Instant endTime) {
-        return fileData.getAppointmentByCalendarId(calendarId).getAppointmentList().stream()
-                .filter(s -> s.getCalendarId().equals(calendarId.toString()))
-                .filter(s -> s.getStartTime().after(Date.from(startTime)) ||
-                        s.getStartTime().equals(Date.from(startTime)) ||
-                        s.getEndTime().after(Date.from(startTime)))
-                .filter(s -> s.getStartTime().before(Date.from(endTime)) ||
-                        s.getEndTime().equals(Date.from(endTime)) ||
-                        s.getEndTime().before(Date.from(endTime)))
-                .collect(Collectors.toList());
+    private int getLastScheduleByTimePeriod(CalendarIndex index, long endTime) {
+        return index.firstStartingAtOrAfter(-Math.floorDiv(-endTime, 1000));
+    }
+
+    private long ceilToSecond(Instant time) {
+        return time.getNano() > 0 ? time.getEpochSecond() + 1 : time.getEpochSecond();
+    }
+
+    /**
+     * Epoch second of index in epoch millis. The open ends of closed time outside of timeslots
+     * become the smallest and largest millis, which still lie before and after any period.
+     */
+    static long toMillis(long epochSecond) {
+        if (epochSecond <= Long.MIN_VALUE / 1000) {
+            return Long.MIN_VALUE;
+        }
+        if (epochSecond >= Long.MAX_VALUE / 1000) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.SECONDS.toMillis(epochSecond);
     }
 
     /**
      * Initiate startTime slot with startTime Time.
      * Initiate endTime slot with Start time plus duration of apointment.
      * <p>
-     * If endslot is within the time range Initiate Available time with UUID and slot time
+     * If endslot is within the time range add the slot to list,
      * after addition increment the times and continue till all slots of period are reached.
      *
-     * @param startTime
-     * @param endTime
-     * @param duration
-     * @return List of available Time.
+     * @param startTime         epoch millis
+     * @param endTime           epoch millis
+     * @param duration          minutes
+     * @param availableSlotList list the slots are added to
      */
-    private List<AvailableSlot> getAllTimeSlotsBetweenTime(Instant startTime, Instant endTime, Integer duration) {
+    private void addAllTimeSlotsBetweenTime(long startTime, long endTime, Integer duration, AvailableSlotList availableSlotList) {
 
-        Instant startSlot = startTime;
-        Instant endSlot = startTime.plus(duration, ChronoUnit.MINUTES);
+        long durationMillis = TimeUnit.MINUTES.toMillis(duration);
+        for (long startSlot = startTime; startSlot + durationMillis <= endTime; startSlot += durationMillis) {
+            availableSlotList.add(startSlot, startSlot + durationMillis);
+        }
+    }
+
+    /**
+     * Same slots as {@link #addAllTimeSlotsBetweenTime(long, long, Integer, AvailableSlotList)} described by a single run.
+     * Number of slots is the free time divided by duration, end time is end of last slot.
+     *
+     * @param startTime epoch millis
+     * @param endTime   epoch millis
+     * @param duration  minutes
+     * @return Run of available slots or null if free time is shorter than duration
+     */
+    private AvailableSlotRun getTimeSlotRunBetweenTime(long startTime, long endTime, Integer duration) {
+
+        long durationMillis = TimeUnit.MINUTES.toMillis(duration);
+        long count = (endTime - startTime) / durationMillis;
+        if (count == 0) {
+            return null;
+        }
+
+        return AvailableSlotRun.builder()
+                .startTime(new Date(startTime))
+                .endTime(new Date(startTime + count * durationMillis))
+                .duration(duration)
+                .count(count)
+                .build();
+    }
+
+    /**
+     * Receives start and end of a free time in epoch millis.
+     */
+    @FunctionalInterface
+    private interface FreeTimeConsumer {
 
-        List<AvailableSlot> availableSlots = new ArrayList<>();
+        void accept(long startTime, long endTime);
+    }
 
-        while (endSlot.isBefore(endTime) || endSlot.equals(endTime)) {
+    /**
+     * Slots of one walk of a limited request, back to back slots are joined in one run for compact format.
+     */
+    private final class SlotCollector {
 
-            availableSlots.add(AvailableSlot.builder().startTime(Date.from(startSlot)).endTime(Date.from(endSlot)).build());
+        private final AppointmentRequest request;
+        private final AvailableSlotList availableSlotList = new AvailableSlotList();
+        private final List<AvailableSlotRun> availableSlotRunList = new ArrayList<>();
+        private long lastRunEndTime = Long.MIN_VALUE;
 
-            startSlot = endSlot;
-            endSlot = startSlot.plus(duration, ChronoUnit.MINUTES);
+        private SlotCollector(AppointmentRequest request) {
+            this.request = request;
         }
 
-        return availableSlots;
+        private void addSlot(long startTime, long endTime) {
+            if (!isCompact(request)) {
+                availableSlotList.add(startTime, endTime);
+            } else if (startTime == lastRunEndTime) {
+                AvailableSlotRun availableSlotRun = availableSlotRunList.get(availableSlotRunList.size() - 1);
+                availableSlotRun.setEndTime(new Date(endTime));
+                availableSlotRun.setCount(availableSlotRun.getCount() + 1);
+            } else {
+                availableSlotRunList.add(AvailableSlotRun.builder()
+                        .startTime(new Date(startTime))
+                        .endTime(new Date(endTime))
+                        .duration(request.getDuration())
+                        .count(1L)
+                        .build());
+            }
+            lastRunEndTime = endTime;
+        }
+
+        private CalendarAvailableSlot toCalendarAvailableSlot(UUID calendarId) {
+            return isCompact(request)
+                    ? CalendarAvailableSlot.builder().calendarId(calendarId).availableSlotRunList(availableSlotRunList).build()
+                    : CalendarAvailableSlot.builder().calendarId(calendarId).availableSlotList(availableSlotList).build();
+        }
+    }
+
+    /**
+     * Events of the busy intervals of one calendar of a pool within period, alternating between start and end.
+     */
+    private static final class PoolCursor {
+
+        private final CalendarIndex index;
+        private final int last;
+        private int position;
+        private boolean busy;
+
+        private PoolCursor(CalendarIndex index, long startTime, long endTime) {
+            this.index = index;
+            this.position = index.firstEndingAfter(Math.floorDiv(startTime, 1000));
+            this.last = index.firstStartingAtOrAfter(-Math.floorDiv(-endTime, 1000));
+        }
+
+        private boolean hasEvent() {
+            return position < last;
+        }
+
+        /**
+         * Time of next event in epoch millis, the end of the current interval if busy and the start of it otherwise.
+         */
+        private long getEventTime() {
+            return toMillis(busy ? index.getEnd(position) : index.getStart(position));
+        }
+
+        private void next() {
+            if (busy) {
+                position++;
+            }
+            busy = !busy;
+        }
+    }
+
+    /**
+     * Entries of a pool sweep, an entry is kept if enough of its free calendars are free together for the duration.
+     */
+    private static final class PoolCollector {
+
+        private final List<UUID> calendarIds;
+        private final int minFreeCalendars;
+        private final long durationMillis;
+        private final List<PoolAvailableTime> poolAvailableTimeList = new ArrayList<>();
+
+        private PoolCollector(List<UUID> calendarIds, int minFreeCalendars, long durationMillis) {
+            this.calendarIds = calendarIds;
+            this.minFreeCalendars = minFreeCalendars;
+            this.durationMillis = durationMillis;
+        }
+
+        /**
+         * @param freeSince start of the free time of each free calendar
+         * @param freeUntil end of the free time of each free calendar
+         */
+        private void add(long startTime, long endTime, BitSet freeCalendars, long[] freeSince, long[] freeUntil) {
+            if (!isFreeTogether(freeCalendars, freeSince, freeUntil)) {
+                return;
+            }
+            poolAvailableTimeList.add(PoolAvailableTime.builder()
+                    .startTime(new Date(startTime))
+                    .endTime(new Date(endTime))
+                    .calendarIds(freeCalendars.stream().mapToObj(calendarIds::get).collect(Collectors.toList()))
+                    .build());
+        }
+
+        /**
+         * The free times of the free calendars all contain the entry. Taken in order of their start, the latest start
+         * so far is the start of the common free time, which ends at the minimum-th latest end of the calendars so far.
+         */
+        private boolean isFreeTogether(BitSet freeCalendars, long[] freeSince, long[] freeUntil) {
+            int[] positions = freeCalendars.stream().boxed()
+                    .sorted((first, second) -> Long.compare(freeSince[first], freeSince[second]))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            PriorityQueue<Long> latestEnds = new PriorityQueue<>(minFreeCalendars + 1);
+            for (int position : positions) {
+                latestEnds.add(freeUntil[position]);
+                if (latestEnds.size() > minFreeCalendars) {
+                    latestEnds.poll();
+                }
+                if (latestEnds.size() == minFreeCalendars && latestEnds.peek() - freeSince[position] >= durationMillis) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static final class CalendarTypeKey {
+
+        private final UUID calendarId;
+        private final String typeId;
+    }
+
+    /**
+     * Position of a calendar in a query of a batch, collecting slots of the free time of the calendar.
+     */
+    private final class CalendarQuery {
+
+        private final BatchAppointmentQuery query;
+        private final int position;
+        private final AvailableSlotList availableSlotList = new AvailableSlotList();
+        private final List<AvailableSlotRun> availableSlotRunList = new ArrayList<>();
+
+        private CalendarQuery(BatchAppointmentQuery query, int position) {
+            this.query = query;
+            this.position = position;
+        }
+
+        private void addFreeTime(long startTime, long endTime) {
+            if (isCompact(query)) {
+                AvailableSlotRun availableSlotRun = getTimeSlotRunBetweenTime(startTime, endTime, query.getDuration());
+                if (availableSlotRun != null) {
+                    availableSlotRunList.add(availableSlotRun);
+                }
+            } else {
+                addAllTimeSlotsBetweenTime(startTime, endTime, query.getDuration(), availableSlotList);
+            }
+        }
     }
 }
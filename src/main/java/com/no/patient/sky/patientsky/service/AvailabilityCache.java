@@ -0,0 +1,135 @@
+package com.no.patient.sky.patientsky.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.no.patient.sky.patientsky.request.AppointmentRequest;
+import com.no.patient.sky.patientsky.request.SlotFormat;
+import com.no.patient.sky.patientsky.response.CacheStatistics;
+import com.no.patient.sky.patientsky.response.CalendarAvailableSlot;
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of available slots of one calendar, for clients polling the same query.
+ * <p>
+ * Entries are weighted by the number of slots or runs they hold, so the bound is on memory and not on entry count.
+ * Each entry is tagged with the generation of the calendar data it was computed from. A reload or booking of a
+ * calendar increases its generation, so only entries of that calendar stop matching and are replaced on next access.
+ */
+@Component
+public class AvailabilityCache {
+
+    private final Cache<Key, Entry> cache;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param maxWeight maximum number of slots and runs kept in cache, 0 disables the cache
+     */
+    public AvailabilityCache(@Value("${appointment.cache.max-weight:1000000}") long maxWeight) {
+        this.cache = maxWeight <= 0 ? null : Caffeine.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((Key key, Entry entry) -> entry.weight)
+                .removalListener((Key key, Entry entry, RemovalCause cause) -> {
+                    if (cause.wasEvicted()) {
+                        evictions.increment();
+                    }
+                })
+                .executor(Runnable::run)
+                .build();
+    }
+
+    /**
+     * Get available slots of calendar from cache or compute and cache them.
+     *
+     * @param calendarId
+     * @param generation generation of calendar data read before the data used by loader
+     * @param request    request with validated period
+     * @param loader     computes available slots of calendar
+     * @return Available slots of calendar
+     */
+    public CalendarAvailableSlot get(UUID calendarId, long generation, AppointmentRequest request,
+                                     Supplier<CalendarAvailableSlot> loader) {
+        if (cache == null) {
+            return loader.get();
+        }
+
+        Key key = new Key(calendarId, request.getStartTime(), request.getEndTime(), request.getDuration(),
+                request.getTypeId(), request.getSlotFormat());
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null && entry.generation == generation) {
+            hits.increment();
+            return entry.value;
+        }
+
+        misses.increment();
+        if (entry != null) {
+            invalidations.increment();
+        }
+        CalendarAvailableSlot value = loader.get();
+        if (entry == null || entry.generation < generation) {
+            cache.put(key, new Entry(generation, value));
+        }
+        return value;
+    }
+
+    public CacheStatistics getStatistics() {
+        return CacheStatistics.builder()
+                .hits(hits.sum())
+                .misses(misses.sum())
+                .evictions(evictions.sum())
+                .invalidations(invalidations.sum())
+                .size(cache == null ? 0 : cache.estimatedSize())
+                .build();
+    }
+
+    /**
+     * Number of slots or runs of a result, at least 1 so empty results count too.
+     */
+    private static int weigh(CalendarAvailableSlot value) {
+        int weight = 1;
+        if (value.getAvailableSlotList() != null) {
+            weight += value.getAvailableSlotList().size();
+        }
+        if (value.getAvailableSlotRunList() != null) {
+            weight += value.getAvailableSlotRunList().size();
+        }
+        return weight;
+    }
+
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static final class Key {
+
+        private final UUID calendarId;
+        private final Instant startTime;
+        private final Instant endTime;
+        private final Integer duration;
+        private final String typeId;
+        private final SlotFormat slotFormat;
+    }
+
+    private static final class Entry {
+
+        private final long generation;
+        private final CalendarAvailableSlot value;
+        private final int weight;
+
+        private Entry(long generation, CalendarAvailableSlot value) {
+            this.generation = generation;
+            this.value = value;
+            this.weight = weigh(value);
+        }
+    }
+}
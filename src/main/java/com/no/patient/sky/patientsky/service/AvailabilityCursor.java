@@ -0,0 +1,91 @@
+package com.no.patient.sky.patientsky.service;
+
+import com.no.patient.sky.patientsky.exception.AppointmentException;
+import com.no.patient.sky.patientsky.request.AppointmentRequest;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.CRC32;
+
+/**
+ * Continuation of a request with a limit, returned as an opaque string with the page and passed back for the next page.
+ * <p>
+ * It holds the point to resume from of each walk of the request, one per calendar or one for common time,
+ * and a checksum of the request parameters, so it can not be used with a different request.
+ * Content: checksum, then per walk the resume time or "-" if the walk has no more slots, separated by ";" and Base64 encoded.
+ */
+@Slf4j
+final class AvailabilityCursor {
+
+    private static final String DONE = "-";
+
+    private AvailabilityCursor() {
+    }
+
+    /**
+     * Resume times of walks of request, the start of the period for the first page.
+     *
+     * @param request validated request
+     * @param walks   number of walks of request
+     * @return Resume time of each walk, null if walk is done
+     * @throws AppointmentException if cursor is not valid for request
+     */
+    static Instant[] decode(AppointmentRequest request, int walks) {
+        Instant[] resumeTimes = new Instant[walks];
+        if (request.getCursor() == null) {
+            Arrays.fill(resumeTimes, request.getStartTime());
+            return resumeTimes;
+        }
+
+        try {
+            String[] fields = new String(Base64.getUrlDecoder().decode(request.getCursor()), StandardCharsets.UTF_8).split(";", -1);
+            if (fields.length != walks + 1 || !fields[0].equals(checksum(request))) {
+                throw new AppointmentException("Invalid cursor");
+            }
+            for (int walk = 0; walk < walks; walk++) {
+                if (!DONE.equals(fields[walk + 1])) {
+                    resumeTimes[walk] = Instant.parse(fields[walk + 1]);
+                    if (resumeTimes[walk].isBefore(request.getStartTime()) || resumeTimes[walk].isAfter(request.getEndTime())) {
+                        throw new AppointmentException("Invalid cursor");
+                    }
+                }
+            }
+            return resumeTimes;
+        } catch (IllegalArgumentException | DateTimeParseException exception) {
+            log.error("Cursor {} can not be decoded", request.getCursor());
+            throw new AppointmentException("Invalid cursor");
+        }
+    }
+
+    /**
+     * Cursor for the next page.
+     *
+     * @param request     request of current page
+     * @param resumeTimes resume time of each walk, null if walk is done
+     * @return Cursor or null if all walks are done
+     */
+    static String encode(AppointmentRequest request, Instant[] resumeTimes) {
+        StringBuilder cursor = new StringBuilder(checksum(request));
+        boolean done = true;
+        for (Instant resumeTime : resumeTimes) {
+            cursor.append(';').append(resumeTime == null ? DONE : resumeTime.toString());
+            done &= resumeTime == null;
+        }
+        return done ? null : Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Checksum of the parameters that select the slots, limit and slot format can change between pages.
+     */
+    private static String checksum(AppointmentRequest request) {
+        String parameters = request.getCalendarIds() + "|" + request.getPeriodToSearch() + "|" + request.getDuration()
+                + "|" + request.getAvailabilityMode() + "|" + request.getTypeId();
+        CRC32 crc = new CRC32();
+        crc.update(parameters.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+}
@@ -0,0 +1,418 @@
+package com.no.patient.sky.patientsky.service;
+
+import com.no.patient.sky.patientsky.exception.QueryBudgetExceededException;
+import com.no.patient.sky.patientsky.index.CalendarData;
+import com.no.patient.sky.patientsky.index.CalendarIndex;
+import com.no.patient.sky.patientsky.initializer.CalendarChangedEvent;
+import com.no.patient.sky.patientsky.initializer.JsonData;
+import com.no.patient.sky.patientsky.metrics.AvailabilityMetrics;
+import com.no.patient.sky.patientsky.request.AppointmentRequest;
+import com.no.patient.sky.patientsky.response.AvailabilityChange;
+import com.no.patient.sky.patientsky.response.AvailableSlotList;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes changes of available slots to subscribers, so clients do not have to poll.
+ * <p>
+ * A subscription is a request of individual slots: calendars, a fixed period, a duration and optionally a timeslot type.
+ * It gets a snapshot of the slots of each calendar and, whenever a reload or booking changes the calendar,
+ * only the slots added and removed since. Changes are collected from {@link CalendarChangedEvent} and evaluated on one
+ * thread, a calendar changed several times before it is evaluated is evaluated once.
+ * Per changed calendar and timeslot type the unavailable intervals are looked up once for the union of the periods
+ * of all its subscriptions, each subscription only walks that index over its own period.
+ * <p>
+ * The feed thread never writes to a client. Changes are put in a bounded queue per subscription, which is sent by
+ * a sender thread, so a slow client only delays itself. A subscription whose queue is full is dropped and its client
+ * subscribes again for a fresh snapshot.
+ * <p>
+ * Subscriptions keep the slot start times last sent, so their size is bounded by {@code max-slots}.
+ */
+@Slf4j
+@Component
+public class AvailabilityFeed {
+
+    private static final long[] NO_SLOTS = new long[0];
+
+    private final JsonData fileData;
+    private final AdmissionControl admissionControl;
+    private final AvailabilityMetrics availabilityMetrics;
+    private final Duration timeout;
+    private final long maxSlots;
+    private final int maxQueuedChanges;
+
+    private final ConcurrentMap<String, Set<Subscription>> subscriptionsByCalendar = new ConcurrentHashMap<>();
+    private final Set<String> changedCalendars = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean publishScheduled = new AtomicBoolean();
+    private final ExecutorService executor;
+    private final ExecutorService senders;
+
+    /**
+     * @param fileData
+     * @param admissionControl
+     * @param availabilityMetrics
+     * @param timeout             time after which a subscription ends and the client has to subscribe again
+     * @param maxSlots            maximum slots of a subscription over all its calendars
+     * @param maxQueuedChanges    maximum changes waiting to be sent to one client before its subscription is dropped
+     */
+    public AvailabilityFeed(JsonData fileData, AdmissionControl admissionControl, AvailabilityMetrics availabilityMetrics,
+                            @Value("${appointment.feed.timeout:30m}") Duration timeout,
+                            @Value("${appointment.feed.max-slots:10000}") long maxSlots,
+                            @Value("${appointment.feed.max-queued-changes:64}") int maxQueuedChanges) {
+        this.fileData = fileData;
+        this.admissionControl = admissionControl;
+        this.availabilityMetrics = availabilityMetrics;
+        this.timeout = timeout;
+        this.maxSlots = maxSlots;
+        this.maxQueuedChanges = Math.max(1, maxQueuedChanges);
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "availability-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger senderNumber = new AtomicInteger();
+        this.senders = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "availability-feed-sender-" + senderNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        senders.shutdownNow();
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Subscribe to changes of available slots and send the snapshot of each calendar to listener before returning.
+     *
+     * @param request  request of individual slots with validated period
+     * @param listener receives the changes, on the calling thread for the snapshots and on a sender thread afterwards
+     * @return Subscription to close when the client is gone
+     * @throws QueryBudgetExceededException if request can have more slots than a subscription may keep
+     */
+    public Subscription subscribe(AppointmentRequest request, AvailabilityListener listener) {
+        long cost = admissionControl.estimateCost(request);
+        if (cost > maxSlots) {
+            log.warn("Subscription with estimated {} slots over maximum of {} is rejected: calendars={}, period={}, duration={}",
+                    cost, maxSlots, request.getCalendarIds().size(), request.getPeriodToSearch(), request.getDuration());
+            availabilityMetrics.recordRejected(AvailabilityMetrics.REJECTED_BUDGET);
+            throw new QueryBudgetExceededException("Subscription exceeds maximum slots, use a shorter period or a longer duration");
+        }
+
+        Subscription subscription = new Subscription(request, listener);
+        for (UUID calendarId : subscription.calendarIds) {
+            subscriptionsByCalendar.compute(calendarId.toString(), (id, subscriptions) -> {
+                Set<Subscription> updatedSubscriptions = subscriptions == null ? ConcurrentHashMap.newKeySet() : subscriptions;
+                updatedSubscriptions.add(subscription);
+                return updatedSubscriptions;
+            });
+        }
+        availabilityMetrics.recordSubscribed();
+
+        for (UUID calendarId : subscription.calendarIds) {
+            CalendarData calendarData = fileData.getCalendarData(calendarId);
+            subscription.update(calendarId, calendarData,
+                    calendarData == null ? null : calendarData.getUnavailableIntervals(subscription.typeId, subscription.startSecond, subscription.endSecond));
+        }
+        subscription.sendQueuedChanges();
+        return subscription;
+    }
+
+    /**
+     * Mark calendar as changed and schedule evaluation, if it has subscriptions.
+     * Called on the thread that changed the calendar, so nothing is evaluated here. Events can arrive out of order,
+     * the evaluation reads the current data of the calendar and not the data of the event.
+     */
+    @EventListener
+    public void onCalendarChanged(CalendarChangedEvent event) {
+        if (!subscriptionsByCalendar.containsKey(event.getCalendarId())) {
+            return;
+        }
+        changedCalendars.add(event.getCalendarId());
+        if (publishScheduled.compareAndSet(false, true)) {
+            executor.execute(this::publishChanges);
+        }
+    }
+
+    /**
+     * Evaluate all changed calendars. The flag is cleared first, a calendar changed after that schedules another run.
+     */
+    private void publishChanges() {
+        publishScheduled.set(false);
+        for (Iterator<String> iterator = changedCalendars.iterator(); iterator.hasNext(); ) {
+            String calendarId = iterator.next();
+            iterator.remove();
+            try {
+                publishChanges(calendarId);
+            } catch (RuntimeException exception) {
+                log.error("Error in publishing availability changes of calendar {}", calendarId, exception);
+            }
+        }
+    }
+
+    /**
+     * Look up calendar once per timeslot type of its subscriptions and send each subscription its changes.
+     */
+    private void publishChanges(String calendarId) {
+        Set<Subscription> subscriptions = subscriptionsByCalendar.get(calendarId);
+        if (subscriptions == null) {
+            return;
+        }
+
+        Map<String, List<Subscription>> subscriptionsByType = new HashMap<>();
+        for (Subscription subscription : subscriptions) {
+            subscriptionsByType.computeIfAbsent(subscription.typeId, typeId -> new ArrayList<>()).add(subscription);
+        }
+
+        UUID id = UUID.fromString(calendarId);
+        CalendarData calendarData = fileData.getCalendarData(id);
+        for (Map.Entry<String, List<Subscription>> entry : subscriptionsByType.entrySet()) {
+            CalendarIndex index = null;
+            if (calendarData != null) {
+                long startSecond = Long.MAX_VALUE;
+                long endSecond = Long.MIN_VALUE;
+                for (Subscription subscription : entry.getValue()) {
+                    startSecond = Math.min(startSecond, subscription.startSecond);
+                    endSecond = Math.max(endSecond, subscription.endSecond);
+                }
+                index = calendarData.getUnavailableIntervals(entry.getKey(), startSecond, endSecond);
+            }
+            availabilityMetrics.recordFeedEvaluation();
+
+            for (Subscription subscription : entry.getValue()) {
+                subscription.update(id, calendarData, index);
+            }
+        }
+    }
+
+    /**
+     * Subscription of one client, closed when the client is gone or its listener fails.
+     */
+    public final class Subscription implements AutoCloseable {
+
+        private final Set<UUID> calendarIds;
+        private final String typeId;
+        private final int duration;
+        private final long durationMillis;
+        private final long startTime;
+        private final long endTime;
+        private final long startSecond;
+        private final long endSecond;
+        private final AvailabilityListener listener;
+
+        /**
+         * Slot start times last sent per calendar, empty for a calendar that does not exist.
+         */
+        private final Map<UUID, long[]> sentSlotStartTimes = new HashMap<>();
+
+        /**
+         * Generation of the data last sent per calendar, -1 for a calendar that does not exist.
+         */
+        private final Map<UUID, Long> sentGenerations = new HashMap<>();
+        private final Set<UUID> missingCalendars = new HashSet<>();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        /**
+         * Changes not sent yet and if they are being sent, the snapshots are sent by the subscribing thread.
+         */
+        private final Queue<AvailabilityChange> queuedChanges = new ArrayDeque<>();
+        private boolean sending = true;
+
+        private Subscription(AppointmentRequest request, AvailabilityListener listener) {
+            this.calendarIds = new LinkedHashSet<>(request.getCalendarIds());
+            this.typeId = request.getTypeId();
+            this.duration = request.getDuration();
+            this.durationMillis = TimeUnit.MINUTES.toMillis(duration);
+            this.startTime = request.getStartTime().toEpochMilli();
+            this.endTime = request.getEndTime().toEpochMilli();
+            this.startSecond = request.getStartTime().getEpochSecond();
+            this.endSecond = Math.floorDiv(endTime + 999, 1000);
+            this.listener = listener;
+        }
+
+        /**
+         * Stop sending changes. Closing again has no effect.
+         */
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            for (UUID calendarId : calendarIds) {
+                subscriptionsByCalendar.computeIfPresent(calendarId.toString(), (id, subscriptions) -> {
+                    subscriptions.remove(this);
+                    return subscriptions.isEmpty() ? null : subscriptions;
+                });
+            }
+            synchronized (this) {
+                queuedChanges.clear();
+            }
+            availabilityMetrics.recordUnsubscribed();
+        }
+
+        /**
+         * Send queued changes until the queue is empty, on one thread at a time.
+         * The listener is called without holding the lock of the subscription, so the feed thread never waits for a client.
+         */
+        private void sendQueuedChanges() {
+            while (true) {
+                AvailabilityChange change;
+                synchronized (this) {
+                    change = queuedChanges.poll();
+                    if (change == null) {
+                        sending = false;
+                        return;
+                    }
+                }
+                try {
+                    listener.onChange(change);
+                } catch (IOException | IllegalStateException exception) {
+                    log.debug("Subscription is closed as its listener failed: {}", exception.toString());
+                    close();
+                    return;
+                }
+                availabilityMetrics.recordFeedChange();
+            }
+        }
+
+        /**
+         * Queue change and start sending if nothing is being sent, drop subscription if its client does not keep up.
+         *
+         * @return false if subscription was dropped
+         */
+        private boolean queue(AvailabilityChange change) {
+            if (queuedChanges.size() >= maxQueuedChanges) {
+                log.warn("Subscription is dropped as {} changes are waiting to be sent", queuedChanges.size());
+                close();
+                listener.onDropped();
+                return false;
+            }
+            queuedChanges.add(change);
+            if (!sending) {
+                sending = true;
+                senders.execute(this::sendQueuedChanges);
+            }
+            return true;
+        }
+
+        /**
+         * Compute slots of calendar and send the difference to the slots last sent, if there is any.
+         * The snapshot read on the subscribing thread can arrive after a change read later on the feed thread,
+         * data older than the data last sent is ignored. A calendar that does not exist is only sent as missing if
+         * it still does not exist.
+         *
+         * @param calendarId
+         * @param calendarData data of calendar or null if it does not exist
+         * @param index        unavailable intervals of calendar valid within the period of this subscription
+         */
+        private synchronized void update(UUID calendarId, CalendarData calendarData, CalendarIndex index) {
+            if (closed.get()) {
+                return;
+            }
+
+            long generation = calendarData == null ? -1 : calendarData.getGeneration();
+            Long sentGeneration = sentGenerations.get(calendarId);
+            if (sentGeneration != null && (calendarData == null
+                    ? fileData.getCalendarData(calendarId) != null : generation < sentGeneration)) {
+                return;
+            }
+
+            long[] sentSlots = sentSlotStartTimes.get(calendarId);
+            long[] slots = index == null ? NO_SLOTS : getSlotStartTimes(index);
+            boolean missing = index == null;
+            AvailableSlotList addedSlots = new AvailableSlotList();
+            AvailableSlotList removedSlots = new AvailableSlotList();
+            addDifference(sentSlots == null ? NO_SLOTS : sentSlots, slots, addedSlots, removedSlots);
+
+            boolean snapshot = sentSlots == null;
+            if (!snapshot && addedSlots.isEmpty() && removedSlots.isEmpty() && missing == missingCalendars.contains(calendarId)) {
+                sentGenerations.put(calendarId, Math.max(generation, sentGeneration));
+                return;
+            }
+
+            AvailabilityChange change = AvailabilityChange.builder()
+                    .calendarId(calendarId)
+                    .snapshot(snapshot)
+                    .generation(generation)
+                    .addedSlots(snapshot || !addedSlots.isEmpty() ? addedSlots : null)
+                    .removedSlots(removedSlots.isEmpty() ? null : removedSlots)
+                    .error(missing ? "Calendar Id does not exist." : null)
+                    .build();
+            if (!queue(change)) {
+                return;
+            }
+
+            sentSlotStartTimes.put(calendarId, slots);
+            sentGenerations.put(calendarId, generation);
+            if (missing) {
+                missingCalendars.add(calendarId);
+            } else {
+                missingCalendars.remove(calendarId);
+            }
+        }
+
+        private long[] getSlotStartTimes(CalendarIndex index) {
+            long[] slots = new long[16];
+            int size = 0;
+            for (SlotWalker walker = new SlotWalker(index.cursor(startSecond, endSecond), startTime, endTime, duration);
+                 walker.hasSlot(); walker.nextSlot()) {
+                if (size == slots.length) {
+                    slots = Arrays.copyOf(slots, size * 2);
+                }
+                slots[size++] = walker.getSlotStartTime();
+            }
+            return Arrays.copyOf(slots, size);
+        }
+
+        /**
+         * Merge of the sorted slot start times last sent and current ones.
+         */
+        private void addDifference(long[] sentSlots, long[] slots, AvailableSlotList addedSlots, AvailableSlotList removedSlots) {
+            int sent = 0;
+            int current = 0;
+            while (sent < sentSlots.length || current < slots.length) {
+                if (current == slots.length || (sent < sentSlots.length && sentSlots[sent] < slots[current])) {
+                    removedSlots.add(sentSlots[sent], sentSlots[sent] + durationMillis);
+                    sent++;
+                } else if (sent == sentSlots.length || slots[current] < sentSlots[sent]) {
+                    addedSlots.add(slots[current], slots[current] + durationMillis);
+                    current++;
+                } else {
+                    sent++;
+                    current++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.no.patient.sky.patientsky.service;
+
+import com.no.patient.sky.patientsky.response.AvailabilityChange;
+
+import java.io.IOException;
+
+/**
+ * Receives the changes of a subscription to available times.
+ * Throwing {@link IOException} ends the subscription, e.g. when the client is gone.
+ * Changes are sent one at a time and in order, but not on the thread that detected them.
+ */
+@FunctionalInterface
+public interface AvailabilityListener {
+
+    void onChange(AvailabilityChange change) throws IOException;
+
+    /**
+     * Called when the feed drops the subscription because changes are not taken fast enough,
+     * the client has to subscribe again for a new snapshot.
+     */
+    default void onDropped() {
+    }
+
+}
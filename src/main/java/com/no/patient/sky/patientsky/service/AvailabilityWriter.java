@@ -0,0 +1,16 @@
+package com.no.patient.sky.patientsky.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+
+/**
+ * Writes available times of an already validated request.
+ * Slots are generated while writing, so nothing is computed until {@link #writeTo(JsonGenerator)} is called.
+ */
+@FunctionalInterface
+public interface AvailabilityWriter {
+
+    void writeTo(JsonGenerator generator) throws IOException;
+
+}
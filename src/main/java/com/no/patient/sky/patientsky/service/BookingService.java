@@ -0,0 +1,10 @@
+package com.no.patient.sky.patientsky.service;
+
+import com.no.patient.sky.patientsky.request.BookingRequest;
+import com.no.patient.sky.patientsky.response.BookingResponse;
+
+public interface BookingService {
+
+    BookingResponse bookAppointment(BookingRequest request);
+
+}
@@ -0,0 +1,102 @@
+package com.no.patient.sky.patientsky.service;
+
+import com.no.patient.sky.patientsky.dto.Booking;
+import com.no.patient.sky.patientsky.exception.AppointmentException;
+import com.no.patient.sky.patientsky.exception.BookingConflictException;
+import com.no.patient.sky.patientsky.index.CalendarIndex;
+import com.no.patient.sky.patientsky.initializer.BookingWriteAheadLog;
+import com.no.patient.sky.patientsky.initializer.JsonData;
+import com.no.patient.sky.patientsky.request.BookingRequest;
+import com.no.patient.sky.patientsky.response.BookingResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+@Slf4j
+@Service
+public class BookingServiceImpl implements BookingService {
+
+    /**
+     * Number of locks bookings are striped over. Bookings of calendars on different stripes never contend.
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    @Autowired
+    JsonData fileData;
+
+    @Autowired
+    BookingWriteAheadLog writeAheadLog;
+
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    public BookingServiceImpl() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Book appointment if the calendar is free in the whole period.
+     * <p>
+     * Check and write are done while holding the lock of the calendar, so two bookings of the same calendar
+     * can not both pass the check. The booking is written to the write ahead log before it is published
+     * to the calendar index, so an acknowledged booking is never lost on restart.
+     *
+     * @param request
+     * @return Booked appointment
+     * @throws AppointmentException     if period is invalid or calendar does not exist
+     * @throws BookingConflictException if calendar is busy within period
+     */
+    @Override
+    public BookingResponse bookAppointment(BookingRequest request) {
+
+        if (!request.getEndTime().isAfter(request.getStartTime())) {
+            log.error("EndTime={} is less than or equal to StartTime={}", request.getEndTime(), request.getStartTime());
+            throw new AppointmentException("Invalid Period to Book");
+        }
+
+        Booking booking = Booking.builder()
+                .bookingId(UUID.randomUUID())
+                .calendarId(request.getCalendarId().toString())
+                .startTime(request.getStartTime().getEpochSecond())
+                .endTime(ceilToSecond(request.getEndTime()))
+                .build();
+
+        ReentrantLock lock = getLock(request.getCalendarId());
+        lock.lock();
+        try {
+            CalendarIndex index = fileData.getCalendarIndex(request.getCalendarId(), null, booking.getStartTime(), booking.getEndTime());
+            if (index == null) {
+                throw new AppointmentException("Calendar Id does not exist.");
+            }
+            if (index.overlaps(booking.getStartTime(), booking.getEndTime())) {
+                throw new BookingConflictException("Calendar is not available in Period to Book");
+            }
+
+            writeAheadLog.append(booking);
+            fileData.addBooking(booking);
+        } finally {
+            lock.unlock();
+        }
+
+        return BookingResponse.builder()
+                .bookingId(booking.getBookingId())
+                .calendarId(request.getCalendarId())
+                .startTime(Date.from(Instant.ofEpochSecond(booking.getStartTime())))
+                .endTime(Date.from(Instant.ofEpochSecond(booking.getEndTime())))
+                .build();
+    }
+
+    private ReentrantLock getLock(UUID calendarId) {
+        return locks[(calendarId.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    private long ceilToSecond(Instant time) {
+        return time.getNano() > 0 ? time.getEpochSecond() + 1 : time.getEpochSecond();
+    }
+}
@@ -0,0 +1,133 @@
+package com.no.patient.sky.patientsky.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Bounded pool evaluating the calendars of one request concurrently.
+ * <p>
+ * A request uses at most {@code max-per-request} threads including its own request thread, the workers take the
+ * next calendar from a shared counter until all are done. So one request with many calendars can not take
+ * the whole pool, and when the pool is busy the request thread still makes progress on its own. Helpers that are still
+ * queued when the request thread has taken the last calendar are cancelled, so a request never waits for a queue
+ * it does not need anymore.
+ * Java 8 has no virtual threads, so a fixed pool of platform threads is used.
+ */
+@Component
+public class CalendarExecutor {
+
+    private final ThreadPoolExecutor executor;
+    private final int maxPerRequest;
+
+    /**
+     * @param threads       number of pool threads, 0 for number of processors
+     * @param maxPerRequest maximum threads used by one request, 1 evaluates calendars on the request thread only
+     */
+    public CalendarExecutor(@Value("${appointment.parallel.threads:0}") int threads,
+                            @Value("${appointment.parallel.max-per-request:4}") int maxPerRequest) {
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.maxPerRequest = Math.max(1, maxPerRequest);
+        if (this.maxPerRequest == 1) {
+            this.executor = null;
+            return;
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(poolSize * 16),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "calendar-worker-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Run task for each position from 0 to count and wait until all are done.
+     * The task is responsible for storing its result at its position, so order of results is kept.
+     * Only helpers that started are waited for, the others are cancelled and removed from the queue.
+     *
+     * @param count number of positions
+     * @param task  task called once for each position
+     */
+    public void forEach(int count, IntConsumer task) {
+        int workers = Math.min(count, maxPerRequest);
+        if (executor == null || workers <= 1) {
+            for (int i = 0; i < count; i++) {
+                task.accept(i);
+            }
+            return;
+        }
+
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            int position;
+            while ((position = next.getAndIncrement()) < count) {
+                try {
+                    task.accept(position);
+                } catch (RuntimeException | Error exception) {
+                    next.set(count);
+                    throw exception;
+                }
+            }
+        };
+
+        List<FutureTask<Void>> helpers = new ArrayList<>(workers - 1);
+        for (int i = 1; i < workers; i++) {
+            FutureTask<Void> helper = new FutureTask<>(worker, null);
+            helpers.add(helper);
+            executor.execute(helper);
+        }
+        try {
+            worker.run();
+        } finally {
+            //All positions are taken or the task failed, helpers that did not start have nothing left to do.
+            for (FutureTask<Void> helper : helpers) {
+                if (helper.cancel(false)) {
+                    executor.remove(helper);
+                }
+            }
+        }
+        for (FutureTask<Void> helper : helpers) {
+            if (!helper.isCancelled()) {
+                waitFor(helper);
+            }
+        }
+    }
+
+    private void waitFor(FutureTask<Void> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while evaluating calendars", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
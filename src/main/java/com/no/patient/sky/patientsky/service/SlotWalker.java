@@ -0,0 +1,113 @@
+package com.no.patient.sky.patientsky.service;
+
+import com.no.patient.sky.patientsky.index.BusyIntervalCursor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Available slots of the free time between busy intervals, produced one at a time.
+ * <p>
+ * Gives the same slots as walking all free time of the period, but busy intervals are only read
+ * up to the slot asked for. The start of the next slot is also the point to resume from:
+ * a walk started there gives the remaining slots, as slots of a free time are back to back.
+ * Times are epoch millis.
+ */
+final class SlotWalker {
+
+    private static final long NO_SLOT = Long.MIN_VALUE;
+
+    private final BusyIntervalCursor busyIntervals;
+    private final long endTime;
+    private final long durationMillis;
+
+    /**
+     * End of the last busy interval read, start of the next free time.
+     */
+    private long startTimeSlot;
+    private boolean busyIntervalsDone;
+    private long freeEndTime;
+    private long slotStartTime;
+    private int intervalsScanned;
+
+    /**
+     * @param busyIntervals busy intervals overlapping period
+     * @param startTime     start of period or point to resume from
+     * @param endTime       end of period
+     * @param duration      duration of slots in minutes
+     */
+    SlotWalker(BusyIntervalCursor busyIntervals, long startTime, long endTime, int duration) {
+        this.busyIntervals = busyIntervals;
+        this.endTime = endTime;
+        this.durationMillis = TimeUnit.MINUTES.toMillis(duration);
+        this.startTimeSlot = startTime;
+        this.freeEndTime = startTime;
+        findSlot(startTime);
+    }
+
+    boolean hasSlot() {
+        return slotStartTime != NO_SLOT;
+    }
+
+    /**
+     * @return start of current slot, only valid while {@link #hasSlot()}
+     */
+    long getSlotStartTime() {
+        return slotStartTime;
+    }
+
+    long getSlotEndTime() {
+        return slotStartTime + durationMillis;
+    }
+
+    int getIntervalsScanned() {
+        return intervalsScanned;
+    }
+
+    /**
+     * Move to the next slot, the back to back slot in the same free time or the first slot of a later free time.
+     */
+    void nextSlot() {
+        findSlot(getSlotEndTime());
+    }
+
+    /**
+     * Take candidate if slot fits in current free time, else the start of the first later free time a slot fits in.
+     */
+    private void findSlot(long candidate) {
+        while (candidate + durationMillis > freeEndTime) {
+            candidate = nextFreeTime();
+            if (candidate == NO_SLOT) {
+                slotStartTime = NO_SLOT;
+                return;
+            }
+        }
+        slotStartTime = candidate;
+    }
+
+    /**
+     * Read busy intervals up to the next free time, same as the loop of the full walk.
+     *
+     * @return start of free time, end is set in freeEndTime, or NO_SLOT if period has no more free time
+     */
+    private long nextFreeTime() {
+        while (busyIntervals.next()) {
+            intervalsScanned++;
+            long busyStartTime = AppointmentServiceImpl.toMillis(busyIntervals.getStart());
+            long freeStartTime = startTimeSlot;
+            startTimeSlot = AppointmentServiceImpl.toMillis(busyIntervals.getEnd());
+            if (freeStartTime < busyStartTime) {
+                freeEndTime = busyStartTime;
+                return freeStartTime;
+            }
+        }
+
+        if (!busyIntervalsDone) {
+            busyIntervalsDone = true;
+            if (startTimeSlot < endTime) {
+                freeEndTime = endTime;
+                return startTimeSlot;
+            }
+        }
+        return NO_SLOT;
+    }
+}
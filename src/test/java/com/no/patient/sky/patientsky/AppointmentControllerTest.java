@@ -1,41 +1,81 @@
 package com.no.patient.sky.patientsky;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.no.patient.sky.patientsky.controller.AppointmentController;
 import com.no.patient.sky.patientsky.dto.Appointment;
-import com.no.patient.sky.patientsky.dto.Appointments;
+import com.no.patient.sky.patientsky.exception.AppointmentException;
+import com.no.patient.sky.patientsky.index.CalendarData;
+import com.no.patient.sky.patientsky.index.CalendarIndex;
+import com.no.patient.sky.patientsky.initializer.CalendarChangedEvent;
 import com.no.patient.sky.patientsky.initializer.JsonData;
+import com.no.patient.sky.patientsky.metrics.AvailabilityMetrics;
+import com.no.patient.sky.patientsky.metrics.TimedCborHttpMessageConverter;
+import com.no.patient.sky.patientsky.metrics.TimedSmileHttpMessageConverter;
 import com.no.patient.sky.patientsky.request.AppointmentRequest;
+import com.no.patient.sky.patientsky.request.AvailabilityMode;
+import com.no.patient.sky.patientsky.response.AvailabilityChange;
+import com.no.patient.sky.patientsky.service.AdmissionControl;
 import com.no.patient.sky.patientsky.service.AppointmentService;
 import com.no.patient.sky.patientsky.service.AppointmentServiceImpl;
+import com.no.patient.sky.patientsky.service.AvailabilityCache;
+import com.no.patient.sky.patientsky.service.AvailabilityFeed;
+import com.no.patient.sky.patientsky.service.AvailabilityListener;
+import com.no.patient.sky.patientsky.service.CalendarExecutor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.StringHttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.util.NestedServletException;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.mockito.Mockito.*;
+import static org.springframework.test.util.ReflectionTestUtils.getField;
 import static org.springframework.test.util.ReflectionTestUtils.setField;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 public class AppointmentControllerTest {
 
     private static final UUID VALID_CALENDAR_ID = UUID.fromString("48cadf26-975e-11e5-b9c2-c8e0eb18c1e9");
+    private static final UUID SECOND_CALENDAR_ID = UUID.fromString("452dccfc-975e-11e5-bfa5-c8e0eb18c1e9");
+    private static final UUID THIRD_CALENDAR_ID = UUID.fromString("3c2dc6ba-975e-11e5-a7b5-c8e0eb18c1e9");
+    private static final UUID FOURTH_CALENDAR_ID = UUID.fromString("5d8e1b4a-975e-11e5-8f21-c8e0eb18c1e9");
 
     private MockMvc mockMvc;
     private AppointmentService service;
+    private TimedSmileHttpMessageConverter smileHttpMessageConverter;
+    private TimedCborHttpMessageConverter cborHttpMessageConverter;
 
     @InjectMocks
     private AppointmentController controller;
@@ -46,10 +86,26 @@ public class AppointmentControllerTest {
     @Before
     public void init() {
         MockitoAnnotations.initMocks(this);
-        mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+        AvailabilityMetrics availabilityMetrics = new AvailabilityMetrics(new SimpleMeterRegistry(), Duration.ofMillis(500));
+        smileHttpMessageConverter = new TimedSmileHttpMessageConverter(new Jackson2ObjectMapperBuilder(), availabilityMetrics);
+        cborHttpMessageConverter = new TimedCborHttpMessageConverter(new Jackson2ObjectMapperBuilder(), availabilityMetrics);
+        mockMvc = MockMvcBuilders.standaloneSetup(controller)
+                .setMessageConverters(new StringHttpMessageConverter(), new MappingJackson2HttpMessageConverter(), smileHttpMessageConverter, cborHttpMessageConverter)
+                .build();
         service = new AppointmentServiceImpl();
         setField(controller, "appointmentService", service);
+        setField(controller, "objectMapper", new ObjectMapper());
+        setField(controller, "smileHttpMessageConverter", smileHttpMessageConverter);
+        setField(controller, "cborHttpMessageConverter", cborHttpMessageConverter);
         setField(service, "fileData", jsonData);
+        setField(service, "availabilityCache", new AvailabilityCache(0));
+        setField(service, "calendarExecutor", new CalendarExecutor(2, 2));
+        setField(service, "availabilityMetrics", availabilityMetrics);
+        AdmissionControl admissionControl = new AdmissionControl(1000000, 100000, 2, Duration.ofSeconds(1), true, availabilityMetrics);
+        AvailabilityFeed availabilityFeed = new AvailabilityFeed(jsonData, admissionControl, availabilityMetrics, Duration.ofMinutes(1), 10000, 64);
+        setField(controller, "availabilityFeed", availabilityFeed);
+        setField(service, "admissionControl", admissionControl);
+        setField(service, "availabilityFeed", availabilityFeed);
     }
 
     @Test
@@ -65,7 +121,7 @@ public class AppointmentControllerTest {
         MvcResult result = performMockMvcWithStatusOk(request);
 
         verify(jsonData, times(1)).checkIfCalendarIdDoesNotExists(eq(VALID_CALENDAR_ID));
-        verify(jsonData, times(0)).getAppointmentByCalendarId(eq(VALID_CALENDAR_ID));
+        verify(jsonData, times(0)).getCalendarIndex(eq(VALID_CALENDAR_ID), isNull(), anyLong(), anyLong());
 
         String content = result.getResponse().getContentAsString();
         Assert.assertEquals("{\"availableSlots\":[{\"calendarId\":\"48cadf26-975e-11e5-b9c2-c8e0eb18c1e9\",\"error\":\"Calendar Id does not exist.\"}]}", content);
@@ -111,6 +167,23 @@ public class AppointmentControllerTest {
         Assert.assertTrue(result.getResolvedException().getMessage().contains("Duration must be greater than zero"));
     }
 
+    /**
+     * Duration 0 would never advance the slots, it is rejected like a negative duration.
+     */
+    @Test
+    public void testZeroDurationValidation() throws Exception {
+
+        AppointmentRequest request = new AppointmentRequest();
+        request.setPeriodToSearch("2019-04-23T12:20:00Z/2019-04-23T13:20:00Z");
+        request.setCalendarIds(Arrays.asList(VALID_CALENDAR_ID));
+        request.setDuration(0);
+
+        MvcResult result = performMockMvcWithStatusBadRequest(request);
+
+        Assert.assertNotNull(result.getResolvedException());
+        Assert.assertTrue(result.getResolvedException().getMessage().contains("Duration must be greater than zero"));
+    }
+
     @Test
     public void testTimeSlotByMockingData() throws Exception {
 
@@ -120,15 +193,349 @@ public class AppointmentControllerTest {
         request.setDuration(15);
 
         when(jsonData.checkIfCalendarIdDoesNotExists(VALID_CALENDAR_ID)).thenReturn(false);
-        when(jsonData.getAppointmentByCalendarId(VALID_CALENDAR_ID)).thenReturn(generateAppointments());
+        when(jsonData.getCalendarIndex(eq(VALID_CALENDAR_ID), isNull(), anyLong(), anyLong())).thenReturn(generateCalendarIndex());
 
         MvcResult result = performMockMvcWithStatusOk(request);
 
         verify(jsonData, times(1)).checkIfCalendarIdDoesNotExists(eq(VALID_CALENDAR_ID));
-        verify(jsonData, times(1)).getAppointmentByCalendarId(eq(VALID_CALENDAR_ID));
+        verify(jsonData, times(1)).getCalendarIndex(eq(VALID_CALENDAR_ID), isNull(), anyLong(), anyLong());
+
+        String content = result.getResponse().getContentAsString();
+        Assert.assertEquals("{\"availableSlots\":[{\"calendarId\":\"48cadf26-975e-11e5-b9c2-c8e0eb18c1e9\",\"availableSlotList\":[{\"startTime\":1556019000000,\"endTime\":1556019900000},{\"startTime\":1556019900000,\"endTime\":1556020800000},{\"startTime\":1556021700000,\"endTime\":1556022600000}]}]}", content);
+    }
+
+    /**
+     * First calendar is busy 11:45 - 12:00 and second calendar 12:00 - 12:15.
+     * Expected common slots are 11:30 - 11:45 and 12:15 - 12:30.
+     */
+    @Test
+    public void testCommonTimeSlotByMockingData() throws Exception {
+
+        AppointmentRequest request = new AppointmentRequest();
+        request.setPeriodToSearch("2019-04-23T11:30:00Z/2019-04-23T12:30:00Z");
+        request.setCalendarIds(Arrays.asList(VALID_CALENDAR_ID, SECOND_CALENDAR_ID));
+        request.setDuration(15);
+        request.setAvailabilityMode(AvailabilityMode.COMMON);
+
+        when(jsonData.getCalendarData(VALID_CALENDAR_ID)).thenReturn(CalendarData.of(VALID_CALENDAR_ID.toString(),
+                generateCalendarIndex(VALID_CALENDAR_ID, "2019-04-23T11:45:00Z", "2019-04-23T12:00:00Z"), Collections.emptyList()));
+        when(jsonData.getCalendarData(SECOND_CALENDAR_ID)).thenReturn(CalendarData.of(SECOND_CALENDAR_ID.toString(),
+                generateCalendarIndex(SECOND_CALENDAR_ID, "2019-04-23T12:00:00Z", "2019-04-23T12:15:00Z"), Collections.emptyList()));
+
+        MvcResult result = performMockMvcWithStatusOk(request);
+
+        String content = result.getResponse().getContentAsString();
+        Assert.assertEquals("{\"availableSlots\":[],\"commonAvailableSlotList\":[{\"startTime\":1556019000000,\"endTime\":1556019900000},{\"startTime\":1556021700000,\"endTime\":1556022600000}]}", content);
+    }
+
+    /**
+     * Streamed response has the same content as the response of /getAvailableSlot.
+     */
+    @Test
+    public void testStreamedTimeSlotByMockingData() throws Exception {
+
+        AppointmentRequest request = new AppointmentRequest();
+        request.setPeriodToSearch("2019-04-23T11:30:00Z/2019-04-23T12:30:00Z");
+        request.setCalendarIds(Arrays.asList(VALID_CALENDAR_ID, SECOND_CALENDAR_ID));
+        request.setDuration(15);
+
+        when(jsonData.checkIfCalendarIdDoesNotExists(VALID_CALENDAR_ID)).thenReturn(false);
+        when(jsonData.checkIfCalendarIdDoesNotExists(SECOND_CALENDAR_ID)).thenReturn(true);
+        when(jsonData.getCalendarIndex(eq(VALID_CALENDAR_ID), isNull(), anyLong(), anyLong())).thenReturn(generateCalendarIndex());
+
+        MvcResult asyncResult = mockMvc.perform(get("/getAvailableSlot/stream")
+                .contentType(MediaType.APPLICATION_JSON).content(new ObjectMapper().writeValueAsString(request)))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult result = mockMvc.perform(asyncDispatch(asyncResult))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        String content = result.getResponse().getContentAsString();
+        Assert.assertEquals("{\"availableSlots\":[{\"calendarId\":\"48cadf26-975e-11e5-b9c2-c8e0eb18c1e9\",\"availableSlotList\":[{\"startTime\":1556019000000,\"endTime\":1556019900000},{\"startTime\":1556019900000,\"endTime\":1556020800000},{\"startTime\":1556021700000,\"endTime\":1556022600000}]},{\"calendarId\":\"452dccfc-975e-11e5-bfa5-c8e0eb18c1e9\",\"error\":\"Calendar Id does not exist.\"}]}", content);
+    }
+
+    @Test
+    public void testStreamedPeriodValidation() throws Exception {
+
+        AppointmentRequest request = new AppointmentRequest();
+        request.setPeriodToSearch("2019-04-23T12:20:00Z");
+        request.setCalendarIds(Arrays.asList(VALID_CALENDAR_ID));
+        request.setDuration(15);
+
+        try {
+            mockMvc.perform(get("/getAvailableSlot/stream")
+                    .contentType(MediaType.APPLICATION_JSON).content(new ObjectMapper().writeValueAsString(request)));
+            Assert.fail("Expected invalid period to be rejected before streaming");
+        } catch (NestedServletException exception) {
+            Assert.assertTrue(exception.getCause() instanceof AppointmentException);
+        }
+    }
+
+    /**
+     * Request and response in Smile, timestamps of slots are epoch millis.
+     */
+    @Test
+    public void testSmileTimeSlotByMockingData() throws Exception {
+
+        AppointmentRequest request = new AppointmentRequest();
+        request.setPeriodToSearch("2019-04-23T11:30:00Z/2019-04-23T12:30:00Z");
+        request.setCalendarIds(Arrays.asList(VALID_CALENDAR_ID));
+        request.setDuration(15);
+
+        when(jsonData.checkIfCalendarIdDoesNotExists(VALID_CALENDAR_ID)).thenReturn(false);
+        when(jsonData.getCalendarIndex(eq(VALID_CALENDAR_ID), isNull(), anyLong(), anyLong())).thenReturn(generateCalendarIndex());
+
+        ObjectMapper smileObjectMapper = smileHttpMessageConverter.getObjectMapper();
+        MvcResult result = mockMvc.perform(get("/getAvailableSlot")
+                .contentType(TimedSmileHttpMessageConverter.APPLICATION_SMILE_VALUE)
+                .accept(TimedSmileHttpMessageConverter.APPLICATION_SMILE_VALUE)
+                .content(smileObjectMapper.writeValueAsBytes(request)))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        Assert.assertEquals(TimedSmileHttpMessageConverter.APPLICATION_SMILE_VALUE, result.getResponse().getContentType());
+        JsonNode content = smileObjectMapper.readTree(result.getResponse().getContentAsByteArray());
+        Assert.assertEquals(VALID_CALENDAR_ID, smileObjectMapper.treeToValue(content.at("/availableSlots/0/calendarId"), UUID.class));
+        Assert.assertEquals("[{\"startTime\":1556019000000,\"endTime\":1556019900000},{\"startTime\":1556019900000,\"endTime\":1556020800000},{\"startTime\":1556021700000,\"endTime\":1556022600000}]",
+                content.at("/availableSlots/0/availableSlotList").toString());
+    }
+
+    /**
+     * Streamed response is written in CBOR when the caller accepts it before json.
+     */
+    @Test
+    public void testStreamedCborTimeSlotByMockingData() throws Exception {
+
+        AppointmentRequest request = new AppointmentRequest();
+        request.setPeriodToSearch("2019-04-23T11:30:00Z/2019-04-23T12:30:00Z");
+        request.setCalendarIds(Arrays.asList(VALID_CALENDAR_ID));
+        request.setDuration(15);
+
+        when(jsonData.checkIfCalendarIdDoesNotExists(VALID_CALENDAR_ID)).thenReturn(false);
+        when(jsonData.getCalendarIndex(eq(VALID_CALENDAR_ID), isNull(), anyLong(), anyLong())).thenReturn(generateCalendarIndex());
+
+        MvcResult asyncResult = mockMvc.perform(get("/getAvailableSlot/stream")
+                .contentType(MediaType.APPLICATION_JSON).content(new ObjectMapper().writeValueAsString(request))
+                .header(HttpHeaders.ACCEPT, "application/json;q=0.5, application/cbor"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult result = mockMvc.perform(asyncDispatch(asyncResult))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        Assert.assertEquals(MediaType.APPLICATION_CBOR_VALUE, result.getResponse().getContentType());
+        JsonNode content = cborHttpMessageConverter.getObjectMapper().readTree(result.getResponse().getContentAsByteArray());
+        Assert.assertEquals(1556019000000L, content.at("/availableSlots/0/availableSlotList/0/startTime").longValue());
+        Assert.assertEquals(3, content.at("/availableSlots/0/availableSlotList").size());
+    }
+
+    /**
+     * Subscription starts an event stream with a snapshot per calendar, here of a calendar that does not exist.
+     */
+    @Test
+    public void testSubscriptionSendsSnapshotEvent() throws Exception {
+
+        AppointmentRequest request = new AppointmentRequest();
+        request.setPeriodToSearch("2019-04-23T11:30:00Z/2019-04-23T12:30:00Z");
+        request.setCalendarIds(Arrays.asList(VALID_CALENDAR_ID));
+        request.setDuration(15);
+
+        MvcResult result = mockMvc.perform(post("/getAvailableSlot/subscribe")
+                .contentType(MediaType.APPLICATION_JSON).content(new ObjectMapper().writeValueAsString(request))
+                .header(HttpHeaders.ACCEPT, MediaType.TEXT_EVENT_STREAM_VALUE))
+                .andExpect(request().asyncStarted())
+                .andReturn();
 
         String content = result.getResponse().getContentAsString();
-        Assert.assertEquals("{\"availableSlots\":[{\"calendarId\":\"48cadf26-975e-11e5-b9c2-c8e0eb18c1e9\",\"availableSlotList\":[{\"startTime\":1556019000000,\"endTime\":1556019900000},{\"startTime\":1556019900000,\"endTime\":1556020800000},{\"startTime\":1556020800000,\"endTime\":1556021700000},{\"startTime\":1556020800000,\"endTime\":1556021700000},{\"startTime\":1556021700000,\"endTime\":1556022600000}]}]}", content);
+        Assert.assertTrue(content.startsWith("event:snapshot\ndata:"));
+        Assert.assertTrue(content.contains("\"error\":\"Calendar Id does not exist.\""));
+        Assert.assertTrue(content.contains("\"addedSlots\":[]"));
+    }
+
+    /**
+     * A booking lands after the subscription is registered but before its snapshot is read. The feed sends the booked
+     * data first, the older snapshot read afterwards must not add the booked slot back.
+     */
+    @Test
+    public void testSubscriptionIgnoresSnapshotOlderThanChange() throws Exception {
+
+        AppointmentRequest request = new AppointmentRequest();
+        request.setPeriodToSearch("2019-04-23T12:00:00Z/2019-04-23T13:00:00Z");
+        request.setStartTime(Instant.parse("2019-04-23T12:00:00Z"));
+        request.setEndTime(Instant.parse("2019-04-23T13:00:00Z"));
+        request.setCalendarIds(Arrays.asList(VALID_CALENDAR_ID));
+        request.setDuration(15);
+
+        CalendarData oldData = CalendarData.of(VALID_CALENDAR_ID.toString(),
+                generateCalendarIndex(VALID_CALENDAR_ID, "2019-04-23T12:00:00Z", "2019-04-23T12:15:00Z"), Collections.emptyList()).withGeneration(1);
+        CalendarData bookedData = CalendarData.of(VALID_CALENDAR_ID.toString(),
+                generateCalendarIndex(VALID_CALENDAR_ID, "2019-04-23T12:00:00Z", "2019-04-23T12:30:00Z"), Collections.emptyList()).withGeneration(2);
+        BlockingQueue<AvailabilityChange> changes = new LinkedBlockingQueue<>();
+        AvailabilityFeed availabilityFeed = (AvailabilityFeed) getField(controller, "availabilityFeed");
+        AtomicInteger reads = new AtomicInteger();
+        when(jsonData.getCalendarData(VALID_CALENDAR_ID)).thenAnswer(invocation -> {
+            if (reads.getAndIncrement() > 0) {
+                return bookedData;
+            }
+            availabilityFeed.onCalendarChanged(new CalendarChangedEvent(VALID_CALENDAR_ID.toString(), 2));
+            awaitFeed(availabilityFeed);
+            return oldData;
+        });
+
+        AvailabilityFeed.Subscription subscription = availabilityFeed.subscribe(request, changes::add);
+        subscription.close();
+
+        Assert.assertEquals(2, changes.take().getGeneration());
+        Assert.assertTrue(changes.isEmpty());
+        Assert.assertTrue(reads.get() >= 2);
+    }
+
+    /**
+     * A client that does not take its changes must not hold up the feed, its subscription is dropped
+     * once more changes wait than the feed queues per subscription.
+     */
+    @Test
+    public void testSlowSubscriptionIsDropped() throws Exception {
+
+        AppointmentRequest request = new AppointmentRequest();
+        request.setPeriodToSearch("2019-04-23T12:00:00Z/2019-04-23T13:00:00Z");
+        request.setStartTime(Instant.parse("2019-04-23T12:00:00Z"));
+        request.setEndTime(Instant.parse("2019-04-23T13:00:00Z"));
+        request.setCalendarIds(Arrays.asList(VALID_CALENDAR_ID));
+        request.setDuration(15);
+
+        CalendarIndex[] indexes = {
+                generateCalendarIndex(VALID_CALENDAR_ID, "2019-04-23T12:00:00Z", "2019-04-23T12:15:00Z"),
+                generateCalendarIndex(VALID_CALENDAR_ID, "2019-04-23T12:00:00Z", "2019-04-23T12:30:00Z")};
+        AtomicReference<CalendarData> calendarData = new AtomicReference<>(
+                CalendarData.of(VALID_CALENDAR_ID.toString(), indexes[0], Collections.emptyList()).withGeneration(0));
+        when(jsonData.getCalendarData(VALID_CALENDAR_ID)).thenAnswer(invocation -> calendarData.get());
+
+        AvailabilityFeed feed = (AvailabilityFeed) getField(controller, "availabilityFeed");
+        AvailabilityFeed availabilityFeed = new AvailabilityFeed(jsonData, (AdmissionControl) getField(feed, "admissionControl"),
+                (AvailabilityMetrics) getField(feed, "availabilityMetrics"), Duration.ofMinutes(1), 10000, 2);
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(1);
+        CountDownLatch dropped = new CountDownLatch(1);
+        AtomicInteger sentChanges = new AtomicInteger();
+        try {
+            availabilityFeed.subscribe(request, new AvailabilityListener() {
+                @Override
+                public void onChange(AvailabilityChange change) throws IOException {
+                    if (!change.isSnapshot()) {
+                        sentChanges.incrementAndGet();
+                        sending.countDown();
+                        try {
+                            released.await();
+                        } catch (InterruptedException exception) {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                }
+
+                @Override
+                public void onDropped() {
+                    dropped.countDown();
+                }
+            });
+
+            for (int generation = 1; generation <= 4; generation++) {
+                calendarData.set(CalendarData.of(VALID_CALENDAR_ID.toString(), indexes[generation % 2], Collections.emptyList()).withGeneration(generation));
+                availabilityFeed.onCalendarChanged(new CalendarChangedEvent(VALID_CALENDAR_ID.toString(), generation));
+                awaitFeed(availabilityFeed);
+                if (generation == 1) {
+                    Assert.assertTrue(sending.await(5, TimeUnit.SECONDS));
+                }
+            }
+
+            Assert.assertTrue(dropped.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, sentChanges.get());
+        } finally {
+            released.countDown();
+            availabilityFeed.shutdown();
+        }
+    }
+
+    /**
+     * Wait until the feed thread has evaluated the changes scheduled so far.
+     */
+    private void awaitFeed(AvailabilityFeed availabilityFeed) throws Exception {
+        ((ExecutorService) getField(availabilityFeed, "executor")).submit(() -> {
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Calendars are busy 10:00 - 10:30, 10:15 - 11:00 and 11:30 - 12:00. Two of them are free all the time except
+     * 10:15 - 10:30, when only the third one is, so pool time of two calendars has a gap there.
+     * With three of them and a duration of 45 minutes the only common free time 11:00 - 11:30 is too short.
+     */
+    @Test
+    public void testPoolTimeByMockingData() throws Exception {
+
+        AppointmentRequest request = new AppointmentRequest();
+        request.setPeriodToSearch("2019-04-23T10:00:00Z/2019-04-23T12:00:00Z");
+        request.setCalendarIds(Arrays.asList(VALID_CALENDAR_ID, SECOND_CALENDAR_ID, THIRD_CALENDAR_ID));
+        request.setDuration(15);
+        request.setAvailabilityMode(AvailabilityMode.POOL);
+        request.setMinFreeCalendars(2);
+
+        when(jsonData.getCalendarIndex(eq(VALID_CALENDAR_ID), isNull(), anyLong(), anyLong()))
+                .thenReturn(generateCalendarIndex(VALID_CALENDAR_ID, "2019-04-23T10:00:00Z", "2019-04-23T10:30:00Z"));
+        when(jsonData.getCalendarIndex(eq(SECOND_CALENDAR_ID), isNull(), anyLong(), anyLong()))
+                .thenReturn(generateCalendarIndex(SECOND_CALENDAR_ID, "2019-04-23T10:15:00Z", "2019-04-23T11:00:00Z"));
+        when(jsonData.getCalendarIndex(eq(THIRD_CALENDAR_ID), isNull(), anyLong(), anyLong()))
+                .thenReturn(generateCalendarIndex(THIRD_CALENDAR_ID, "2019-04-23T11:30:00Z", "2019-04-23T12:00:00Z"));
+
+        String content = performMockMvcWithStatusOk(request).getResponse().getContentAsString();
+        Assert.assertEquals("{\"availableSlots\":[],\"poolAvailableTimeList\":["
+                + "{\"startTime\":1556013600000,\"endTime\":1556014500000,\"calendarIds\":[\"" + SECOND_CALENDAR_ID + "\",\"" + THIRD_CALENDAR_ID + "\"]},"
+                + "{\"startTime\":1556015400000,\"endTime\":1556017200000,\"calendarIds\":[\"" + VALID_CALENDAR_ID + "\",\"" + THIRD_CALENDAR_ID + "\"]},"
+                + "{\"startTime\":1556017200000,\"endTime\":1556019000000,\"calendarIds\":[\"" + VALID_CALENDAR_ID + "\",\"" + SECOND_CALENDAR_ID + "\",\"" + THIRD_CALENDAR_ID + "\"]},"
+                + "{\"startTime\":1556019000000,\"endTime\":1556020800000,\"calendarIds\":[\"" + VALID_CALENDAR_ID + "\",\"" + SECOND_CALENDAR_ID + "\"]}]}", content);
+
+        JsonNode poolTimes = new ObjectMapper().readTree(content).get("poolAvailableTimeList");
+        Assert.assertEquals(Instant.parse("2019-04-23T10:15:00Z").toEpochMilli(), poolTimes.at("/0/endTime").longValue());
+        Assert.assertEquals(Instant.parse("2019-04-23T10:30:00Z").toEpochMilli(), poolTimes.at("/1/startTime").longValue());
+
+        request.setDuration(45);
+        request.setMinFreeCalendars(3);
+        content = performMockMvcWithStatusOk(request).getResponse().getContentAsString();
+        Assert.assertEquals("{\"availableSlots\":[],\"poolAvailableTimeList\":[]}", content);
+    }
+
+    /**
+     * The first two calendars are free 10:00 - 10:15 and the other two 10:15 - 10:30, two are free all the time
+     * but never the same two for 30 minutes, so there is no pool time of that duration.
+     */
+    @Test
+    public void testPoolTimeOfSwappingCalendars() throws Exception {
+
+        AppointmentRequest request = new AppointmentRequest();
+        request.setPeriodToSearch("2019-04-23T10:00:00Z/2019-04-23T10:30:00Z");
+        request.setCalendarIds(Arrays.asList(VALID_CALENDAR_ID, SECOND_CALENDAR_ID, THIRD_CALENDAR_ID, FOURTH_CALENDAR_ID));
+        request.setDuration(30);
+        request.setAvailabilityMode(AvailabilityMode.POOL);
+        request.setMinFreeCalendars(2);
+
+        when(jsonData.getCalendarIndex(eq(VALID_CALENDAR_ID), isNull(), anyLong(), anyLong()))
+                .thenReturn(generateCalendarIndex(VALID_CALENDAR_ID, "2019-04-23T10:15:00Z", "2019-04-23T10:30:00Z"));
+        when(jsonData.getCalendarIndex(eq(SECOND_CALENDAR_ID), isNull(), anyLong(), anyLong()))
+                .thenReturn(generateCalendarIndex(SECOND_CALENDAR_ID, "2019-04-23T10:15:00Z", "2019-04-23T10:30:00Z"));
+        when(jsonData.getCalendarIndex(eq(THIRD_CALENDAR_ID), isNull(), anyLong(), anyLong()))
+                .thenReturn(generateCalendarIndex(THIRD_CALENDAR_ID, "2019-04-23T10:00:00Z", "2019-04-23T10:15:00Z"));
+        when(jsonData.getCalendarIndex(eq(FOURTH_CALENDAR_ID), isNull(), anyLong(), anyLong()))
+                .thenReturn(generateCalendarIndex(FOURTH_CALENDAR_ID, "2019-04-23T10:00:00Z", "2019-04-23T10:15:00Z"));
+
+        String content = performMockMvcWithStatusOk(request).getResponse().getContentAsString();
+        Assert.assertEquals("{\"availableSlots\":[],\"poolAvailableTimeList\":[]}", content);
+
+        request.setDuration(15);
+        JsonNode poolTimes = new ObjectMapper().readTree(performMockMvcWithStatusOk(request).getResponse().getContentAsString())
+                .get("poolAvailableTimeList");
+        Assert.assertEquals(2, poolTimes.size());
+        Assert.assertEquals(SECOND_CALENDAR_ID.toString(), poolTimes.at("/0/calendarIds/1").textValue());
+        Assert.assertEquals(FOURTH_CALENDAR_ID.toString(), poolTimes.at("/1/calendarIds/1").textValue());
     }
 
     private MvcResult performMockMvcWithStatusOk(AppointmentRequest request) throws Exception {
@@ -147,14 +554,16 @@ public class AppointmentControllerTest {
                 .andReturn();
     }
 
-    private Appointments generateAppointments() {
-        Appointments appointments = new Appointments();
+    private CalendarIndex generateCalendarIndex() {
+        return generateCalendarIndex(VALID_CALENDAR_ID, "2019-04-23T12:00:00Z", "2019-04-23T12:15:00Z");
+    }
+
+    private CalendarIndex generateCalendarIndex(UUID calendarId, String startTime, String endTime) {
         Appointment appointment = new Appointment();
-        appointment.setEndTime(Date.from(Instant.parse("2019-04-23T12:00:00Z")));
-        appointment.setStartTime(Date.from(Instant.parse("2019-04-23T12:15:00Z")));
-        appointment.setCalendarId(VALID_CALENDAR_ID.toString());
-        appointments.setAppointmentList(Arrays.asList(appointment));
+        appointment.setStartTime(Date.from(Instant.parse(startTime)));
+        appointment.setEndTime(Date.from(Instant.parse(endTime)));
+        appointment.setCalendarId(calendarId.toString());
 
-        return appointments;
+        return CalendarIndex.of(calendarId.toString(), Arrays.asList(appointment));
     }
 }
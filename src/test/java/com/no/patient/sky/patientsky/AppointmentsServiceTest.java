@@ -1,9 +1,27 @@
 package com.no.patient.sky.patientsky;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.util.StdDateFormat;
 import com.no.patient.sky.patientsky.exception.AppointmentException;
+import com.no.patient.sky.patientsky.exception.QueryBudgetExceededException;
+import com.no.patient.sky.patientsky.exception.QueryQueueTimeoutException;
+import com.no.patient.sky.patientsky.metrics.AvailabilityMetrics;
 import com.no.patient.sky.patientsky.request.AppointmentRequest;
+import com.no.patient.sky.patientsky.request.AvailabilityMode;
+import com.no.patient.sky.patientsky.request.BatchAppointmentQuery;
+import com.no.patient.sky.patientsky.request.BatchAppointmentRequest;
+import com.no.patient.sky.patientsky.request.SlotFormat;
 import com.no.patient.sky.patientsky.response.AppointmentResponse;
+import com.no.patient.sky.patientsky.response.AvailableSlot;
+import com.no.patient.sky.patientsky.response.AvailableSlotList;
+import com.no.patient.sky.patientsky.response.AvailableSlotRun;
+import com.no.patient.sky.patientsky.response.BatchAppointmentResponse;
+import com.no.patient.sky.patientsky.response.CalendarAvailableSlot;
+import com.no.patient.sky.patientsky.service.AdmissionControl;
 import com.no.patient.sky.patientsky.service.AppointmentService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
@@ -12,9 +30,21 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 
 @RunWith(SpringJUnit4ClassRunner.class)
@@ -26,6 +56,12 @@ public class AppointmentsServiceTest {
     @Autowired
     private AppointmentService service;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
     @Rule
     public ExpectedException expectedEx = ExpectedException.none();
 
@@ -100,6 +136,30 @@ public class AppointmentsServiceTest {
         assertResponse(response, 3);
     }
 
+    /**
+     * Period = 1 hour
+     * No. of appointments = 1 (12:15 - 12:30)
+     * Duration = 15 mins
+     *
+     * Expected results 2 runs, one slot before appointment and two slots after
+     */
+    @Test
+    public void TestCompactFormatWithOneAppointmentInBetween_expectTwoRuns(){
+        AppointmentRequest request = generateRequestByPeriod("2019-04-23T12:00:00Z/2019-04-23T13:00:00Z");
+        request.setSlotFormat(SlotFormat.COMPACT);
+        AppointmentResponse response = service.getAvailableTimes(request);
+
+        Assert.assertNull(response.getAvailableSlots().get(0).getAvailableSlotList());
+        List<AvailableSlotRun> runs = response.getAvailableSlots().get(0).getAvailableSlotRunList();
+        Assert.assertEquals(2, runs.size());
+        Assert.assertEquals(Instant.parse("2019-04-23T12:00:00Z"), runs.get(0).getStartTime().toInstant());
+        Assert.assertEquals(1L, runs.get(0).getCount().longValue());
+        Assert.assertEquals(Instant.parse("2019-04-23T12:30:00Z"), runs.get(1).getStartTime().toInstant());
+        Assert.assertEquals(Instant.parse("2019-04-23T13:00:00Z"), runs.get(1).getEndTime().toInstant());
+        Assert.assertEquals(2L, runs.get(1).getCount().longValue());
+        Assert.assertEquals(15, runs.get(1).getDuration().intValue());
+    }
+
     @Test
     public void testCalendarIdNotInData(){
 
@@ -108,6 +168,7 @@ public class AppointmentsServiceTest {
         AppointmentRequest request = new AppointmentRequest();
         request.setCalendarIds(Arrays.asList(randomCalendarId));
         request.setPeriodToSearch(period);
+        request.setDuration(15);
         AppointmentResponse response = service.getAvailableTimes(request);
 
         Assert.assertNotNull(response);
@@ -117,6 +178,304 @@ public class AppointmentsServiceTest {
         Assert.assertEquals("Calendar Id does not exist.", response.getAvailableSlots().get(0).getError());
     }
 
+    /**
+     * Calendars are evaluated concurrently, response keeps order of calendar Ids in request.
+     */
+    @Test
+    public void testManyCalendars_expectRequestOrder(){
+        List<UUID> calendarIds = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            calendarIds.add(i % 5 == 0 ? VALID_CALENDAR_ID : UUID.randomUUID());
+        }
+        AppointmentRequest request = generateRequestByPeriod("2019-04-23T10:00:00Z/2019-04-23T11:00:00Z");
+        request.setCalendarIds(calendarIds);
+
+        AppointmentResponse response = service.getAvailableTimes(request);
+
+        Assert.assertEquals(calendarIds.size(), response.getAvailableSlots().size());
+        for (int i = 0; i < calendarIds.size(); i++) {
+            Assert.assertEquals(calendarIds.get(i), response.getAvailableSlots().get(i).getCalendarId());
+            Assert.assertEquals(i % 5 == 0, response.getAvailableSlots().get(i).getError() == null);
+        }
+    }
+
+    /**
+     * Phases, calendars per request and slots emitted are recorded.
+     */
+    @Test
+    public void testMetricsAreRecorded(){
+        long slotsCount = meterRegistry.get("availability.phase").tag("phase", AvailabilityMetrics.PHASE_SLOTS).timer().count();
+        AppointmentRequest request = generateRequestByPeriod("2019-04-20T10:00:00Z/2019-04-20T11:00:00Z");
+        request.setDuration(20);
+
+        service.getAvailableTimes(request);
+
+        Assert.assertEquals(slotsCount + 1, meterRegistry.get("availability.phase").tag("phase", AvailabilityMetrics.PHASE_SLOTS).timer().count());
+        Assert.assertTrue(meterRegistry.get("availability.phase").tag("phase", AvailabilityMetrics.PHASE_VALIDATE).timer().count() > 0);
+        Assert.assertTrue(meterRegistry.get("availability.slots.emitted").summary().totalAmount() >= 3);
+        Assert.assertTrue(meterRegistry.get("availability.request.allocated").summary().totalAmount() > 0);
+    }
+
+    /**
+     * Four years in one minute slots are over the default budget of a million slots,
+     * the request is answered in compact format.
+     */
+    @Test
+    public void testRequestOverBudget_expectCompactFormat(){
+        double downgraded = meterRegistry.get("availability.admission.downgraded").counter().count();
+        AppointmentRequest request = generateRequestByPeriod("2019-01-01T00:00:00Z/2023-01-01T00:00:00Z");
+        request.setDuration(1);
+
+        AppointmentResponse response = service.getAvailableTimes(request);
+
+        Assert.assertEquals(SlotFormat.COMPACT, request.getSlotFormat());
+        Assert.assertNull(response.getAvailableSlots().get(0).getAvailableSlotList());
+        Assert.assertFalse(response.getAvailableSlots().get(0).getAvailableSlotRunList().isEmpty());
+        Assert.assertEquals(downgraded + 1, meterRegistry.get("availability.admission.downgraded").counter().count(), 0);
+        Assert.assertTrue(meterRegistry.get("availability.admission.queue").timer().count() > 0);
+    }
+
+    /**
+     * Without downgrade a request over budget is rejected, a heavy request waiting longer than the queue timeout too.
+     */
+    @Test
+    public void testAdmissionControl_expectRejections(){
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        AdmissionControl admissionControl = new AdmissionControl(100, 50, 1, Duration.ofMillis(10), false,
+                new AvailabilityMetrics(registry, Duration.ofMillis(500)));
+        AppointmentRequest request = generateRequestByPeriod("2019-04-23T10:00:00Z/2019-04-24T10:00:00Z");
+        request.setStartTime(Instant.parse("2019-04-23T10:00:00Z"));
+        request.setEndTime(Instant.parse("2019-04-24T10:00:00Z"));
+
+        Assert.assertEquals(96, admissionControl.estimateCost(request));
+        request.setDuration(10);
+        try {
+            admissionControl.admit(request, 0);
+            Assert.fail("Expected request over budget to be rejected");
+        } catch (QueryBudgetExceededException exception) {
+            Assert.assertEquals(1, registry.get("availability.admission.rejected").tag("reason", AvailabilityMetrics.REJECTED_BUDGET).counter().count(), 0);
+        }
+
+        request.setLimit(60);
+        long cost = admissionControl.admit(request, 0);
+        Assert.assertEquals(60, cost);
+        AdmissionControl.Permit permit = admissionControl.acquire(cost);
+        try {
+            admissionControl.acquire(cost);
+            Assert.fail("Expected second heavy request to time out");
+        } catch (QueryQueueTimeoutException exception) {
+            Assert.assertEquals(1, registry.get("availability.admission.rejected").tag("reason", AvailabilityMetrics.REJECTED_TIMEOUT).counter().count(), 0);
+        } finally {
+            permit.close();
+        }
+        admissionControl.acquire(cost).close();
+        Assert.assertEquals(3, registry.get("availability.admission.queue").timer().count());
+    }
+
+    /**
+     * Queries of a batch on the same calendar share one walk, results are the same as of single requests.
+     * Query with invalid period is returned as error, the others are not affected.
+     */
+    @Test
+    public void testBatchMatchesSingleRequests(){
+        BatchAppointmentQuery morning = batchQuery("morning", "2019-04-23T10:00:00Z/2019-04-23T12:30:00Z", 15, SlotFormat.EXPANDED);
+        BatchAppointmentQuery afternoon = batchQuery("afternoon", "2019-04-23T12:20:00Z/2019-04-23T20:00:00Z", 30, SlotFormat.EXPANDED);
+        BatchAppointmentQuery compact = batchQuery("compact", "2019-04-23T11:00:00Z/2019-04-23T19:30:00Z", 45, SlotFormat.COMPACT);
+        BatchAppointmentQuery invalid = batchQuery("invalid", "2019-04-23T11:00:00Z", 15, SlotFormat.EXPANDED);
+        BatchAppointmentRequest batchRequest = new BatchAppointmentRequest();
+        batchRequest.setQueries(Arrays.asList(morning, afternoon, compact, invalid));
+
+        BatchAppointmentResponse batchResponse = service.getBatchAvailableTimes(batchRequest);
+
+        Assert.assertEquals(Arrays.asList("morning", "afternoon", "compact"), new ArrayList<>(batchResponse.getResults().keySet()));
+        Assert.assertEquals("Invalid Period to Search", batchResponse.getErrors().get("invalid"));
+        for (BatchAppointmentQuery query : Arrays.asList(morning, afternoon, compact)) {
+            CalendarAvailableSlot expected = service.getAvailableTimes(query).getAvailableSlots().get(0);
+            CalendarAvailableSlot actual = batchResponse.getResults().get(query.getQueryId()).getAvailableSlots().get(0);
+            if (query.getSlotFormat() == SlotFormat.COMPACT) {
+                Assert.assertEquals(runs(expected.getAvailableSlotRunList()), runs(actual.getAvailableSlotRunList()));
+            } else {
+                Assert.assertEquals(slots(expected.getAvailableSlotList()), slots(actual.getAvailableSlotList()));
+            }
+        }
+    }
+
+    /**
+     * Common time of one calendar on the five minute grid is read from day bitmaps,
+     * it must give the same slots as walking the intervals, also for free time over midnight.
+     */
+    @Test
+    public void testCommonTimeOnGridMatchesIntervalWalk(){
+        for (SlotFormat slotFormat : SlotFormat.values()) {
+            AppointmentRequest request = generateRequestByPeriod("2019-04-23T10:00:00Z/2019-04-24T02:00:00Z");
+            request.setDuration(45);
+            request.setSlotFormat(slotFormat);
+            CalendarAvailableSlot expected = service.getAvailableTimes(request).getAvailableSlots().get(0);
+
+            request.setAvailabilityMode(AvailabilityMode.COMMON);
+            AppointmentResponse common = service.getAvailableTimes(request);
+            if (slotFormat == SlotFormat.COMPACT) {
+                Assert.assertEquals(runs(expected.getAvailableSlotRunList()), runs(common.getCommonAvailableSlotRunList()));
+            } else {
+                Assert.assertEquals(slots(expected.getAvailableSlotList()), slots(common.getCommonAvailableSlotList()));
+            }
+        }
+    }
+
+    /**
+     * A pool of a calendar and a missing calendar of which one must be free is free in the free time of the calendar
+     * that holds a slot, split in slots it gives the individual slots. A pool needs enough distinct calendars.
+     */
+    @Test
+    public void testPoolOfOneFreeCalendarMatchesIndividualSlots(){
+        UUID missingCalendarId = UUID.randomUUID();
+        AppointmentRequest request = generateRequestByPeriod("2019-04-23T10:00:00Z/2019-04-24T02:00:00Z");
+        request.setDuration(40);
+        List<String> expected = slots(service.getAvailableTimes(request).getAvailableSlots().get(0).getAvailableSlotList());
+
+        request.setCalendarIds(Arrays.asList(VALID_CALENDAR_ID, missingCalendarId));
+        request.setAvailabilityMode(AvailabilityMode.POOL);
+        request.setMinFreeCalendars(1);
+        AppointmentResponse pool = service.getAvailableTimes(request);
+        Assert.assertEquals(missingCalendarId, pool.getAvailableSlots().get(0).getCalendarId());
+        Assert.assertEquals("Calendar Id does not exist.", pool.getAvailableSlots().get(0).getError());
+
+        AvailableSlotList poolSlots = new AvailableSlotList();
+        pool.getPoolAvailableTimeList().forEach(poolAvailableTime -> {
+            Assert.assertEquals(Arrays.asList(VALID_CALENDAR_ID), poolAvailableTime.getCalendarIds());
+            for (long start = poolAvailableTime.getStartTime().getTime(); start + 40 * 60000 <= poolAvailableTime.getEndTime().getTime(); start += 40 * 60000) {
+                poolSlots.add(start, start + 40 * 60000);
+            }
+        });
+        Assert.assertEquals(expected, slots(poolSlots));
+
+        expectedEx.expect(AppointmentException.class);
+        expectedEx.expectMessage("Minimum free calendars is more than the number of calendars");
+        request.setCalendarIds(Arrays.asList(VALID_CALENDAR_ID, VALID_CALENDAR_ID));
+        request.setMinFreeCalendars(2);
+        service.getAvailableTimes(request);
+    }
+
+    /**
+     * Pages of a limited request joined give the full response, the last page has no cursor.
+     * Common time stops after the limit too and a cursor of another request is rejected.
+     */
+    @Test
+    public void testLimitedPagesMatchFullResponse(){
+        AppointmentRequest request = generateRequestByPeriod("2019-04-23T10:00:00Z/2019-04-24T02:00:00Z");
+        request.setDuration(20);
+        List<String> expected = slots(service.getAvailableTimes(request).getAvailableSlots().get(0).getAvailableSlotList());
+
+        List<String> paged = new ArrayList<>();
+        request.setLimit(7);
+        AppointmentResponse page;
+        do {
+            page = service.getAvailableTimes(request);
+            Assert.assertTrue(page.getAvailableSlots().get(0).getAvailableSlotList().size() <= 7);
+            paged.addAll(slots(page.getAvailableSlots().get(0).getAvailableSlotList()));
+            request.setCursor(page.getNextCursor());
+        } while (page.getNextCursor() != null);
+        Assert.assertEquals(expected, paged);
+
+        AppointmentRequest common = generateRequestByPeriod("2019-04-23T10:00:00Z/2019-04-24T02:00:00Z");
+        common.setDuration(20);
+        common.setAvailabilityMode(AvailabilityMode.COMMON);
+        common.setLimit(3);
+        common.setSlotFormat(SlotFormat.COMPACT);
+        AppointmentResponse commonPage = service.getAvailableTimes(common);
+        Assert.assertEquals(Arrays.asList("2019-04-23T10:00:00Z/2019-04-23T11:00:00Zx3"), commonPage.getCommonAvailableSlotRunList().stream()
+                .map(run -> run.getStartTime().toInstant() + "/" + run.getEndTime().toInstant() + "x" + run.getCount()).collect(Collectors.toList()));
+        Assert.assertNotNull(commonPage.getNextCursor());
+
+        expectedEx.expect(AppointmentException.class);
+        expectedEx.expectMessage("Invalid cursor");
+        common.setCursor(commonPage.getNextCursor());
+        common.setDuration(30);
+        service.getAvailableTimes(common);
+    }
+
+    /**
+     * Slots written from epoch millis must look exactly like dates written by the object mapper,
+     * with the default format, with colon in time zone, as numbers, in another time zone and outside years 1583 to 9999.
+     */
+    @Test
+    public void testSlotTimestampsWrittenLikeDates() throws IOException {
+        long[] times = {Instant.parse("2019-04-23T10:00:00.123Z").toEpochMilli(), 0L, -1L,
+                Instant.parse("1583-01-01T00:00:00Z").toEpochMilli(), Instant.parse("1582-12-31T23:59:59.999Z").toEpochMilli(),
+                Instant.parse("2000-02-29T23:59:59.999Z").toEpochMilli(), Instant.parse("9999-12-31T23:59:59.999Z").toEpochMilli(),
+                Instant.parse("+10000-01-01T00:00:00Z").toEpochMilli(), Instant.parse("0001-01-01T00:00:00Z").toEpochMilli()};
+        AvailableSlotList availableSlots = new AvailableSlotList();
+        List<Map<String, Date>> dates = new ArrayList<>();
+        for (long time : times) {
+            availableSlots.add(time, time + 900000);
+            Map<String, Date> slot = new LinkedHashMap<>();
+            slot.put("startTime", new Date(time));
+            slot.put("endTime", new Date(time + 900000));
+            dates.add(slot);
+        }
+
+        for (ObjectMapper mapper : Arrays.asList(objectMapper,
+                objectMapper.copy().setDateFormat(new StdDateFormat().withColonInTimeZone(true)),
+                objectMapper.copy().enable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS),
+                objectMapper.copy().setTimeZone(TimeZone.getTimeZone("Europe/Oslo")))) {
+            String expected = mapper.writeValueAsString(dates);
+            Assert.assertEquals(expected, mapper.writeValueAsString(availableSlots));
+            Assert.assertEquals(expected, mapper.writeValueAsString(new ArrayList<>(availableSlots)));
+        }
+    }
+
+    /**
+     * Computing and writing slots allocates the two columns of the slot list and no object per slot.
+     * Measured on a year of five minute slots after a first run has loaded and compiled the code,
+     * the end of each period differs by a second so it is not answered from cache.
+     */
+    @Test
+    public void testSlotsAllocateNoObjectPerSlot() throws IOException {
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long bytesPerSlot = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            AppointmentRequest request = generateRequestByPeriod("2019-01-01T00:00:00Z/2020-01-01T00:00:0" + run + "Z");
+            request.setDuration(5);
+            long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+            AppointmentResponse response = service.getAvailableTimes(request);
+            objectMapper.writeValue(discard, response);
+            long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            int slots = response.getAvailableSlots().get(0).getAvailableSlotList().size();
+            Assert.assertEquals(365 * 288 - 9, slots);
+            bytesPerSlot = Math.min(bytesPerSlot, allocated / slots);
+        }
+        Assert.assertTrue("Allocated " + bytesPerSlot + " bytes per slot", bytesPerSlot < 64);
+    }
+
+    private BatchAppointmentQuery batchQuery(String queryId, String period, int duration, SlotFormat slotFormat) {
+        BatchAppointmentQuery query = new BatchAppointmentQuery();
+        query.setQueryId(queryId);
+        query.setPeriodToSearch(period);
+        query.setCalendarIds(Arrays.asList(VALID_CALENDAR_ID));
+        query.setDuration(duration);
+        query.setSlotFormat(slotFormat);
+        return query;
+    }
+
+    private List<String> slots(List<AvailableSlot> availableSlots) {
+        return availableSlots.stream().map(slot -> slot.getStartTime() + "/" + slot.getEndTime()).collect(Collectors.toList());
+    }
+
+    private List<String> runs(List<AvailableSlotRun> availableSlotRuns) {
+        return availableSlotRuns.stream().map(run -> run.getStartTime() + "/" + run.getEndTime() + "x" + run.getCount()).collect(Collectors.toList());
+    }
+
     private void assertResponse(AppointmentResponse response, int expectedTimeSlots) {
         Assert.assertNotNull(response);
         Assert.assertEquals(1, response.getAvailableSlots().size());
@@ -0,0 +1,458 @@
+package com.no.patient.sky.patientsky;
+
+import com.no.patient.sky.patientsky.dto.Booking;
+import com.no.patient.sky.patientsky.exception.AppointmentException;
+import com.no.patient.sky.patientsky.exception.BookingConflictException;
+import com.no.patient.sky.patientsky.initializer.BookingWriteAheadLog;
+import com.no.patient.sky.patientsky.initializer.JsonData;
+import com.no.patient.sky.patientsky.request.AppointmentRequest;
+import com.no.patient.sky.patientsky.request.BookingRequest;
+import com.no.patient.sky.patientsky.response.AppointmentResponse;
+import com.no.patient.sky.patientsky.response.AvailabilityChange;
+import com.no.patient.sky.patientsky.response.BookingResponse;
+import com.no.patient.sky.patientsky.response.CacheStatistics;
+import com.no.patient.sky.patientsky.service.AppointmentService;
+import com.no.patient.sky.patientsky.service.AvailabilityCache;
+import com.no.patient.sky.patientsky.service.AvailabilityFeed;
+import com.no.patient.sky.patientsky.service.BookingService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringBootTest(properties = "appointment.booking.wal-file=" + BookingServiceTest.WAL_FILE)
+public class BookingServiceTest {
+
+    static final String WAL_FILE = "target/booking-test/bookings.wal";
+
+    private static final String FAILING_WAL_FILE = "target/booking-test/failing-bookings.wal";
+
+    private static final UUID VALID_CALENDAR_ID = UUID.fromString("48cadf26-975e-11e5-b9c2-c8e0eb18c1e9");
+
+    @Autowired
+    private BookingService bookingService;
+
+    @Autowired
+    private AppointmentService appointmentService;
+
+    @Autowired
+    private AvailabilityCache availabilityCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @BeforeClass
+    public static void deleteWriteAheadLog() throws Exception {
+        Files.deleteIfExists(Paths.get(WAL_FILE));
+        Files.deleteIfExists(Paths.get(FAILING_WAL_FILE));
+    }
+
+    /**
+     * Booked time 10:00 - 10:30 is not available anymore, also when the result before booking is cached.
+     * Expected results 2 timeSlotList of 15 minutes each in period 10:00 - 11:00
+     */
+    @Test
+    public void testBookedTimeIsNotAvailable() {
+        Assert.assertEquals(4, getAvailableSlotCount("2019-04-23T10:00:00Z/2019-04-23T11:00:00Z"));
+        Assert.assertEquals(4, getAvailableSlotCount("2019-04-23T10:00:00Z/2019-04-23T11:00:00Z"));
+        CacheStatistics statistics = availabilityCache.getStatistics();
+
+        BookingResponse response = bookingService.bookAppointment(generateRequest("2019-04-23T10:00:00Z", "2019-04-23T10:30:00Z"));
+        Assert.assertNotNull(response.getBookingId());
+
+        Assert.assertEquals(2, getAvailableSlotCount("2019-04-23T10:00:00Z/2019-04-23T11:00:00Z"));
+        Assert.assertEquals(statistics.getInvalidations() + 1, availabilityCache.getStatistics().getInvalidations());
+        Assert.assertTrue(statistics.getHits() >= 1);
+    }
+
+    /**
+     * Period overlaps appointment 12:15 - 12:30 of calendar.
+     */
+    @Test(expected = BookingConflictException.class)
+    public void testBookingOverlappingAppointment_expectConflict() {
+        bookingService.bookAppointment(generateRequest("2019-04-23T12:20:00Z", "2019-04-23T12:40:00Z"));
+    }
+
+    /**
+     * Many concurrent bookings of the same time, only one of them may succeed.
+     */
+    @Test
+    public void testConcurrentBookingsOfSameTime_expectOneBooking() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Callable<Boolean>> bookings = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            bookings.add(() -> {
+                try {
+                    bookingService.bookAppointment(generateRequest("2019-04-24T09:00:00Z", "2019-04-24T09:15:00Z"));
+                    return true;
+                } catch (BookingConflictException exception) {
+                    return false;
+                }
+            });
+        }
+
+        int booked = 0;
+        for (Future<Boolean> result : executor.invokeAll(bookings)) {
+            booked += result.get() ? 1 : 0;
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(1, booked);
+    }
+
+    /**
+     * A restart replays the write ahead log after the json files are loaded.
+     */
+    @Test
+    public void testBookingIsReplayedFromWriteAheadLog() throws Exception {
+        bookingService.bookAppointment(generateRequest("2019-04-25T08:00:00Z", "2019-04-25T08:45:00Z"));
+
+        JsonData restartedData = replayWriteAheadLog(WAL_FILE);
+
+        Assert.assertTrue(restartedData.getCalendarIndex(VALID_CALENDAR_ID).overlaps(
+                Instant.parse("2019-04-25T08:00:00Z").getEpochSecond(), Instant.parse("2019-04-25T08:45:00Z").getEpochSecond()));
+    }
+
+    /**
+     * A batch that fails half way is cut off the log, bookings acknowledged after it are replayed after a restart.
+     */
+    @Test
+    public void testFailedWriteIsRolledBack_expectLaterBookingsReplayed() throws Exception {
+        FailingFileChannel[] failingChannel = new FailingFileChannel[1];
+        BookingWriteAheadLog failingLog = new BookingWriteAheadLog() {
+            @Override
+            protected FileChannel openChannel(Path path) throws IOException {
+                failingChannel[0] = new FailingFileChannel(super.openChannel(path));
+                return failingChannel[0];
+            }
+        };
+        setField(failingLog, "jsonData", replayWriteAheadLog(FAILING_WAL_FILE));
+        setField(failingLog, "walFile", FAILING_WAL_FILE);
+        setField(failingLog, "maxBatch", 16);
+        setField(failingLog, "appendTimeout", Duration.ofSeconds(5));
+        failingLog.open();
+
+        failingLog.append(generateBooking("2019-04-27T08:00:00Z", "2019-04-27T08:30:00Z"));
+        failingChannel[0].failNextWrite = true;
+        try {
+            failingLog.append(generateBooking("2019-04-27T09:00:00Z", "2019-04-27T09:30:00Z"));
+            Assert.fail("Booking of failed write was acknowledged");
+        } catch (AppointmentException exception) {
+            Assert.assertEquals("Booking could not be stored", exception.getMessage());
+        }
+        failingLog.append(generateBooking("2019-04-27T10:00:00Z", "2019-04-27T10:30:00Z"));
+        failingLog.close();
+
+        JsonData restartedData = replayWriteAheadLog(FAILING_WAL_FILE);
+        Assert.assertTrue(isBooked(restartedData, "2019-04-27T08:00:00Z", "2019-04-27T08:30:00Z"));
+        Assert.assertFalse(isBooked(restartedData, "2019-04-27T09:00:00Z", "2019-04-27T09:30:00Z"));
+        Assert.assertTrue(isBooked(restartedData, "2019-04-27T10:00:00Z", "2019-04-27T10:30:00Z"));
+
+        try {
+            failingLog.append(generateBooking("2019-04-27T11:00:00Z", "2019-04-27T11:30:00Z"));
+            Assert.fail("Booking was appended to closed log");
+        } catch (AppointmentException exception) {
+            Assert.assertEquals("Booking could not be stored", exception.getMessage());
+        }
+    }
+
+    /**
+     * A booking that times out while the writer is stalled in the fsync of another batch is withdrawn, it is not
+     * written when the writer continues. The booking being written when the timeout would hit still succeeds.
+     */
+    @Test
+    public void testTimedOutBookingIsWithdrawn_expectNotReplayed() throws Exception {
+        String walFile = "target/booking-test/stalled-bookings.wal";
+        Files.deleteIfExists(Paths.get(walFile));
+        FailingFileChannel[] stallingChannel = new FailingFileChannel[1];
+        BookingWriteAheadLog stallingLog = new BookingWriteAheadLog() {
+            @Override
+            protected FileChannel openChannel(Path path) throws IOException {
+                stallingChannel[0] = new FailingFileChannel(super.openChannel(path));
+                return stallingChannel[0];
+            }
+        };
+        setField(stallingLog, "jsonData", replayWriteAheadLog(walFile));
+        setField(stallingLog, "walFile", walFile);
+        setField(stallingLog, "maxBatch", 16);
+        setField(stallingLog, "appendTimeout", Duration.ofMillis(200));
+        stallingLog.open();
+
+        CountDownLatch stall = new CountDownLatch(1);
+        stallingChannel[0].stalledForce = stall;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> written = executor.submit(() -> stallingLog.append(generateBooking("2019-04-28T08:00:00Z", "2019-04-28T08:30:00Z")));
+        Assert.assertTrue(stallingChannel[0].forceStarted.await(5, TimeUnit.SECONDS));
+        try {
+            stallingLog.append(generateBooking("2019-04-28T09:00:00Z", "2019-04-28T09:30:00Z"));
+            Assert.fail("Booking was acknowledged while writer is stalled");
+        } catch (AppointmentException exception) {
+            Assert.assertEquals("Booking could not be stored", exception.getMessage());
+        }
+        stallingChannel[0].stalledForce = null;
+        stall.countDown();
+        written.get(5, TimeUnit.SECONDS);
+        executor.shutdown();
+        stallingLog.append(generateBooking("2019-04-28T10:00:00Z", "2019-04-28T10:30:00Z"));
+        stallingLog.close();
+
+        JsonData restartedData = replayWriteAheadLog(walFile);
+        Assert.assertTrue(isBooked(restartedData, "2019-04-28T08:00:00Z", "2019-04-28T08:30:00Z"));
+        Assert.assertFalse(isBooked(restartedData, "2019-04-28T09:00:00Z", "2019-04-28T09:30:00Z"));
+        Assert.assertTrue(isBooked(restartedData, "2019-04-28T10:00:00Z", "2019-04-28T10:30:00Z"));
+    }
+
+    /**
+     * Subscriptions get a snapshot, then only the slots removed by a booking.
+     * Both subscriptions are served from one evaluation of the calendar.
+     */
+    @Test
+    public void testSubscriptionsReceiveBookingChanges() throws Exception {
+        BlockingQueue<AvailabilityChange> quarterChanges = new LinkedBlockingQueue<>();
+        BlockingQueue<AvailabilityChange> hourChanges = new LinkedBlockingQueue<>();
+        AvailabilityFeed.Subscription quarterSubscription = appointmentService.subscribeAvailableTimes(
+                generateAppointmentRequest("2019-04-26T08:00:00Z/2019-04-26T12:00:00Z", 15), quarterChanges::add);
+        AvailabilityFeed.Subscription hourSubscription = appointmentService.subscribeAvailableTimes(
+                generateAppointmentRequest("2019-04-26T06:00:00Z/2019-04-26T14:00:00Z", 60), hourChanges::add);
+
+        AvailabilityChange snapshot = quarterChanges.poll();
+        Assert.assertTrue(snapshot.isSnapshot());
+        Assert.assertNull(snapshot.getRemovedSlots());
+        Assert.assertTrue(hourChanges.poll().isSnapshot());
+        long bookedStartTime = -1;
+        for (int i = 0; i + 1 < snapshot.getAddedSlots().size() && bookedStartTime < 0; i++) {
+            if (snapshot.getAddedSlots().getEndTime(i) == snapshot.getAddedSlots().getStartTime(i + 1)) {
+                bookedStartTime = snapshot.getAddedSlots().getStartTime(i);
+            }
+        }
+        Assert.assertTrue(bookedStartTime >= 0);
+
+        double evaluations = meterRegistry.counter("availability.feed.evaluations").count();
+        bookingService.bookAppointment(generateRequest(Instant.ofEpochMilli(bookedStartTime).toString(),
+                Instant.ofEpochMilli(bookedStartTime + TimeUnit.MINUTES.toMillis(30)).toString()));
+
+        AvailabilityChange change = quarterChanges.poll(5, TimeUnit.SECONDS);
+        Assert.assertFalse(change.isSnapshot());
+        Assert.assertNull(change.getAddedSlots());
+        Assert.assertEquals(2, change.getRemovedSlots().size());
+        Assert.assertEquals(bookedStartTime, change.getRemovedSlots().getStartTime(0));
+        Assert.assertTrue(change.getGeneration() > snapshot.getGeneration());
+        Assert.assertNotNull(hourChanges.poll(5, TimeUnit.SECONDS).getRemovedSlots());
+        Assert.assertEquals(evaluations + 1, meterRegistry.counter("availability.feed.evaluations").count(), 0);
+
+        double subscriptions = meterRegistry.get("availability.feed.subscriptions").gauge().value();
+        quarterSubscription.close();
+        hourSubscription.close();
+        hourSubscription.close();
+        Assert.assertEquals(subscriptions - 2, meterRegistry.get("availability.feed.subscriptions").gauge().value(), 0);
+    }
+
+    private AppointmentRequest generateAppointmentRequest(String period, int duration) {
+        AppointmentRequest request = new AppointmentRequest();
+        request.setCalendarIds(Arrays.asList(VALID_CALENDAR_ID));
+        request.setPeriodToSearch(period);
+        request.setDuration(duration);
+        return request;
+    }
+
+    private int getAvailableSlotCount(String period) {
+        AppointmentRequest request = new AppointmentRequest();
+        request.setCalendarIds(Arrays.asList(VALID_CALENDAR_ID));
+        request.setPeriodToSearch(period);
+        request.setDuration(15);
+        AppointmentResponse availableTimes = appointmentService.getAvailableTimes(request);
+        return availableTimes.getAvailableSlots().get(0).getAvailableSlotList().size();
+    }
+
+    private BookingRequest generateRequest(String startTime, String endTime) {
+        BookingRequest request = new BookingRequest();
+        request.setCalendarId(VALID_CALENDAR_ID);
+        request.setStartTime(Instant.parse(startTime));
+        request.setEndTime(Instant.parse(endTime));
+        return request;
+    }
+
+    /**
+     * Load json files and replay log in new data, like a restart.
+     */
+    private JsonData replayWriteAheadLog(String walFile) throws Exception {
+        JsonData restartedData = new JsonData();
+        Resource[] resources = new PathMatchingResourcePatternResolver().getResources("classpath:*.json");
+        setField(restartedData, "resources", resources);
+        setField(restartedData, "snapshotFile", "");
+        restartedData.loadJsonFiles();
+
+        BookingWriteAheadLog restartedLog = new BookingWriteAheadLog();
+        setField(restartedLog, "jsonData", restartedData);
+        setField(restartedLog, "walFile", walFile);
+        setField(restartedLog, "maxBatch", 16);
+        restartedLog.open();
+        restartedLog.close();
+        return restartedData;
+    }
+
+    private boolean isBooked(JsonData data, String startTime, String endTime) {
+        return data.getCalendarIndex(VALID_CALENDAR_ID).overlaps(Instant.parse(startTime).getEpochSecond(), Instant.parse(endTime).getEpochSecond());
+    }
+
+    private Booking generateBooking(String startTime, String endTime) {
+        return Booking.builder()
+                .bookingId(UUID.randomUUID())
+                .calendarId(VALID_CALENDAR_ID.toString())
+                .startTime(Instant.parse(startTime).getEpochSecond())
+                .endTime(Instant.parse(endTime).getEpochSecond())
+                .build();
+    }
+
+    /**
+     * Channel of the log that writes part of a record and then fails, once, when asked to.
+     */
+    private static final class FailingFileChannel extends FileChannel {
+
+        private final FileChannel channel;
+        private volatile boolean failNextWrite;
+        private volatile CountDownLatch stalledForce;
+        private final CountDownLatch forceStarted = new CountDownLatch(1);
+
+        private FailingFileChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            if (failNextWrite) {
+                failNextWrite = false;
+                ByteBuffer part = source.duplicate();
+                part.limit(part.position() + part.remaining() / 2);
+                channel.write(part);
+                throw new IOException("Injected write failure");
+            }
+            return channel.write(source);
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            return channel.read(destination);
+        }
+
+        @Override
+        public long read(ByteBuffer[] destinations, int offset, int length) throws IOException {
+            return channel.read(destinations, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+            return channel.write(sources, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            CountDownLatch stall = stalledForce;
+            if (stall != null) {
+                forceStarted.countDown();
+                try {
+                    stall.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+            return channel.transferFrom(source, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer destination, long position) throws IOException {
+            return channel.read(destination, position);
+        }
+
+        @Override
+        public int write(ByteBuffer source, long position) throws IOException {
+            return channel.write(source, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}
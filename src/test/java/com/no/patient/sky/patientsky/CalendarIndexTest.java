@@ -0,0 +1,448 @@
+package com.no.patient.sky.patientsky;
+
+import com.no.patient.sky.patientsky.dto.Appointment;
+import com.no.patient.sky.patientsky.dto.RecurringTimeSlot;
+import com.no.patient.sky.patientsky.dto.TimeSlot;
+import com.no.patient.sky.patientsky.index.BusyIntervalCursor;
+import com.no.patient.sky.patientsky.index.BusyIntervalMerger;
+import com.no.patient.sky.patientsky.index.CalendarData;
+import com.no.patient.sky.patientsky.index.CalendarIndex;
+import com.no.patient.sky.patientsky.index.FreeIntervalTree;
+import com.no.patient.sky.patientsky.index.FreeTimeBitmaps;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+public class CalendarIndexTest {
+
+    private static final String CALENDAR_ID = "48cadf26-975e-11e5-b9c2-c8e0eb18c1e9";
+
+    /**
+     * Unsorted overlapping and touching appointments are merged in one sorted interval.
+     * Appointments of other calendar and inverted appointments are skipped.
+     */
+    @Test
+    public void testIntervalsAreSortedAndMerged() {
+        CalendarIndex index = CalendarIndex.of(CALENDAR_ID, Arrays.asList(
+                appointment(CALENDAR_ID, "2019-04-23T14:00:00Z", "2019-04-23T15:00:00Z"),
+                appointment(CALENDAR_ID, "2019-04-23T10:30:00Z", "2019-04-23T11:00:00Z"),
+                appointment(CALENDAR_ID, "2019-04-23T10:00:00Z", "2019-04-23T10:45:00Z"),
+                appointment(CALENDAR_ID, "2019-04-23T11:00:00Z", "2019-04-23T11:15:00Z"),
+                appointment(CALENDAR_ID, "2019-04-23T13:00:00Z", "2019-04-23T12:00:00Z"),
+                appointment("452dccfc-975e-11e5-bfa5-c8e0eb18c1e9", "2019-04-23T12:00:00Z", "2019-04-23T13:00:00Z")
+        ));
+
+        Assert.assertEquals(2, index.size());
+        Assert.assertEquals(epochSecond("2019-04-23T10:00:00Z"), index.getStart(0));
+        Assert.assertEquals(epochSecond("2019-04-23T11:15:00Z"), index.getEnd(0));
+        Assert.assertEquals(epochSecond("2019-04-23T14:00:00Z"), index.getStart(1));
+        Assert.assertEquals(epochSecond("2019-04-23T15:00:00Z"), index.getEnd(1));
+    }
+
+    @Test
+    public void testBinarySearchBoundaries() {
+        CalendarIndex index = CalendarIndex.fromIntervals(new long[]{100, 300, 500}, new long[]{200, 400, 600}, 3);
+
+        Assert.assertEquals(0, index.firstEndingAfter(0));
+        Assert.assertEquals(1, index.firstEndingAfter(200));
+        Assert.assertEquals(1, index.firstEndingAfter(399));
+        Assert.assertEquals(3, index.firstEndingAfter(600));
+
+        Assert.assertEquals(0, index.firstStartingAtOrAfter(100));
+        Assert.assertEquals(1, index.firstStartingAtOrAfter(101));
+        Assert.assertEquals(3, index.firstStartingAtOrAfter(501));
+    }
+
+    /**
+     * Intervals of all calendars are merged, only intervals overlapping the period are included.
+     */
+    @Test
+    public void testUnionOfCalendars() {
+        CalendarIndex first = CalendarIndex.fromIntervals(new long[]{100, 500, 900}, new long[]{200, 600, 1000}, 3);
+        CalendarIndex second = CalendarIndex.fromIntervals(new long[]{150, 600, 700}, new long[]{300, 650, 800}, 3);
+
+        CalendarIndex union = BusyIntervalMerger.union(Arrays.asList(first, second, CalendarIndex.empty()), 250, 800);
+
+        Assert.assertEquals(3, union.size());
+        Assert.assertEquals(150, union.getStart(0));
+        Assert.assertEquals(300, union.getEnd(0));
+        Assert.assertEquals(500, union.getStart(1));
+        Assert.assertEquals(650, union.getEnd(1));
+        Assert.assertEquals(700, union.getStart(2));
+        Assert.assertEquals(800, union.getEnd(2));
+    }
+
+    /**
+     * Added interval is merged with the intervals it touches, other intervals are kept.
+     */
+    @Test
+    public void testWithInterval() {
+        CalendarIndex index = CalendarIndex.fromIntervals(new long[]{100, 300, 500}, new long[]{200, 400, 600}, 3);
+
+        CalendarIndex added = index.withInterval(200, 350);
+
+        Assert.assertEquals(3, index.size());
+        Assert.assertEquals(2, added.size());
+        Assert.assertEquals(100, added.getStart(0));
+        Assert.assertEquals(400, added.getEnd(0));
+        Assert.assertEquals(500, added.getStart(1));
+        Assert.assertTrue(added.overlaps(399, 401));
+        Assert.assertFalse(added.overlaps(400, 500));
+        Assert.assertEquals(4, index.withInterval(700, 800).size());
+    }
+
+    /**
+     * Off heap index answers the same as the heap index and derived indexes are correct.
+     */
+    @Test
+    public void testOffHeapIndex() {
+        CalendarIndex onHeap = CalendarIndex.fromIntervals(new long[]{100, 300, 500}, new long[]{200, 400, 600}, 3);
+        CalendarIndex offHeap = onHeap.toOffHeap();
+
+        Assert.assertTrue(offHeap.isOffHeap());
+        Assert.assertSame(offHeap, offHeap.toOffHeap());
+        Assert.assertEquals(3, offHeap.size());
+        Assert.assertEquals(1, offHeap.firstEndingAfter(200));
+        Assert.assertEquals(3, offHeap.firstStartingAtOrAfter(501));
+        Assert.assertTrue(offHeap.overlaps(350, 360));
+
+        CalendarIndex added = offHeap.withInterval(200, 350);
+        Assert.assertEquals(2, added.size());
+        Assert.assertEquals(400, added.getEnd(0));
+        Assert.assertEquals(4, offHeap.complement().size());
+
+        CalendarData calendarData = CalendarData.of(CALENDAR_ID, offHeap, Collections.emptyList()).withBooking(700, 800);
+        Assert.assertTrue(calendarData.getUnavailableIntervals().isOffHeap());
+        Assert.assertEquals(4, calendarData.getUnavailableIntervals().size());
+    }
+
+    /**
+     * Time outside public bookable timeslots is unavailable, out of office timeslots are not bookable.
+     * Unknown timeslot type is never available, calendar without timeslots is always bookable.
+     */
+    @Test
+    public void testUnavailableIntervalsFromTimeSlots() {
+        CalendarIndex appointments = CalendarIndex.fromIntervals(new long[]{epochSecond("2019-04-23T09:00:00Z")},
+                new long[]{epochSecond("2019-04-23T09:30:00Z")}, 1);
+        CalendarData calendarData = CalendarData.of(CALENDAR_ID, appointments, Arrays.asList(
+                timeSlot("consultation", "2019-04-23T08:00:00Z", "2019-04-23T10:00:00Z", true, false),
+                timeSlot("surgery", "2019-04-23T10:00:00Z", "2019-04-23T11:00:00Z", true, false),
+                timeSlot("consultation", "2019-04-23T12:00:00Z", "2019-04-23T13:00:00Z", false, false),
+                timeSlot("consultation", "2019-04-23T13:00:00Z", "2019-04-23T14:00:00Z", true, true)
+        ));
+
+        CalendarIndex unavailable = calendarData.getUnavailableIntervals();
+        Assert.assertTrue(unavailable.overlaps(epochSecond("2019-04-23T07:45:00Z"), epochSecond("2019-04-23T08:00:00Z")));
+        Assert.assertFalse(unavailable.overlaps(epochSecond("2019-04-23T08:00:00Z"), epochSecond("2019-04-23T09:00:00Z")));
+        Assert.assertTrue(unavailable.overlaps(epochSecond("2019-04-23T09:15:00Z"), epochSecond("2019-04-23T09:30:00Z")));
+        Assert.assertFalse(unavailable.overlaps(epochSecond("2019-04-23T09:30:00Z"), epochSecond("2019-04-23T11:00:00Z")));
+        Assert.assertTrue(unavailable.overlaps(epochSecond("2019-04-23T12:00:00Z"), epochSecond("2019-04-23T12:15:00Z")));
+        Assert.assertTrue(unavailable.overlaps(epochSecond("2019-04-23T13:00:00Z"), epochSecond("2019-04-23T13:15:00Z")));
+
+        CalendarIndex surgery = calendarData.getUnavailableIntervals("surgery");
+        Assert.assertTrue(surgery.overlaps(epochSecond("2019-04-23T09:45:00Z"), epochSecond("2019-04-23T10:00:00Z")));
+        Assert.assertFalse(surgery.overlaps(epochSecond("2019-04-23T10:00:00Z"), epochSecond("2019-04-23T11:00:00Z")));
+        Assert.assertTrue(calendarData.getUnavailableIntervals("unknown").overlaps(0, 1));
+
+        CalendarData booked = calendarData.withBooking(epochSecond("2019-04-23T10:00:00Z"), epochSecond("2019-04-23T10:15:00Z"));
+        Assert.assertTrue(booked.getUnavailableIntervals("surgery").overlaps(epochSecond("2019-04-23T10:00:00Z"), epochSecond("2019-04-23T10:15:00Z")));
+        Assert.assertEquals(1, booked.getAppointments().size());
+
+        CalendarData withoutTimeSlots = CalendarData.of(CALENDAR_ID, appointments, Collections.emptyList());
+        Assert.assertSame(appointments, withoutTimeSlots.getUnavailableIntervals("surgery"));
+    }
+
+    /**
+     * Common free cells of calendars are read back as runs over midnight.
+     * A day with unavailable time off the five minute grid has no bitmap, a booking only changes the days it touches.
+     */
+    @Test
+    public void testFreeTimeBitmaps() {
+        long start = epochSecond("2019-04-23T22:00:00Z");
+        long end = epochSecond("2019-04-24T02:00:00Z");
+        CalendarData first = CalendarData.of(CALENDAR_ID, CalendarIndex.fromIntervals(
+                new long[]{epochSecond("2019-04-23T22:30:00Z")}, new long[]{epochSecond("2019-04-23T23:00:00Z")}, 1), Collections.emptyList());
+        CalendarData second = CalendarData.of(CALENDAR_ID, CalendarIndex.fromIntervals(
+                new long[]{epochSecond("2019-04-24T01:00:00Z")}, new long[]{epochSecond("2019-04-24T01:05:00Z")}, 1), Collections.emptyList());
+
+        List<String> runs = new ArrayList<>();
+        long[] cells = FreeTimeBitmaps.commonFreeCells(Arrays.asList(first, second), null, start, end);
+        FreeTimeBitmaps.forEachFreeRun(cells, start, (freeStart, freeEnd) ->
+                runs.add(Instant.ofEpochSecond(freeStart) + "/" + Instant.ofEpochSecond(freeEnd)));
+        Assert.assertEquals(Arrays.asList("2019-04-23T22:00:00Z/2019-04-23T22:30:00Z", "2019-04-23T23:00:00Z/2019-04-24T01:00:00Z",
+                "2019-04-24T01:05:00Z/2019-04-24T02:00:00Z"), runs);
+
+        long day = epochSecond("2019-04-24T00:00:00Z") / 86400;
+        long[] firstDay = first.getFreeDay(null, day - 1);
+        CalendarData booked = first.withBooking(epochSecond("2019-04-24T10:00:00Z"), epochSecond("2019-04-24T10:01:00Z"));
+        Assert.assertSame(firstDay, booked.getFreeDay(null, day - 1));
+        Assert.assertNull(booked.getFreeDay(null, day));
+        Assert.assertNotNull(first.getFreeDay(null, day));
+    }
+
+    /**
+     * Bitmaps of all calendars share one cache bounded by bytes, days that were evicted are built again.
+     */
+    @Test
+    public void testFreeTimeBitmapsCacheIsBounded() {
+        long maxBytes = 10 * (128 + 5 * Long.BYTES);
+        FreeTimeBitmaps.setMaxCachedBytes(maxBytes);
+        try {
+            long firstDay = epochSecond("2019-04-23T00:00:00Z") / 86400;
+            CalendarData calendarData = CalendarData.of(CALENDAR_ID, CalendarIndex.fromIntervals(
+                    new long[]{epochSecond("2019-04-23T10:00:00Z")}, new long[]{epochSecond("2019-04-23T11:00:00Z")}, 1), Collections.emptyList());
+            long[] busyDay = calendarData.getFreeDay(null, firstDay);
+            for (long day = firstDay + 1; day < firstDay + 100; day++) {
+                Assert.assertNotNull(calendarData.getFreeDay(null, day));
+                Assert.assertTrue(FreeTimeBitmaps.getCachedBytes() <= maxBytes);
+            }
+            Assert.assertArrayEquals(busyDay, calendarData.getFreeDay(null, firstDay));
+        } finally {
+            FreeTimeBitmaps.setMaxCachedBytes(16L * 1024 * 1024);
+        }
+    }
+
+    /**
+     * Weekly rules in a time zone are bookable on their days in local time, also over a change of daylight saving time.
+     * Exceptions, end of validity and other types are closed, a rule ending after midnight continues on the next day.
+     */
+    @Test
+    public void testUnavailableIntervalsFromRecurringTimeSlots() {
+        CalendarIndex appointments = CalendarIndex.fromIntervals(new long[]{epochSecond("2019-04-23T09:00:00Z")},
+                new long[]{epochSecond("2019-04-23T09:30:00Z")}, 1);
+        RecurringTimeSlot weekdays = recurringTimeSlot(null, "08:00", "16:00",
+                DayOfWeek.MONDAY, DayOfWeek.TUESDAY, DayOfWeek.WEDNESDAY, DayOfWeek.THURSDAY, DayOfWeek.FRIDAY);
+        weekdays.setTimeZone("Europe/Oslo");
+        weekdays.setValidUntil(LocalDate.parse("2019-05-31"));
+        weekdays.setExceptions(Collections.singletonList(LocalDate.parse("2019-04-24")));
+        RecurringTimeSlot night = recurringTimeSlot("night", "22:00", "02:00", DayOfWeek.SATURDAY);
+        CalendarData calendarData = CalendarData.of(CALENDAR_ID, appointments, Collections.emptyList(), Arrays.asList(weekdays, night));
+
+        CalendarIndex unavailable = calendarData.getUnavailableIntervals(null,
+                epochSecond("2019-04-22T00:00:00Z"), epochSecond("2019-04-29T00:00:00Z"));
+        Assert.assertTrue(unavailable.overlaps(epochSecond("2019-04-23T05:45:00Z"), epochSecond("2019-04-23T06:00:00Z")));
+        Assert.assertFalse(unavailable.overlaps(epochSecond("2019-04-23T06:00:00Z"), epochSecond("2019-04-23T09:00:00Z")));
+        Assert.assertTrue(unavailable.overlaps(epochSecond("2019-04-23T09:00:00Z"), epochSecond("2019-04-23T09:15:00Z")));
+        Assert.assertTrue(unavailable.overlaps(epochSecond("2019-04-24T10:00:00Z"), epochSecond("2019-04-24T10:15:00Z")));
+        Assert.assertFalse(unavailable.overlaps(epochSecond("2019-04-27T22:00:00Z"), epochSecond("2019-04-28T02:00:00Z")));
+
+        CalendarIndex beforeDaylightSaving = calendarData.getUnavailableIntervals(null,
+                epochSecond("2019-03-29T00:00:00Z"), epochSecond("2019-04-02T00:00:00Z"));
+        Assert.assertFalse(beforeDaylightSaving.overlaps(epochSecond("2019-03-29T07:00:00Z"), epochSecond("2019-03-29T15:00:00Z")));
+        Assert.assertTrue(beforeDaylightSaving.overlaps(epochSecond("2019-03-29T06:45:00Z"), epochSecond("2019-03-29T07:00:00Z")));
+        Assert.assertFalse(beforeDaylightSaving.overlaps(epochSecond("2019-04-01T06:00:00Z"), epochSecond("2019-04-01T14:00:00Z")));
+        Assert.assertTrue(calendarData.getUnavailableIntervals(null, epochSecond("2019-06-03T00:00:00Z"), epochSecond("2019-06-04T00:00:00Z"))
+                .overlaps(epochSecond("2019-06-03T08:00:00Z"), epochSecond("2019-06-03T08:15:00Z")));
+
+        CalendarIndex nightOnly = calendarData.getUnavailableIntervals("night",
+                epochSecond("2019-04-26T00:00:00Z"), epochSecond("2019-04-29T00:00:00Z"));
+        Assert.assertTrue(nightOnly.overlaps(epochSecond("2019-04-26T07:00:00Z"), epochSecond("2019-04-26T07:15:00Z")));
+        Assert.assertFalse(nightOnly.overlaps(epochSecond("2019-04-27T22:00:00Z"), epochSecond("2019-04-28T02:00:00Z")));
+        Assert.assertTrue(nightOnly.overlaps(epochSecond("2019-04-28T02:00:00Z"), epochSecond("2019-04-28T02:15:00Z")));
+
+        CalendarData booked = calendarData.withBooking(epochSecond("2019-04-25T07:00:00Z"), epochSecond("2019-04-25T07:30:00Z"));
+        Assert.assertTrue(booked.getUnavailableIntervals(null, epochSecond("2019-04-25T00:00:00Z"), epochSecond("2019-04-26T00:00:00Z"))
+                .overlaps(epochSecond("2019-04-25T07:00:00Z"), epochSecond("2019-04-25T07:15:00Z")));
+    }
+
+    /**
+     * Tree with random intervals added matches index with the same intervals added: intervals, periods, overlaps
+     * and free time of at least a minimum length.
+     */
+    @Test
+    public void testFreeIntervalTreeMatchesIndex() {
+        Random random = new Random(42);
+        long[] starts = new long[200];
+        long[] ends = new long[200];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = random.nextInt(100000);
+            ends[i] = starts[i] + 1 + random.nextInt(300);
+        }
+        CalendarIndex index = CalendarIndex.fromIntervals(starts, ends, starts.length);
+        FreeIntervalTree tree = FreeIntervalTree.of(index);
+        FreeIntervalTree addedTree = FreeIntervalTree.empty();
+        for (int i = 0; i < starts.length; i++) {
+            addedTree = addedTree.withInterval(starts[i], ends[i]);
+        }
+        assertSameIntervals(index, addedTree.toIndex());
+
+        for (int step = 0; step < 300; step++) {
+            long start = random.nextInt(110000) - 5000;
+            long end = start + random.nextInt(step % 10 == 0 ? 5000 : 200);
+            index = index.withInterval(start, end);
+            tree = tree.withInterval(start, end);
+
+            long periodStart = random.nextInt(110000) - 5000;
+            long periodEnd = periodStart + 1 + random.nextInt(20000);
+            Assert.assertEquals(index.overlaps(periodStart, periodEnd), tree.overlaps(periodStart, periodEnd));
+            assertSameIntervals(periodIntervals(index, periodStart, periodEnd), tree.toIndex(periodStart, periodEnd));
+
+            long minFree = 1 + random.nextInt(400);
+            Assert.assertEquals(freeTimes(index.cursor(periodStart, periodEnd), periodStart, periodEnd, minFree),
+                    freeTimes(tree.cursor(periodStart, periodEnd, minFree), periodStart, periodEnd, 1));
+        }
+        assertSameIntervals(index, tree.toIndex());
+        Assert.assertEquals(index.size(), tree.size());
+    }
+
+    /**
+     * Tree with random intervals added and removed matches the busy seconds of a bitmap: intervals and free time
+     * of at least a minimum length.
+     */
+    @Test
+    public void testFreeIntervalTreeWithoutInterval() {
+        Random random = new Random(7);
+        BitSet busy = new BitSet();
+        FreeIntervalTree tree = FreeIntervalTree.empty();
+        for (int step = 0; step < 500; step++) {
+            int start = random.nextInt(10000);
+            int end = start + random.nextInt(step % 10 == 0 ? 2000 : 200);
+            if (random.nextInt(3) == 0) {
+                tree = tree.withoutInterval(start, end);
+                busy.clear(start, end);
+            } else {
+                tree = tree.withInterval(start, end);
+                busy.set(start, end);
+            }
+
+            List<Long> starts = new ArrayList<>();
+            List<Long> ends = new ArrayList<>();
+            for (int busyStart = busy.nextSetBit(0); busyStart >= 0; busyStart = busy.nextSetBit(busy.nextClearBit(busyStart))) {
+                starts.add((long) busyStart);
+                ends.add((long) busy.nextClearBit(busyStart));
+            }
+            CalendarIndex index = CalendarIndex.fromIntervals(starts.stream().mapToLong(Long::longValue).toArray(),
+                    ends.stream().mapToLong(Long::longValue).toArray(), starts.size());
+            assertSameIntervals(index, tree.toIndex());
+            Assert.assertEquals(index.size(), tree.size());
+
+            long minFree = 1 + random.nextInt(100);
+            Assert.assertEquals(freeTimes(index.cursor(-100, 13000), -100, 13000, minFree),
+                    freeTimes(tree.cursor(-100, 13000, minFree), -100, 13000, 1));
+        }
+    }
+
+    /**
+     * Bookings of a calendar with trees give the same unavailable time as the calendar loaded with the bookings.
+     */
+    @Test
+    public void testBookingsUpdateFreeIntervalTrees() {
+        CalendarIndex appointments = CalendarIndex.fromIntervals(new long[]{epochSecond("2019-04-23T09:00:00Z")},
+                new long[]{epochSecond("2019-04-23T09:30:00Z")}, 1);
+        CalendarData calendarData = CalendarData.of(CALENDAR_ID, appointments, Arrays.asList(
+                timeSlot("consultation", "2019-04-23T08:00:00Z", "2019-04-23T10:00:00Z", true, false),
+                timeSlot("surgery", "2019-04-23T10:00:00Z", "2019-04-23T12:00:00Z", true, false)
+        ));
+        long start = epochSecond("2019-04-23T00:00:00Z");
+        long end = epochSecond("2019-04-24T00:00:00Z");
+        BusyIntervalCursor surgery = calendarData.getUnavailableCursor("surgery", start, end, 1800);
+        Assert.assertEquals(Arrays.asList(epochSecond("2019-04-23T10:00:00Z"), epochSecond("2019-04-23T12:00:00Z")), freeTimes(surgery, start, end, 1));
+
+        CalendarData booked = calendarData
+                .withBooking(epochSecond("2019-04-23T10:15:00Z"), epochSecond("2019-04-23T10:30:00Z"))
+                .withBooking(epochSecond("2019-04-23T11:00:00Z"), epochSecond("2019-04-23T11:30:00Z"));
+        Assert.assertEquals(Arrays.asList(epochSecond("2019-04-23T10:30:00Z"), epochSecond("2019-04-23T11:00:00Z"),
+                epochSecond("2019-04-23T11:30:00Z"), epochSecond("2019-04-23T12:00:00Z")),
+                freeTimes(booked.getUnavailableCursor("surgery", start, end, 1800), start, end, 1));
+
+        CalendarData loaded = CalendarData.of(CALENDAR_ID, appointments, Arrays.asList(
+                timeSlot("consultation", "2019-04-23T08:00:00Z", "2019-04-23T10:00:00Z", true, false),
+                timeSlot("surgery", "2019-04-23T10:00:00Z", "2019-04-23T12:00:00Z", true, false)
+        )).withBookings(booked.getBookings());
+        for (String typeId : Arrays.asList(null, "consultation", "surgery", "unknown")) {
+            assertSameIntervals(periodIntervals(loaded.getUnavailableIntervals(typeId), start, end), booked.getUnavailableIntervals(typeId, start, end));
+            assertSameIntervals(loaded.getUnavailableIntervals(typeId), booked.getUnavailableIntervals(typeId));
+        }
+        assertSameIntervals(loaded.getBusyIntervals(), booked.getBusyIntervals());
+    }
+
+    @Test
+    public void testEmptyAppointments() {
+        Assert.assertEquals(0, CalendarIndex.of(CALENDAR_ID, null).size());
+        Assert.assertEquals(0, CalendarIndex.empty().firstEndingAfter(100));
+    }
+
+    private void assertSameIntervals(CalendarIndex expected, CalendarIndex actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.getStart(i), actual.getStart(i));
+            Assert.assertEquals(expected.getEnd(i), actual.getEnd(i));
+        }
+    }
+
+    private CalendarIndex periodIntervals(CalendarIndex index, long start, long end) {
+        List<long[]> intervals = new ArrayList<>();
+        BusyIntervalCursor cursor = index.cursor(start, end);
+        while (cursor.next()) {
+            intervals.add(new long[]{cursor.getStart(), cursor.getEnd()});
+        }
+        long[] starts = intervals.stream().mapToLong(interval -> interval[0]).toArray();
+        long[] ends = intervals.stream().mapToLong(interval -> interval[1]).toArray();
+        return CalendarIndex.fromIntervals(starts, ends, starts.length);
+    }
+
+    /**
+     * Start and end of each free time within period between intervals of cursor, that is at least min length long.
+     */
+    private List<Long> freeTimes(BusyIntervalCursor cursor, long start, long end, long minLength) {
+        List<Long> freeTimes = new ArrayList<>();
+        long freeStart = start;
+        while (cursor.next()) {
+            long freeEnd = Math.min(cursor.getStart(), end);
+            if (freeEnd - freeStart >= minLength) {
+                freeTimes.add(freeStart);
+                freeTimes.add(freeEnd);
+            }
+            freeStart = Math.max(freeStart, cursor.getEnd());
+        }
+        if (end - freeStart >= minLength) {
+            freeTimes.add(freeStart);
+            freeTimes.add(end);
+        }
+        return freeTimes;
+    }
+
+    private Appointment appointment(String calendarId, String start, String end) {
+        Appointment appointment = new Appointment();
+        appointment.setCalendarId(calendarId);
+        appointment.setStartTime(Date.from(Instant.parse(start)));
+        appointment.setEndTime(Date.from(Instant.parse(end)));
+        return appointment;
+    }
+
+    private TimeSlot timeSlot(String typeId, String start, String end, boolean publicBookable, boolean outOfOffice) {
+        TimeSlot timeSlot = new TimeSlot();
+        timeSlot.setCalendarId(CALENDAR_ID);
+        timeSlot.setTypeId(typeId);
+        timeSlot.setStart(Date.from(Instant.parse(start)));
+        timeSlot.setEnd(Date.from(Instant.parse(end)));
+        timeSlot.setPublicBookable(publicBookable);
+        timeSlot.setOutOfOffice(outOfOffice);
+        return timeSlot;
+    }
+
+    private RecurringTimeSlot recurringTimeSlot(String typeId, String startTime, String endTime, DayOfWeek... daysOfWeek) {
+        RecurringTimeSlot recurringTimeSlot = new RecurringTimeSlot();
+        recurringTimeSlot.setCalendarId(CALENDAR_ID);
+        recurringTimeSlot.setTypeId(typeId);
+        recurringTimeSlot.setStartTime(LocalTime.parse(startTime));
+        recurringTimeSlot.setEndTime(LocalTime.parse(endTime));
+        recurringTimeSlot.setDaysOfWeek(Arrays.asList(daysOfWeek));
+        return recurringTimeSlot;
+    }
+
+    private long epochSecond(String time) {
+        return Instant.parse(time).getEpochSecond();
+    }
+}
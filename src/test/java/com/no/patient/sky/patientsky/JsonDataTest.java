@@ -0,0 +1,309 @@
+package com.no.patient.sky.patientsky;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.no.patient.sky.patientsky.dto.Appointments;
+import com.no.patient.sky.patientsky.dto.Booking;
+import com.no.patient.sky.patientsky.index.BusyIntervalMerger;
+import com.no.patient.sky.patientsky.index.CalendarData;
+import com.no.patient.sky.patientsky.index.CalendarIndex;
+import com.no.patient.sky.patientsky.index.SegmentStore;
+import com.no.patient.sky.patientsky.initializer.JsonData;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.springframework.test.util.ReflectionTestUtils.getField;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+public class JsonDataTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * The streaming parser must find the same unavailable intervals as binding the whole file with Jackson.
+     */
+    @Test
+    public void testParsedIndexMatchesJacksonBinding() throws Exception {
+        Resource[] resources = mainResources();
+        JsonData jsonData = loadJsonData(resources, "");
+
+        for (Resource resource : resources) {
+            String calendarId = resource.getFilename().replace(".json", "");
+            Appointments appointments = new ObjectMapper().readValue(resource.getInputStream(), Appointments.class);
+
+            CalendarData expected = CalendarData.of(calendarId,
+                    CalendarIndex.of(calendarId, appointments.getAppointmentList()), appointments.getTimeSlotList());
+
+            assertSameIntervals(expected.getUnavailableIntervals(), jsonData.getCalendarIndex(UUID.fromString(calendarId)));
+        }
+    }
+
+    /**
+     * Snapshot is written on first load and the next load reads the same calendars from it.
+     */
+    @Test
+    public void testSnapshotIsReadOnRestart() throws Exception {
+        Resource[] resources = mainResources();
+        File snapshot = new File(temporaryFolder.getRoot(), "calendar-index.snapshot");
+
+        JsonData parsed = loadJsonData(resources, snapshot.getPath());
+        Assert.assertTrue(snapshot.isFile());
+        long snapshotModified = snapshot.lastModified();
+
+        JsonData restored = loadJsonData(resources, snapshot.getPath());
+        Assert.assertEquals(snapshotModified, snapshot.lastModified());
+
+        for (Resource resource : resources) {
+            UUID calendarId = UUID.fromString(resource.getFilename().replace(".json", ""));
+            Assert.assertFalse(restored.checkIfCalendarIdDoesNotExists(calendarId));
+            assertSameIntervals(parsed.getCalendarIndex(calendarId), restored.getCalendarIndex(calendarId));
+        }
+    }
+
+    /**
+     * Off heap store reads interval columns from the mapped snapshot and finds the same intervals.
+     */
+    @Test
+    public void testOffHeapSnapshot() throws Exception {
+        Resource[] resources = mainResources();
+        File snapshot = new File(temporaryFolder.getRoot(), "calendar-index.snapshot");
+
+        JsonData parsed = loadJsonData(resources, snapshot.getPath());
+        JsonData mapped = new JsonData();
+        setField(mapped, "resources", resources);
+        setField(mapped, "snapshotFile", snapshot.getPath());
+        setField(mapped, "offHeap", true);
+        mapped.loadJsonFiles();
+
+        for (Resource resource : resources) {
+            UUID calendarId = UUID.fromString(resource.getFilename().replace(".json", ""));
+            Assert.assertTrue(mapped.getCalendarIndex(calendarId).size() == 0 || mapped.getCalendarIndex(calendarId).isOffHeap());
+            assertSameIntervals(parsed.getCalendarIndex(calendarId), mapped.getCalendarIndex(calendarId));
+        }
+    }
+
+    /**
+     * Changed file of data directory is parsed again, deleted file removes the calendar.
+     */
+    @Test
+    public void testReloadOfChangedCalendarFile() throws Exception {
+        UUID calendarId = UUID.fromString("48cadf26-975e-11e5-b9c2-c8e0eb18c1e9");
+        File dataDirectory = temporaryFolder.newFolder("data");
+        Path calendarFile = dataDirectory.toPath().resolve(calendarId + ".json");
+        Files.copy(Paths.get("src/test/resources", calendarId + ".json"), calendarFile);
+
+        JsonData jsonData = new JsonData();
+        setField(jsonData, "resources", new Resource[0]);
+        setField(jsonData, "snapshotFile", "");
+        setField(jsonData, "dataDirectory", dataDirectory.getPath());
+        jsonData.loadJsonFiles();
+        CalendarIndex loadedIndex = jsonData.getCalendarIndex(calendarId);
+        Assert.assertEquals(3, loadedIndex.size());
+
+        Files.write(calendarFile, ("{\"appointments\":[{\"calendar_id\":\"" + calendarId + "\","
+                + "\"start\":\"2019-04-23T12:00:00\",\"end\":\"2019-04-23T12:30:00\"}]}").getBytes(StandardCharsets.UTF_8));
+        jsonData.reloadCalendarFile(calendarFile);
+        Assert.assertEquals(1, jsonData.getCalendarIndex(calendarId).size());
+        Assert.assertEquals(3, loadedIndex.size());
+
+        Files.write(calendarFile, "{\"appointments\":[".getBytes(StandardCharsets.UTF_8));
+        jsonData.reloadCalendarFile(calendarFile);
+        Assert.assertEquals(1, jsonData.getCalendarIndex(calendarId).size());
+
+        Files.delete(calendarFile);
+        jsonData.reloadCalendarFile(calendarFile);
+        Assert.assertTrue(jsonData.checkIfCalendarIdDoesNotExists(calendarId));
+    }
+
+    /**
+     * Rescan of the data directory loads files added and removes calendars of files deleted without a reload.
+     */
+    @Test
+    public void testReloadOfDataDirectory() throws Exception {
+        UUID calendarId = UUID.fromString("48cadf26-975e-11e5-b9c2-c8e0eb18c1e9");
+        UUID addedCalendarId = UUID.fromString("452dccfc-975e-11e5-bfa5-c8e0eb18c1e9");
+        File dataDirectory = temporaryFolder.newFolder("data");
+        Path calendarFile = dataDirectory.toPath().resolve(calendarId + ".json");
+        Files.copy(Paths.get("src/test/resources", calendarId + ".json"), calendarFile);
+
+        JsonData jsonData = new JsonData();
+        setField(jsonData, "resources", new Resource[0]);
+        setField(jsonData, "snapshotFile", "");
+        setField(jsonData, "dataDirectory", dataDirectory.getPath());
+        jsonData.loadJsonFiles();
+
+        Files.delete(calendarFile);
+        Files.write(dataDirectory.toPath().resolve(addedCalendarId + ".json"), ("{\"appointments\":[{\"calendar_id\":\"" + addedCalendarId + "\","
+                + "\"start\":\"2019-04-23T12:00:00\",\"end\":\"2019-04-23T12:30:00\"}]}").getBytes(StandardCharsets.UTF_8));
+        jsonData.reloadDataDirectory();
+
+        Assert.assertTrue(jsonData.checkIfCalendarIdDoesNotExists(calendarId));
+        Assert.assertEquals(1, jsonData.getCalendarIndex(addedCalendarId).size());
+    }
+
+    /**
+     * Bookings of a calendar whose file is deleted come back with the file, also bookings replayed while it was missing.
+     */
+    @Test
+    public void testBookingsOfRemovedCalendarAreKept() throws Exception {
+        UUID calendarId = UUID.fromString("48cadf26-975e-11e5-b9c2-c8e0eb18c1e9");
+        File dataDirectory = temporaryFolder.newFolder("data");
+        Path calendarFile = dataDirectory.toPath().resolve(calendarId + ".json");
+        Files.copy(Paths.get("src/test/resources", calendarId + ".json"), calendarFile);
+        byte[] calendarJson = Files.readAllBytes(calendarFile);
+
+        JsonData jsonData = new JsonData();
+        setField(jsonData, "resources", new Resource[0]);
+        setField(jsonData, "snapshotFile", "");
+        setField(jsonData, "dataDirectory", dataDirectory.getPath());
+        jsonData.loadJsonFiles();
+        long bookedStart = Instant.parse("2030-01-01T10:00:00Z").getEpochSecond();
+        long restoredStart = Instant.parse("2030-01-02T10:00:00Z").getEpochSecond();
+        Assert.assertTrue(jsonData.addBooking(booking(calendarId, bookedStart)));
+
+        Files.delete(calendarFile);
+        jsonData.reloadCalendarFile(calendarFile);
+        Assert.assertTrue(jsonData.checkIfCalendarIdDoesNotExists(calendarId));
+        Assert.assertFalse(jsonData.restoreBooking(booking(calendarId, restoredStart)));
+
+        Files.write(calendarFile, calendarJson);
+        jsonData.reloadCalendarFile(calendarFile);
+        CalendarIndex bookings = jsonData.getCalendarData(calendarId).getBookings();
+        Assert.assertEquals(2, bookings.size());
+        Assert.assertEquals(bookedStart, bookings.getStart(0));
+        Assert.assertEquals(restoredStart, bookings.getStart(1));
+    }
+
+    /**
+     * Recurring timeslots are parsed from the calendar file and kept in the snapshot.
+     */
+    @Test
+    public void testRecurringTimeSlotsInSnapshot() throws Exception {
+        UUID calendarId = UUID.fromString("48cadf26-975e-11e5-b9c2-c8e0eb18c1e9");
+        File dataDirectory = temporaryFolder.newFolder("data");
+        Files.write(dataDirectory.toPath().resolve(calendarId + ".json"), ("{\"recurring_timeslots\":[{\"calendar_id\":\"" + calendarId + "\","
+                + "\"days_of_week\":[\"monday\",\"TUESDAY\"],\"start_time\":\"08:00\",\"end_time\":\"16:00\","
+                + "\"time_zone\":\"Europe/Oslo\",\"exceptions\":[\"2019-04-22\"]}]}").getBytes(StandardCharsets.UTF_8));
+        File snapshot = new File(temporaryFolder.getRoot(), "calendar-index.snapshot");
+        long start = Instant.parse("2019-04-22T00:00:00Z").getEpochSecond();
+        long end = Instant.parse("2019-04-24T00:00:00Z").getEpochSecond();
+
+        for (int load = 0; load < 2; load++) {
+            JsonData jsonData = new JsonData();
+            setField(jsonData, "resources", new Resource[0]);
+            setField(jsonData, "snapshotFile", snapshot.getPath());
+            setField(jsonData, "dataDirectory", dataDirectory.getPath());
+            jsonData.loadJsonFiles();
+
+            CalendarIndex index = jsonData.getCalendarIndex(calendarId, null, start, end);
+            Assert.assertTrue(index.overlaps(start, Instant.parse("2019-04-23T06:00:00Z").getEpochSecond()));
+            Assert.assertFalse(index.overlaps(Instant.parse("2019-04-23T06:00:00Z").getEpochSecond(), Instant.parse("2019-04-23T14:00:00Z").getEpochSecond()));
+            Assert.assertTrue(index.overlaps(Instant.parse("2019-04-23T14:00:00Z").getEpochSecond(), end));
+        }
+    }
+
+    /**
+     * Appointments in monthly segments give the same intervals for a period as appointments in memory,
+     * also for intervals starting in an earlier month, while at most the configured bytes of segments are kept.
+     * The directory of a store that was not closed is deleted, the file of a reloaded calendar once it is no longer read.
+     */
+    @Test
+    public void testSegmentedAppointments() throws Exception {
+        UUID calendarId = UUID.fromString("48cadf26-975e-11e5-b9c2-c8e0eb18c1e9");
+        File dataDirectory = temporaryFolder.newFolder("data");
+        Files.write(dataDirectory.toPath().resolve(calendarId + ".json"), ("{\"appointments\":["
+                + appointment(calendarId, "2019-01-15T10:00:00", "2019-01-15T11:00:00") + ","
+                + appointment(calendarId, "2019-01-31T23:00:00", "2019-02-01T01:00:00") + ","
+                + appointment(calendarId, "2019-03-10T09:00:00", "2019-05-02T00:00:00") + ","
+                + appointment(calendarId, "2019-05-05T08:00:00", "2019-05-05T09:00:00") + "]}").getBytes(StandardCharsets.UTF_8));
+
+        JsonData inMemory = new JsonData();
+        setField(inMemory, "resources", new Resource[0]);
+        setField(inMemory, "dataDirectory", dataDirectory.getPath());
+        inMemory.loadJsonFiles();
+
+        File segmentDirectory = temporaryFolder.newFolder("segments");
+        File otherFile = new File(segmentDirectory, "other.segments");
+        Files.write(otherFile.toPath(), new byte[]{1});
+        Path staleDirectory = Files.createDirectory(segmentDirectory.toPath().resolve("segments-stale"));
+        Files.write(staleDirectory.resolve(calendarId + "-1.segments"), new byte[]{1});
+        JsonData segmented = new JsonData();
+        setField(segmented, "resources", new Resource[0]);
+        setField(segmented, "dataDirectory", dataDirectory.getPath());
+        setField(segmented, "segmentDirectory", segmentDirectory.getPath());
+        setField(segmented, "segmentCacheBytes", 200L);
+        segmented.loadJsonFiles();
+        SegmentStore segmentStore = (SegmentStore) getField(segmented, "segmentStore");
+        Assert.assertFalse(Files.exists(staleDirectory));
+
+        String[] periods = {"2019-02-01T00:00:00Z/2019-02-01T02:00:00Z", "2019-04-01T00:00:00Z/2019-05-01T00:00:00Z",
+                "2019-01-31T22:00:00Z/2019-02-01T00:30:00Z", "2019-01-01T00:00:00Z/2019-06-01T00:00:00Z", "2019-06-01T00:00:00Z/2019-07-01T00:00:00Z"};
+        for (String period : periods) {
+            long start = Instant.parse(period.split("/")[0]).getEpochSecond();
+            long end = Instant.parse(period.split("/")[1]).getEpochSecond();
+            assertSameIntervals(BusyIntervalMerger.union(Collections.singletonList(inMemory.getCalendarIndex(calendarId, null, start, end)), start, end),
+                    segmented.getCalendarIndex(calendarId, null, start, end));
+            Assert.assertTrue(segmentStore.getCachedBytes() <= 200);
+        }
+        Assert.assertEquals(4, segmented.getCalendarData(calendarId).getAppointmentCount());
+        Assert.assertEquals(0, segmented.getCalendarData(calendarId).getAppointments().size());
+
+        segmented.reloadCalendarFile(dataDirectory.toPath().resolve(calendarId + ".json"));
+        for (int attempt = 0; attempt < 50 && segmentStore.getFileCount() > 1; attempt++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, segmentStore.getFileCount());
+        Assert.assertEquals(1, segmentStore.getDirectory().toFile().list((directory, name) -> name.endsWith(".segments")).length);
+
+        segmented.close();
+        Assert.assertFalse(Files.exists(segmentStore.getDirectory()));
+        Assert.assertArrayEquals(new File[]{otherFile}, segmentDirectory.listFiles());
+    }
+
+    private JsonData loadJsonData(Resource[] resources, String snapshotFile) {
+        JsonData jsonData = new JsonData();
+        setField(jsonData, "resources", resources);
+        setField(jsonData, "snapshotFile", snapshotFile);
+        jsonData.loadJsonFiles();
+        return jsonData;
+    }
+
+    private String appointment(UUID calendarId, String start, String end) {
+        return "{\"calendar_id\":\"" + calendarId + "\",\"start\":\"" + start + "\",\"end\":\"" + end + "\"}";
+    }
+
+    private Resource[] mainResources() throws Exception {
+        return new PathMatchingResourcePatternResolver().getResources("file:src/main/resources/*.json");
+    }
+
+    private Booking booking(UUID calendarId, long startTime) {
+        return Booking.builder()
+                .bookingId(UUID.randomUUID())
+                .calendarId(calendarId.toString())
+                .startTime(startTime)
+                .endTime(startTime + 3600)
+                .build();
+    }
+
+    private void assertSameIntervals(CalendarIndex expected, CalendarIndex actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.getStart(i), actual.getStart(i));
+            Assert.assertEquals(expected.getEnd(i), actual.getEnd(i));
+        }
+    }
+}